@@ -14,19 +14,9 @@ export file=`basename $1`
 # Parse everything. Run Coref.
 ./runallparser.sh -output $outdir -input giga $dir
 
-echo "RUNIDF"
-./runidf.sh -outdir $outdir $outdir/
-
-echo "RUNVERBDEP"
-./runverbdep.sh -output $outdir -deps $outdir/$file.deps -events $outdir/$file.events -parsed $outdir/$file.parse -ner $outdir/$file.ner
-
-echo "RUNCOUNTPAIRS 1"
-./runcountpairs.sh -type base -idfcut .4 -doccut 5 -dependents -fullprep -output $outdir -idf $outdir/tokens-lemmas.idf-all -deps $outdir/$file.deps -parsed $outdir/$file.parse
+# IDF, verb/dep counts, both pair counts and argument counts, reading the parsed
+# file twice instead of once per count.
+echo "RUNSTATS"
+./runstats.sh -idfdir $outdir -output $outdir -deps $outdir/$file.deps -events $outdir/$file.events -parsed $outdir/$file.parse -ner $outdir/$file.ner
 mv $outdir/token-pairs-lemmas.counts-dist $outdir/token-pairs-base-lemmas-govdep-distlog4.counts
-
-echo "RUNCOUNTPAIRS 2"
-./runcountpairs.sh -type vbnn -idfcut 0.0 -doccut 5 -dependents -fullprep -nodistance -withcoref -output $outdir -idf $outdir/tokens-lemmas.idf-all -deps $outdir/$file.deps -parsed $outdir/$file.parse -events $outdir/$file.events
 mv $outdir/token-pairs-lemmas.counts $outdir/token-pairs-vbnn-coref-fullprep.counts
-
-echo "RUNARGS"
-./runargs.sh -idf $outdir/tokens-lemmas.idf-all -output $outdir -deps $outdir/$file.deps -events $outdir/$file.events -parsed $outdir/$file.parse -ner $outdir/$file.ner
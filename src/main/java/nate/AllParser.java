@@ -11,13 +11,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import nate.*;
 import nate.util.*;
 import edu.stanford.nlp.dcoref.CoNLL2011DocumentReader.NamedEntityAnnotation;
+import edu.stanford.nlp.ie.NERClassifierCombiner;
+import edu.stanford.nlp.ie.regexp.NumberSequenceClassifier;
 import edu.stanford.nlp.dcoref.CorefChain;
 import edu.stanford.nlp.dcoref.CorefChain.CorefMention;
 import edu.stanford.nlp.dcoref.CorefCoreAnnotations.CorefChainAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreAnnotations.NamedEntityTagAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
@@ -27,7 +35,17 @@ import edu.stanford.nlp.ling.Word;
 import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
 import edu.stanford.nlp.parser.lexparser.Options;
 import edu.stanford.nlp.pipeline.Annotation;
-import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.pipeline.AnnotationPipeline;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.pipeline.DefaultPaths;
+import edu.stanford.nlp.pipeline.DeterministicCorefAnnotator;
+import edu.stanford.nlp.pipeline.MorphaAnnotator;
+import edu.stanford.nlp.pipeline.NERCombinerAnnotator;
+import edu.stanford.nlp.pipeline.POSTaggerAnnotator;
+import edu.stanford.nlp.pipeline.PTBTokenizerAnnotator;
+import edu.stanford.nlp.pipeline.ParserAnnotator;
+import edu.stanford.nlp.pipeline.ParserAnnotatorUtils;
+import edu.stanford.nlp.pipeline.WordsToSentencesAnnotator;
 import edu.stanford.nlp.process.PTBTokenizer;
 import edu.stanford.nlp.semgraph.SemanticGraph;
 import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation;
@@ -59,16 +77,47 @@ import edu.stanford.nlp.util.CoreMap;
  *
  * -input GIGA|ENVIRO
  * The type of text we are processing, Gigaword or Environment.
+ *
+ * -threads <n>
+ * Number of stories to parse in parallel. Each worker thread has its own CoreNLP
+ * pipeline with its own annotators and models, so no annotator is shared between
+ * threads, and each thread needs the memory of a whole pipeline.
+ *
+ * -pipeline
+ * Writes output, builds dependencies and maps coref in separate stages that
+ * overlap with parsing, even with one parsing thread. Implied by -threads.
+ *
+ * -sentencetime <seconds>
+ * Time budget to parse one sentence. Sentences that take longer (or that have
+ * MAX_SENTENCE_LENGTH or more tokens) get a flat X tree instead of a parse.
+ *
+ * -storytime <seconds>
+ * Time budget for one story. If tagging a story uses up the budget, its sentences
+ * get flat X trees without parsing. If parsing uses it up, coref is not run.
+ * Skipped annotators are recorded in the .events file as <SKIP> lines.
  */
 public class AllParser {
-  private static StanfordCoreNLP pipeline;
+  // Each thread gets its own pipeline, built from its own annotator instances.
+  private ThreadLocal<AnnotationPipeline> _pipelines;
+  // The same annotators split into steps, used when stories have a time budget.
+  private ThreadLocal<AnnotationPipeline> _tagPipelines;
+  private ThreadLocal<AnnotationPipeline> _parsePipelines;
+  // Coref runs apart from the others in both cases.
+  private ThreadLocal<AnnotationPipeline> _corefPipelines;
+  private ThreadLocal<GrammaticalStructureFactory> _gsfs;
   
   public int MAX_SENTENCE_LENGTH = 400;
   String _dataPath = "";
   String _outputDir = ".";
   String _serializedGrammar;
   Options options;
-  GrammaticalStructureFactory gsf;
+  // Worker pool when parsing with more than one thread or in stages.
+  int _numThreads = 1;
+  boolean _pipelined = false;
+  // Time budgets in milliseconds, zero if none.
+  long _sentenceTime = 0;
+  long _storyTime = 0;
+  ExecutorService _workers = null;
   // One file name to continue parsing.
   // Usually the previous run was interrupted.
   String _continueFile = null; 
@@ -83,7 +132,7 @@ public class AllParser {
 
   public AllParser(String[] args) {
     if( args.length < 2 ) {
-      System.out.println("DirectoryParser [-output <dir>] -grammar <path> -input giga|muc <text-directory>");
+      System.out.println("DirectoryParser [-output <dir>] [-threads <n>] [-pipeline] [-sentencetime <sec>] [-storytime <sec>] -grammar <path> -input giga|muc <text-directory>");
       System.exit(-1);
     }
     handleParameters(args);
@@ -103,6 +152,21 @@ public class AllParser {
     if( params.hasFlag("-input") ) {
       _docType = docTypeToInt(params.get("-input"));
     }
+    if( params.hasFlag("-threads") ) {
+      _numThreads = Math.max(1, Integer.parseInt(params.get("-threads")));
+      System.out.println("Parsing with " + _numThreads + " threads.");
+    }
+    if( params.hasFlag("-pipeline") || _numThreads > 1 ) {
+      _pipelined = true;
+    }
+    if( params.hasFlag("-sentencetime") ) {
+      _sentenceTime = (long)(Double.parseDouble(params.get("-sentencetime")) * 1000);
+      System.out.println("Sentence time budget " + _sentenceTime + "ms");
+    }
+    if( params.hasFlag("-storytime") ) {
+      _storyTime = (long)(Double.parseDouble(params.get("-storytime")) * 1000);
+      System.out.println("Story time budget " + _storyTime + "ms");
+    }
 
     System.out.println("Grammar " + _serializedGrammar);
 
@@ -127,9 +191,12 @@ public class AllParser {
   }
 
   private void initLexResources() {
-    Properties props = new Properties();
-    props.put("annotators", "tokenize, ssplit, pos, lemma, parse, ner, dcoref"); // most of these are dependencies for the main ones.
-    pipeline = new StanfordCoreNLP(props);
+    _pipelines = newPipelines("tokenize", "ssplit", "pos", "lemma", "parse", "ner"); // most of these are dependencies for the main ones.
+    _corefPipelines = newPipelines("dcoref");
+    if( _storyTime > 0 ) {
+      _tagPipelines = newPipelines("tokenize", "ssplit", "pos", "lemma", "ner");
+      _parsePipelines = newPipelines("parse");
+    }
     
     try {
       options = new Options();
@@ -137,8 +204,71 @@ public class AllParser {
     } catch( Exception ex ) { ex.printStackTrace(); }
 
     // Dependency tree info
-    TreebankLanguagePack tlp = new PennTreebankLanguagePack();
-    gsf = tlp.grammaticalStructureFactory();
+    _gsfs = new ThreadLocal<GrammaticalStructureFactory>() {
+      protected GrammaticalStructureFactory initialValue() {
+        TreebankLanguagePack tlp = new PennTreebankLanguagePack();
+        return tlp.grammaticalStructureFactory();
+      }
+    };
+
+    // Workers load their own pipelines the first time they parse.
+    if( _pipelined )
+      _workers = Executors.newFixedThreadPool(_numThreads);
+    else if( _storyTime > 0 ) {
+      _tagPipelines.get();
+      _parsePipelines.get();
+      _corefPipelines.get();
+    }
+    else {
+      _pipelines.get();
+      _corefPipelines.get();
+    }
+  }
+
+  /**
+   * Creates a CoreNLP pipeline for each thread that asks for one, from new annotators.
+   * StanfordCoreNLP would take them from its static annotator pool, which gives every
+   * thread the same instances. The pipelines with only some of the annotators expect
+   * the earlier annotators to have already run.
+   * @param annotators The CoreNLP annotators the pipelines run.
+   */
+  private ThreadLocal<AnnotationPipeline> newPipelines(final String... annotators) {
+    final Properties props = new Properties();
+    props.put("parse.maxlen", String.valueOf(MAX_SENTENCE_LENGTH));
+    if( _sentenceTime > 0 )
+      props.put("parse.maxtime", String.valueOf(_sentenceTime));
+
+    return new ThreadLocal<AnnotationPipeline>() {
+      protected AnnotationPipeline initialValue() {
+        AnnotationPipeline pipeline = new AnnotationPipeline();
+        for( String annotator : annotators )
+          pipeline.addAnnotator(newAnnotator(annotator, props));
+        return pipeline;
+      }
+    };
+  }
+
+  /**
+   * @return A new annotator of the given name, set up as StanfordCoreNLP sets up its
+   *         pooled one from the same properties.
+   */
+  private static Annotator newAnnotator(String name, Properties props) {
+    try {
+      if( name.equals("tokenize") ) return new PTBTokenizerAnnotator(false, "invertible,ptb3Escaping=true");
+      if( name.equals("ssplit") ) return new WordsToSentencesAnnotator(false);
+      if( name.equals("pos") ) return new POSTaggerAnnotator("pos", props);
+      if( name.equals("lemma") ) return new MorphaAnnotator(false);
+      if( name.equals("parse") ) return new ParserAnnotator("parse", props);
+      if( name.equals("ner") ) {
+        NERClassifierCombiner ner = new NERClassifierCombiner(true, NumberSequenceClassifier.USE_SUTIME_DEFAULT, props,
+            DefaultPaths.DEFAULT_NER_THREECLASS_MODEL, DefaultPaths.DEFAULT_NER_MUC_MODEL, DefaultPaths.DEFAULT_NER_CONLL_MODEL);
+        return new NERCombinerAnnotator(ner, false);
+      }
+      if( name.equals("dcoref") ) return new DeterministicCorefAnnotator(props);
+    } catch( Exception ex ) {
+      throw new RuntimeException("Could not load the " + name + " annotator", ex);
+    }
+    throw new IllegalArgumentException("Unknown annotator " + name);
   }
 
 
@@ -152,8 +282,20 @@ public class AllParser {
    * @param corefdoc The document of coref chains that we're printing to.
    */
   private void analyzeSentences(String currentStory, int currentStoryNum, Vector<String> paragraphs, GigaDoc pdoc, GigaDoc depdoc, GigaDoc corefdoc, GigaDoc nerdoc) {
-    int sid = 0;
+    Annotation document = annotate(paragraphs);
+    if( document == null ) return;
 
+    List<Tree> trees = addParsesAndNER(document, pdoc, nerdoc);
+    // Must come after the parses are printed, it changes the trees.
+    addDependencies(trees, depdoc);
+    addCoref(document, trees, corefdoc);
+  }
+
+  /**
+   * Runs the CoreNLP pipeline of the current thread over one story's text.
+   * @return The annotated story, or null if CoreNLP failed.
+   */
+  private Annotation annotate(Vector<String> paragraphs) {
     // Paragraphs may be multiple sentences
     String allsents = "";
     for( String fragment : paragraphs ) {
@@ -167,12 +309,94 @@ public class AllParser {
     Annotation document = new Annotation(allsents);
     
     try {
-      pipeline.annotate(document);
+      if( _storyTime > 0 )
+        annotateWithBudget(document);
+      else {
+        _pipelines.get().annotate(document);
+        annotateCoref(document);
+      }
     } catch( Exception ex ) {
       ex.printStackTrace();
       System.out.println("ERROR: skipping document due to Stanford CoreNLP failure.");
+      return null;
+    }
+
+    // Sentences that were too long or took too long to parse have flat X trees.
+    int sid = 0;
+    for( CoreMap sentence : document.get(CoreAnnotations.SentencesAnnotation.class) ) {
+      Tree tree = sentence.get(TreeAnnotation.class);
+      if( tree != null && tree.value().equals("X") )
+        addSkipped(document, "parse " + sid);
+      sid++;
+    }
+    return document;
+  }
+
+  /**
+   * Runs the annotators in three steps, and stops before the expensive steps
+   * if the story has used up its time budget. A running annotator is not stopped,
+   * but the sentence budget (if set) limits how long the parser spends per sentence.
+   */
+  private void annotateWithBudget(Annotation document) {
+    long start = System.currentTimeMillis();
+    _tagPipelines.get().annotate(document);
+
+    if( System.currentTimeMillis() - start > _storyTime ) {
+      System.out.println("WARNING: story over time budget, not parsing.");
+      GrammaticalStructureFactory gsf = _gsfs.get();
+      for( CoreMap sentence : document.get(CoreAnnotations.SentencesAnnotation.class) ) {
+        Tree tree = ParserAnnotatorUtils.xTree(sentence.get(TokensAnnotation.class));
+        ParserAnnotatorUtils.fillInParseAnnotations(false, true, gsf, sentence, tree);
+      }
+      addSkipped(document, "coref");
+      return;
+    }
+    _parsePipelines.get().annotate(document);
+
+    if( System.currentTimeMillis() - start > _storyTime ) {
+      System.out.println("WARNING: story over time budget, skipping coref.");
+      addSkipped(document, "coref");
       return;
     }
+    annotateCoref(document);
+  }
+
+  /**
+   * Runs dcoref on a tagged and parsed story.
+   */
+  private void annotateCoref(Annotation document) {
+    _corefPipelines.get().annotate(document);
+  }
+
+  /**
+   * Notes that one annotator didn't run (or gave up) on part of the story.
+   */
+  private void addSkipped(Annotation document, String what) {
+    List<String> skipped = document.get(SkippedAnnotation.class);
+    if( skipped == null ) {
+      skipped = new ArrayList<String>();
+      document.set(SkippedAnnotation.class, skipped);
+    }
+    skipped.add(what);
+  }
+
+  /**
+   * The annotators skipped on a story because of the time budgets, with a sentence ID
+   * if only one sentence was skipped.
+   */
+  private static class SkippedAnnotation implements CoreAnnotation<List<String>> {
+    @SuppressWarnings("unchecked")
+    public Class<List<String>> getType() {
+      return (Class<List<String>>)(Class<?>)List.class;
+    }
+  }
+
+  /**
+   * Prints each sentence's parse tree and its named entity spans.
+   * @return The parse trees of the sentences, in order.
+   */
+  private List<Tree> addParsesAndNER(Annotation document, GigaDoc pdoc, GigaDoc nerdoc) {
+    int sid = 0;
 
     // Loop over the sentences.
     List<Tree> trees = new ArrayList<Tree>();
@@ -191,19 +415,6 @@ public class AllParser {
       tp.printTree(tree, new PrintWriter(treeStrWriter,true));
       pdoc.addParse(treeStrWriter.toString());
 
-      // DEPENDENCY GRAPH (old way of doing it)
-      // Create the dependency tree - CAUTION: DESTRUCTIVE to parse tree
-      try {
-        GrammaticalStructure gs = gsf.newGrammaticalStructure(tree);
-        //      Collection<TypedDependency> deps = gs.typedDependenciesCollapsed();
-        Collection<TypedDependency> deps = gs.typedDependenciesCCprocessed(true);
-        depdoc.addDependencies(deps, sid);
-      } catch( Exception ex ) { 
-        ex.printStackTrace();
-        System.out.println("WARNING: dependency tree creation failed...adding null deps");
-        depdoc.addDependencies(null, sid);
-      }
-
       // This is the new way to make Dependency Graphs, but I can't shove it into my old data structure...
       //        SemanticGraph dependencies = sentence.get(CollapsedCCProcessedDependenciesAnnotation.class);
       //        System.out.println("deps = " + dependencies.getEdgeSet());
@@ -251,8 +462,41 @@ public class AllParser {
       
       sid++;
     }
-    
-    // COREFERENCE
+    return trees;
+  }
+
+  /**
+   * DEPENDENCY GRAPH (old way of doing it)
+   * Creates the dependencies of each tree - CAUTION: DESTRUCTIVE to parse trees
+   */
+  private void addDependencies(List<Tree> trees, GigaDoc depdoc) {
+    int sid = 0;
+    for( Tree tree : trees ) {
+      try {
+        GrammaticalStructure gs = _gsfs.get().newGrammaticalStructure(tree);
+        //      Collection<TypedDependency> deps = gs.typedDependenciesCollapsed();
+        Collection<TypedDependency> deps = gs.typedDependenciesCCprocessed(true);
+        depdoc.addDependencies(deps, sid);
+      } catch( Exception ex ) { 
+        ex.printStackTrace();
+        System.out.println("WARNING: dependency tree creation failed...adding null deps");
+        depdoc.addDependencies(null, sid);
+      }
+      sid++;
+    }
+  }
+
+  /**
+   * COREFERENCE
+   * Adds the story's entity mentions and the verbs in its trees as events.
+   */
+  private void addCoref(Annotation document, List<Tree> trees, GigaDoc corefdoc) {
+    List<String> skipped = document.get(SkippedAnnotation.class);
+    if( skipped != null ) {
+      for( String skip : skipped )
+        corefdoc.addSkip(skip);
+    }
+
     Map<Integer, CorefChain> graph = document.get(CorefChainAnnotation.class);
     System.out.println("coref = " + graph);
 
@@ -261,11 +505,14 @@ public class AllParser {
 
     // For each entity.
     List<EntityMention> mymentions = new ArrayList<EntityMention>();
-    for( Integer eid : graph.keySet() ) {
-      CorefChain chain = graph.get(eid);
-      for( CorefMention mention : chain.getMentionsInTextualOrder() ) {
-        EntityMention mymention = new EntityMention(mention.sentNum, mention.mentionSpan, mention.startIndex, mention.endIndex-1, eid);
-        mymentions.add(mymention);
+    // No chains if coref was skipped, but still save the events.
+    if( graph != null ) {
+      for( Integer eid : graph.keySet() ) {
+        CorefChain chain = graph.get(eid);
+        for( CorefMention mention : chain.getMentionsInTextualOrder() ) {
+          EntityMention mymention = new EntityMention(mention.sentNum, mention.mentionSpan, mention.startIndex, mention.endIndex-1, eid);
+          mymentions.add(mymention);
+        }
       }
     }
     // Put the entities into the doc, and save the mentions that are arguments of verbs.
@@ -317,9 +564,6 @@ public class AllParser {
       if( file.contains(continueFile) ) {
 
         String parseFile = _outputDir + File.separator + file + ".parse";
-        String depsFile = _outputDir + File.separator + file + ".deps";
-        String nerFile = _outputDir + File.separator + file + ".ner";
-        String corefFile = _outputDir + File.separator + file + ".events";
 
         GigaDocReader parsed = new GigaDocReader(parseFile);
         int stoppedNum = parsed.largestStoryID(parseFile);
@@ -349,45 +593,18 @@ public class AllParser {
           // Now read the next story
           Vector<String> sentences = giga.nextStory();	  
 
-          GigaDoc doc = null;
-          GigaDoc depdoc = null;
-          GigaDoc nerdoc = null;
-          GigaDoc corefdoc = null;
+          ParseOutput out = null;
           try {
-            // Create the parse output file.
-            doc = new GigaDoc(parseFile, true);
-            // Create the dependency output file.
-            depdoc = new GigaDoc(depsFile, true);
-            nerdoc = new GigaDoc(nerFile, true);
-            // Create the coref output file.
-            corefdoc = new GigaDoc(corefFile, true);
+            // Open the parse, dependency, ner and coref output files.
+            out = ParseOutput.appendTo(_outputDir, file);
           } catch( Exception ex ) {
             System.out.println("Skipping to next file...");
             continue;
           }
 
           // Process the remaining sentences
-          int storyID = stoppedNum + 1;
-          while( sentences != null && sentences.size() > 0 ) {
-            System.out.println(giga.currentDoc() + "/" + giga.numDocs() + " " + giga.currentStory());
-
-            doc.openStory(giga.currentStory(), storyID);
-            depdoc.openStory(giga.currentStory(), storyID);
-            nerdoc.openStory(giga.currentStory(), storyID);
-            corefdoc.openStory(giga.currentStory(), storyID);
-            analyzeSentences(giga.currentStory(), giga.currentDoc(), sentences, doc, depdoc, corefdoc, nerdoc);
-            doc.closeStory();
-            depdoc.closeStory();
-            nerdoc.closeStory();
-            corefdoc.closeStory();
-
-            sentences = giga.nextStory();
-            storyID++;
-          }
-
-          doc.closeDoc();
-          depdoc.closeDoc();
-          nerdoc.closeDoc();
+          parseStories(giga, sentences, stoppedNum + 1, out);
+          out.commit();
         }
       }
     }
@@ -431,6 +648,7 @@ public class AllParser {
         // Special handling of a continuation parse.
         if( _continueFile != null ) {
           continueParsing(files, _continueFile);
+          shutdownWorkers();
           return;
         }
 
@@ -439,79 +657,59 @@ public class AllParser {
           if( validFilename(file) ) {
             //	  if( file.contains("_2005") ) {
 
-            String parseFile = _outputDir + File.separator + file + ".parse";
-            String depsFile = _outputDir + File.separator + file + ".deps";
-            String nerFile = _outputDir + File.separator + file + ".ner";
-            String corefFile = _outputDir + File.separator + file + ".events";
-
             Directory.createDirectory(_outputDir);
+            ParseOutput out = new ParseOutput(_outputDir, file);
             
-            if( GigaDoc.fileExists(parseFile) ) {
-              System.out.println("File exists: " + parseFile);
+            if( out.isDone() ) {
+              System.out.println("File exists: " + out.paths[0]);
             } else {
               System.out.println("file: " + file);
 
-              GigaDoc doc = null;
-              GigaDoc depdoc = null;
-              GigaDoc nerdoc = null;
-              GigaDoc corefdoc = null;
-
               try {
-                // Create the parse output file.
-                doc = new GigaDoc(parseFile);
-                // Create the dependency output file.
-                depdoc = new GigaDoc(depsFile);
-                nerdoc = new GigaDoc(nerFile);
-                // Create the dependency output file.
-                corefdoc = new GigaDoc(corefFile);
+                // Create (or reopen from a crashed run) the parse, dependency, ner and coref output files.
+                out.open();
               } catch( Exception ex ) {
+                ex.printStackTrace();
                 System.out.println("Skipping to next file...");
                 continue;
               }
 
               // Open the text file to parse.
-              DocumentHandler giga = null;
-              if( _docType == GIGAWORD )
-                giga = new GigawordHandler(_dataPath + File.separator + file);
-              else if( _docType == ENVIRO )
-                giga = new EnviroHandler(_dataPath + File.separator + file);
-              else if( _docType == MUC )
-                giga = new MUCHandler(_dataPath + File.separator + file);
-              else if( _docType == TEXT )
-                giga = new TextHandler(_dataPath + File.separator + file);
-              //						filterList);
-
-              // Read the documents in the text file.               else if( _docType == MUC )
-//              giga = new MUCHandler(_dataPath + File.separator + file);
+              DocumentHandler giga = openHandler(file);
               Vector<String> sentences = giga.nextStory();
               System.out.println("Allparser: got " + sentences);
               int storyID = 0;
-              while( sentences != null && sentences.size() > 0 ) {
-                System.out.println("in the while loop for " + file);
-                numDocs++;
-                System.out.println(numDocs + ": (" + giga.currentDoc() + "/" + giga.numDocs() + ") " + giga.currentStory());
-                if( numDocs % 100 == 0 ) Util.reportMemory();
-
-                //		  for( String sentence : sentences ) 
-                //		    System.out.println("**" + sentence + "**");
-
-                doc.openStory(giga.currentStory(), storyID);
-                depdoc.openStory(giga.currentStory(), storyID);
-                nerdoc.openStory(giga.currentStory(), storyID);
-                corefdoc.openStory(giga.currentStory(), storyID);
-                analyzeSentences(giga.currentStory(), storyID, sentences, doc, depdoc, corefdoc, nerdoc);
-                doc.closeStory();
-                depdoc.closeStory();
-                nerdoc.closeStory();
-                corefdoc.closeStory();
-
-                sentences = giga.nextStory();
-                storyID++;
+
+              // Skip the stories that a previous run already finished. Story IDs count
+              // the stories in the file, and names can repeat, so find the journaled
+              // story by its position and check its name there.
+              if( out.resumeStory() != null ) {
+                while( sentences != null && storyID < out.resumeStoryID() ) {
+                  sentences = giga.nextStory();
+                  storyID++;
+                }
+                if( sentences != null && out.resumeStory().equals(giga.currentStory()) ) {
+                  sentences = giga.nextStory();
+                  storyID++;
+                }
+                else {
+                  System.out.println("WARNING: story " + out.resumeStory() + " (" + out.resumeStoryID()
+                      + ") from the journal is not in " + file + ", parsing the file from the start.");
+                  try {
+                    out.restart();
+                  } catch( Exception ex ) {
+                    ex.printStackTrace();
+                    System.out.println("Skipping to next file...");
+                    continue;
+                  }
+                  giga = openHandler(file);
+                  sentences = giga.nextStory();
+                  storyID = 0;
+                }
               }
 
-              doc.closeDoc();
-              depdoc.closeDoc();
-              nerdoc.closeDoc();
+              numDocs += parseStories(giga, sentences, storyID, out);
+              out.commit();
             }
             numFiles++;
           }
@@ -519,6 +717,242 @@ public class AllParser {
       }
       else System.err.println("Path is not a directory: " + _dataPath);
     }
+    shutdownWorkers();
+  }
+
+  /**
+   * Opens a text file in the data directory with the handler for the input type.
+   */
+  private DocumentHandler openHandler(String file) {
+    String path = _dataPath + File.separator + file;
+    if( _docType == GIGAWORD )
+      return new GigawordHandler(path);
+    else if( _docType == ENVIRO )
+      return new EnviroHandler(path);
+    else if( _docType == MUC )
+      return new MUCHandler(path);
+    else
+      return new TextHandler(path);
+  }
+
+  /**
+   * Parses the given story and all remaining stories in the text handler, writing each
+   * to the four output docs and journaling it once written. With a worker pool, stories go through the parsing stages
+   * concurrently, but are still written in their original order so the output files
+   * stay aligned with each other.
+   * @param sentences The first story's sentences, already read from the handler.
+   * @param storyID The ID number to give the first story.
+   * @return The number of stories that were parsed.
+   */
+  private int parseStories(DocumentHandler giga, Vector<String> sentences, int storyID, ParseOutput out) {
+    if( _workers != null )
+      return parseStoriesStaged(giga, sentences, storyID, out);
+
+    GigaDoc doc = out.doc;
+    GigaDoc depdoc = out.depdoc;
+    GigaDoc nerdoc = out.nerdoc;
+    GigaDoc corefdoc = out.corefdoc;
+    int numDocs = 0;
+    while( sentences != null && sentences.size() > 0 ) {
+      numDocs++;
+      System.out.println(storyID + ": (" + giga.currentDoc() + "/" + giga.numDocs() + ") " + giga.currentStory());
+      if( numDocs % 100 == 0 ) Util.reportMemory();
+
+      doc.openStory(giga.currentStory(), storyID);
+      depdoc.openStory(giga.currentStory(), storyID);
+      nerdoc.openStory(giga.currentStory(), storyID);
+      corefdoc.openStory(giga.currentStory(), storyID);
+      analyzeSentences(giga.currentStory(), storyID, sentences, doc, depdoc, corefdoc, nerdoc);
+      doc.closeStory();
+      depdoc.closeStory();
+      nerdoc.closeStory();
+      corefdoc.closeStory();
+      out.storyWritten(storyID, giga.currentStory());
+
+      sentences = giga.nextStory();
+      storyID++;
+    }
+    return numDocs;
+  }
+
+  /**
+   * Runs the stories through a pipeline of stages connected by bounded queues:
+   *   parse  - waits for the worker pool to run CoreNLP on the story
+   *   trees  - prints the parse trees and finds NER spans
+   *   deps   - converts the trees to typed dependencies
+   *   coref  - maps coref mentions and verbs to the trees
+   *   write  - appends the story to the output files
+   * Each stage has its own thread, so writing one story overlaps with the dependencies
+   * and coref of the next, and all of these overlap with parsing.
+   * @return The number of stories that were parsed.
+   */
+  private int parseStoriesStaged(DocumentHandler giga, Vector<String> sentences, int storyID, ParseOutput out) {
+    int numDocs = 0;
+    List<PipelineStage<ParseJob>> stages = createStages(out);
+    for( PipelineStage<ParseJob> stage : stages )
+      stage.start();
+
+    try {
+      numDocs = queueStories(giga, sentences, storyID, stages);
+      stages.get(0).finish();
+      for( PipelineStage<ParseJob> stage : stages )
+        stage.join();
+    } catch( RuntimeException ex ) {
+      // A stage died, so the file isn't complete. Stop everything without committing it.
+      stages.get(0).abort(ex);
+      _workers.shutdownNow();
+      throw ex;
+    }
+    reportStages(stages);
+    return numDocs;
+  }
+
+  /**
+   * Reads the stories, starts parsing each one on the worker pool, and queues it to the stages.
+   * @return The number of stories queued.
+   */
+  private int queueStories(DocumentHandler giga, Vector<String> sentences, int storyID, List<PipelineStage<ParseJob>> stages) {
+    int numDocs = 0;
+    while( sentences != null && sentences.size() > 0 ) {
+      numDocs++;
+      System.out.println(storyID + ": (" + giga.currentDoc() + "/" + giga.numDocs() + ") " + giga.currentStory());
+      if( numDocs % 100 == 0 ) {
+        Util.reportMemory();
+        reportStages(stages);
+      }
+
+      final ParseJob job = new ParseJob(giga.currentStory(), storyID, sentences);
+      job.openStory();
+      job.annotated = _workers.submit(new Callable<Object>() {
+        public Object call() {
+          job.document = annotate(job.sentences);
+          return null;
+        }
+      });
+      // Blocks if the parse stage is full, so we don't read too far ahead.
+      stages.get(0).put(job);
+
+      sentences = giga.nextStory();
+      storyID++;
+    }
+    return numDocs;
+  }
+
+  /**
+   * Builds the stages that turn a story's CoreNLP annotation into the four output files.
+   * @return The stages in order, each one connected to the next.
+   */
+  private List<PipelineStage<ParseJob>> createStages(final ParseOutput out) {
+    int capacity = 2 * _numThreads + 2;
+    List<PipelineStage<ParseJob>> stages = new ArrayList<PipelineStage<ParseJob>>();
+
+    stages.add(new PipelineStage<ParseJob>("parse", capacity, ParseJob.END) {
+      protected void process(ParseJob job) {
+        try {
+          job.annotated.get();
+        } catch( ExecutionException ex ) {
+          // Errors like running out of memory stop the pipeline.
+          if( ex.getCause() instanceof Error ) throw (Error)ex.getCause();
+          ex.printStackTrace();
+          System.out.println("ERROR: parse failed on story " + job.name);
+        } catch( Exception ex ) {
+          ex.printStackTrace();
+          System.out.println("ERROR: parse failed on story " + job.name);
+        }
+      }
+    });
+    stages.add(new PipelineStage<ParseJob>("trees", capacity, ParseJob.END) {
+      protected void process(ParseJob job) {
+        if( job.document != null )
+          job.trees = addParsesAndNER(job.document, job.parse, job.ner);
+      }
+    });
+    stages.add(new PipelineStage<ParseJob>("deps", capacity, ParseJob.END) {
+      protected void process(ParseJob job) {
+        if( job.trees != null )
+          addDependencies(job.trees, job.deps);
+      }
+    });
+    stages.add(new PipelineStage<ParseJob>("coref", capacity, ParseJob.END) {
+      protected void process(ParseJob job) {
+        if( job.trees != null )
+          addCoref(job.document, job.trees, job.coref);
+      }
+    });
+    stages.add(new PipelineStage<ParseJob>("write", capacity, ParseJob.END) {
+      protected void process(ParseJob job) {
+        job.closeStory();
+        out.doc.addRaw(job.parse.bufferedText());
+        out.depdoc.addRaw(job.deps.bufferedText());
+        out.nerdoc.addRaw(job.ner.bufferedText());
+        out.corefdoc.addRaw(job.coref.bufferedText());
+        out.storyWritten(job.id, job.name);
+        // Let the annotation be garbage collected now.
+        job.document = null;
+        job.trees = null;
+      }
+    });
+
+    for( int i = 0; i < stages.size()-1; i++ )
+      stages.get(i).setNext(stages.get(i+1));
+    return stages;
+  }
+
+  private void reportStages(List<PipelineStage<ParseJob>> stages) {
+    for( PipelineStage<ParseJob> stage : stages )
+      System.out.println("Stage " + stage);
+  }
+
+  private void shutdownWorkers() {
+    if( _workers != null ) {
+      _workers.shutdown();
+      _workers = null;
+    }
+  }
+
+  /**
+   * One story moving through the parsing stages. Its parses, dependencies, NER and
+   * events are held in memory until the story can be appended to the output files.
+   */
+  private static class ParseJob {
+    // Marks the end of the stories.
+    static final ParseJob END = new ParseJob(null, -1, null);
+
+    final String name;
+    final int id;
+    final Vector<String> sentences;
+    final GigaDoc parse = new GigaDoc();
+    final GigaDoc deps = new GigaDoc();
+    final GigaDoc ner = new GigaDoc();
+    final GigaDoc coref = new GigaDoc();
+    Future<?> annotated;
+    // Set by the stages as the story moves along.
+    volatile Annotation document;
+    volatile List<Tree> trees;
+
+    ParseJob(String name, int id, Vector<String> sentences) {
+      this.name = name;
+      this.id = id;
+      this.sentences = sentences;
+    }
+
+    void openStory() {
+      parse.openStory(name, id);
+      deps.openStory(name, id);
+      ner.openStory(name, id);
+      coref.openStory(name, id);
+    }
+
+    void closeStory() {
+      parse.closeStory();
+      deps.closeStory();
+      ner.closeStory();
+      coref.closeStory();
+    }
+
+    public String toString() {
+      return name;
+    }
   }
 
   /**
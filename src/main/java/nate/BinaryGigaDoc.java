@@ -0,0 +1,273 @@
+package nate;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import nate.util.Directory;
+import nate.util.TreeOperator;
+import edu.stanford.nlp.ling.CoreAnnotations.CopyAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.Label;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeGraphNode;
+import edu.stanford.nlp.trees.TypedDependency;
+
+
+/**
+ * Writes a binary file of parse trees or dependencies, the binary version of the
+ * pseudo-xml .parse and .deps files that GigaDoc writes. BinaryGigaDocReader reads them
+ * back without any string parsing, which is much faster than PennTreeReader and
+ * GigaDocReader.stringToDep().
+ *
+ * File layout: the magic bytes "GDB1", a type byte (PARSES or DEPS), then one record per
+ * story. A record is its length in bytes (int) followed by
+ *   story name (UTF), story num (varint),
+ *   string table: count (varint) and each string (UTF),
+ *   body: trees or dependencies, with all labels and words given as string table IDs.
+ * The string table is per story, so each record can be decoded (or skipped) on its own.
+ *
+ * Trees are written in pre-order, each node as (string ID + 1, number of children).
+ * A null tree is a single 0. Dependencies are written per sentence as a count, then per
+ * dependency: relation ID, governor word ID, index and copy count, dependent word ID,
+ * index and copy count.
+ *
+ * Run main() on .parse and .deps files (or a directory of them) to convert them.
+ */
+public class BinaryGigaDoc {
+  public static final byte[] MAGIC = { 'G', 'D', 'B', '1' };
+  public static final int PARSES = 1;
+  public static final int DEPS = 2;
+  public static final String SUFFIX = ".bin";
+
+  DataOutputStream out;
+  int type;
+  // The story being built, written out when it is closed.
+  String storyName = null;
+  int storyNum;
+  Map<String,Integer> strings = new HashMap<String,Integer>();
+  List<String> stringList = new ArrayList<String>();
+  ByteArrayOutputStream body = new ByteArrayOutputStream();
+  DataOutputStream bodyOut = new DataOutputStream(body);
+  int numSentences = 0;
+  ByteArrayOutputStream sentences = new ByteArrayOutputStream();
+  DataOutputStream sentencesOut = new DataOutputStream(sentences);
+
+
+  /**
+   * @param path The file to create. Gzipped if it ends with .gz
+   * @param type PARSES or DEPS
+   */
+  public BinaryGigaDoc(String path, int type) throws IOException {
+    OutputStream stream = new FileOutputStream(path);
+    if( path.endsWith(".gz") ) stream = new GZIPOutputStream(stream, 65536);
+    out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+    out.write(MAGIC);
+    out.writeByte(type);
+    this.type = type;
+  }
+
+  public void openStory(String name, int num) {
+    storyName = name;
+    storyNum = num;
+    strings.clear();
+    stringList.clear();
+    sentences.reset();
+    numSentences = 0;
+  }
+
+  /**
+   * Adds one sentence's tree to the open story. The tree may be null.
+   */
+  public void addParse(Tree tree) throws IOException {
+    if( type != PARSES ) throw new IOException("Not a parse file.");
+    addTree(tree);
+    numSentences++;
+  }
+
+  private void addTree(Tree tree) throws IOException {
+    if( tree == null ) {
+      writeVarInt(sentencesOut, 0);
+      return;
+    }
+    // Roots read from "( (S ...))" have no label, stored as the empty string.
+    String label = tree.value();
+    writeVarInt(sentencesOut, stringID(label == null ? "" : label) + 1);
+    Tree[] children = tree.children();
+    writeVarInt(sentencesOut, children.length);
+    for( Tree child : children )
+      addTree(child);
+  }
+
+  /**
+   * Adds one sentence's dependencies to the open story. The dependencies may be null.
+   */
+  public void addDependencies(Collection<TypedDependency> deps) throws IOException {
+    if( type != DEPS ) throw new IOException("Not a dependency file.");
+    if( deps == null ) writeVarInt(sentencesOut, 0);
+    else {
+      writeVarInt(sentencesOut, deps.size());
+      for( TypedDependency dep : deps ) {
+        writeVarInt(sentencesOut, stringID(dep.reln().toString()));
+        addNode(dep.gov());
+        addNode(dep.dep());
+      }
+    }
+    numSentences++;
+  }
+
+  private void addNode(TreeGraphNode node) throws IOException {
+    Label label = node.label();
+    writeVarInt(sentencesOut, stringID(label.value()));
+    writeVarInt(sentencesOut, node.index());
+    Integer copies = null;
+    if( label instanceof CoreLabel ) copies = ((CoreLabel)label).get(CopyAnnotation.class);
+    writeVarInt(sentencesOut, copies == null ? 0 : copies);
+  }
+
+  private int stringID(String str) {
+    Integer id = strings.get(str);
+    if( id == null ) {
+      id = stringList.size();
+      strings.put(str, id);
+      stringList.add(str);
+    }
+    return id;
+  }
+
+  /**
+   * Writes the open story's record to the file.
+   */
+  public void closeStory() throws IOException {
+    if( storyName == null ) return;
+
+    body.reset();
+    bodyOut.writeUTF(storyName);
+    writeVarInt(bodyOut, storyNum);
+    writeVarInt(bodyOut, stringList.size());
+    for( String str : stringList )
+      bodyOut.writeUTF(str);
+    writeVarInt(bodyOut, numSentences);
+    sentences.writeTo(bodyOut);
+    bodyOut.flush();
+
+    out.writeInt(body.size());
+    body.writeTo(out);
+    storyName = null;
+  }
+
+  public void closeDoc() throws IOException {
+    closeStory();
+    out.close();
+  }
+
+  /**
+   * Writes a non-negative int in 1-5 bytes, 7 bits at a time, low bits first.
+   */
+  public static void writeVarInt(DataOutput out, int value) throws IOException {
+    while( (value & ~0x7F) != 0 ) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  /**
+   * @return True if the path looks like a binary file written by this class.
+   */
+  public static boolean isBinary(String path) {
+    return path != null && (path.endsWith(SUFFIX) || path.endsWith(SUFFIX + ".gz"));
+  }
+
+  /**
+   * Converts a .parse file into a binary parse file.
+   */
+  public static void convertParses(String inpath, String outpath) throws IOException {
+    GigawordHandler reader = new GigawordProcessed(inpath);
+    BinaryGigaDoc doc = new BinaryGigaDoc(outpath, PARSES);
+    List<String> parses = reader.nextStory();
+    while( parses != null ) {
+      doc.openStory(reader.currentStory(), reader.currentStoryNum());
+      for( Tree tree : TreeOperator.stringsToTrees(parses) )
+        doc.addParse(tree);
+      doc.closeStory();
+      parses = reader.nextStory();
+    }
+    doc.closeDoc();
+  }
+
+  /**
+   * Converts a .deps file into a binary dependency file.
+   */
+  public static void convertDependencies(String inpath, String outpath) throws IOException {
+    GigaDocReader reader = new GigaDocReader(inpath);
+    BinaryGigaDoc doc = new BinaryGigaDoc(outpath, DEPS);
+    while( reader.nextStory() ) {
+      doc.openStory(reader.currentStory(), reader.currentStoryNum());
+      for( List<TypedDependency> deps : reader.getDependencies() )
+        doc.addDependencies(deps);
+      doc.closeStory();
+    }
+    reader.close();
+    doc.closeDoc();
+  }
+
+  /**
+   * Converts one .parse or .deps file (possibly gzipped) to <name>.bin, through a temporary
+   * file so an interrupted conversion never leaves a truncated .bin to be read.
+   */
+  public static void convert(String path) throws IOException {
+    String name = path;
+    if( name.endsWith(".gz") ) name = name.substring(0, name.length()-3);
+    String outpath = name + SUFFIX;
+    if( Directory.fileExists(outpath) ) {
+      System.out.println("File exists: " + outpath);
+      return;
+    }
+
+    String tmppath = outpath + ParseOutput.TMP_SUFFIX;
+    if( name.endsWith(".parse") ) {
+      System.out.println("Converting " + path + " to " + outpath);
+      convertParses(path, tmppath);
+    }
+    else if( name.endsWith(".deps") ) {
+      System.out.println("Converting " + path + " to " + outpath);
+      convertDependencies(path, tmppath);
+    }
+    else {
+      System.out.println("Skipping unknown file type " + path);
+      return;
+    }
+    Files.move(new File(tmppath).toPath(), new File(outpath).toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * BinaryGigaDoc <file-or-dir>...
+   * Converts .parse and .deps files to binary, or every such file in a directory.
+   */
+  public static void main(String[] args) throws IOException {
+    for( String arg : args ) {
+      File file = new File(arg);
+      if( file.isDirectory() ) {
+        for( String name : Directory.getFilesSorted(arg) ) {
+          if( name.endsWith(".parse") || name.endsWith(".deps") || name.endsWith(".parse.gz") || name.endsWith(".deps.gz") )
+            convert(arg + File.separator + name);
+        }
+      }
+      else convert(arg);
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package nate;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import edu.stanford.nlp.ling.CoreAnnotations.CopyAnnotation;
+import edu.stanford.nlp.ling.HasIndex;
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.Word;
+import edu.stanford.nlp.trees.GrammaticalRelation;
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeFactory;
+import edu.stanford.nlp.trees.TreeGraphNode;
+import edu.stanford.nlp.trees.TypedDependency;
+
+
+/**
+ * Reads the binary parse and dependency files that BinaryGigaDoc writes. Dependencies
+ * come back through getDependencies() like GigaDocReader, and parse files fill getTrees().
+ * The trees are built the same way PennTreeReader builds them, so they match the trees
+ * from TreeOperator.stringsToTrees() on the text files.
+ */
+public class BinaryGigaDocReader extends GigaDocReader {
+  DataInputStream bin;
+  int type;
+  List<Tree> trees = new ArrayList<Tree>();
+  TreeFactory treeFactory = new LabeledScoredTreeFactory();
+
+
+  public BinaryGigaDocReader(String filename) {
+    super();
+    mainpath = filename;
+    openBinary(filename);
+  }
+
+  private void openBinary(String filename) {
+    try {
+      InputStream stream = new FileInputStream(filename);
+      if( filename.endsWith(".gz") ) stream = new GZIPInputStream(stream, 65536);
+      bin = new DataInputStream(new BufferedInputStream(stream, 65536));
+
+      byte[] magic = new byte[BinaryGigaDoc.MAGIC.length];
+      bin.readFully(magic);
+      for( int i = 0; i < magic.length; i++ ) {
+        if( magic[i] != BinaryGigaDoc.MAGIC[i] )
+          throw new IOException("Not a binary GigaDoc file: " + filename);
+      }
+      type = bin.readByte();
+    } catch( Exception ex ) {
+      System.err.println("Error opening " + filename);
+      ex.printStackTrace();
+      bin = null;
+    }
+  }
+
+  public void reset() {
+    close();
+    currentDoc = 0;
+    openBinary(mainpath);
+  }
+
+  public void close() {
+    if( bin != null ) {
+      try {
+        bin.close();
+      } catch( Exception ex ) { ex.printStackTrace(); }
+    }
+  }
+
+  /**
+   * Read the trees or dependencies of the next story.
+   */
+  public boolean nextStory() {
+    return nextStory(null, -1);
+  }
+
+  /**
+   * Skip ahead to the story whose name contains the given name.
+   * @param occurrence Which of the stories with the name to read, counted from the start
+   *                   of the file (0 is the first), or -1 for the next one.
+   */
+  public boolean nextStory(String storyName, int occurrence) {
+    currentDoc++;
+    // The file has no index, so pass the earlier stories of the name.
+    int skip = Math.max(occurrence, 0);
+    currentStory = null;
+    // New lists, callers may keep the previous story's.
+    alldeps = new ArrayList<List<TypedDependency>>();
+    trees = new ArrayList<Tree>();
+
+    if( bin != null ) {
+      try {
+        while( true ) {
+          byte[] record = readRecord();
+          if( record == null ) return false;
+          DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+          String name = in.readUTF();
+          if( storyName != null && name.indexOf(storyName) < 0 ) continue;
+          if( skip > 0 ) {
+            skip--;
+            continue;
+          }
+
+          currentStory = name;
+          currentStoryNum = readVarInt(in);
+          processStory(in);
+          return true;
+        }
+      } catch( Exception ex ) { ex.printStackTrace(); }
+    }
+    return false;
+  }
+
+  /**
+   * @return The bytes of the next story record, or null at the end of the file.
+   */
+  private byte[] readRecord() throws IOException {
+    int length;
+    try {
+      length = bin.readInt();
+    } catch( EOFException ex ) {
+      return null;
+    }
+    byte[] record = new byte[length];
+    bin.readFully(record);
+    return record;
+  }
+
+  private void processStory(DataInput in) throws IOException {
+    String[] strings = new String[readVarInt(in)];
+    for( int i = 0; i < strings.length; i++ )
+      strings[i] = in.readUTF();
+
+    int numSentences = readVarInt(in);
+    for( int sid = 0; sid < numSentences; sid++ ) {
+      if( type == BinaryGigaDoc.PARSES ) trees.add(readTree(in, strings, new int[] { 1 }));
+      else alldeps.add(readDependencies(in, strings));
+    }
+  }
+
+  /**
+   * Reads one tree in pre-order.
+   * @param leafIndex The index of the next leaf, counting from 1 as PennTreeReader does.
+   */
+  private Tree readTree(DataInput in, String[] strings, int[] leafIndex) throws IOException {
+    int id = readVarInt(in);
+    if( id == 0 ) return null;
+    String label = strings[id-1];
+    int numChildren = readVarInt(in);
+
+    if( numChildren == 0 ) {
+      Tree leaf = treeFactory.newLeaf(label);
+      if( leaf.label() instanceof HasIndex ) ((HasIndex)leaf.label()).setIndex(leafIndex[0]);
+      if( leaf.label() instanceof HasWord ) ((HasWord)leaf.label()).setWord(label);
+      leafIndex[0]++;
+      return leaf;
+    }
+
+    List<Tree> children = new ArrayList<Tree>(numChildren);
+    for( int i = 0; i < numChildren; i++ )
+      children.add(readTree(in, strings, leafIndex));
+    return treeFactory.newTreeNode(label.length() == 0 ? null : label, children);
+  }
+
+  private List<TypedDependency> readDependencies(DataInput in, String[] strings) throws IOException {
+    int numDeps = readVarInt(in);
+    List<TypedDependency> deps = new ArrayList<TypedDependency>(numDeps);
+    for( int i = 0; i < numDeps; i++ ) {
+      GrammaticalRelation rel = relation(strings[readVarInt(in)]);
+      TreeGraphNode gov = readNode(in, strings);
+      TreeGraphNode dep = readNode(in, strings);
+      deps.add(new TypedDependency(rel, gov, dep));
+    }
+    return deps;
+  }
+
+  private TreeGraphNode readNode(DataInput in, String[] strings) throws IOException {
+    TreeGraphNode node = new TreeGraphNode(new Word(strings[readVarInt(in)]));
+    node.label().setIndex(readVarInt(in));
+    int copies = readVarInt(in);
+    if( copies > 0 ) node.label().set(CopyAnnotation.class, copies);
+    return node;
+  }
+
+  private GrammaticalRelation relation(String name) {
+    GrammaticalRelation rel = stringToGramRels.get(name);
+    if( rel == null ) {
+      rel = GrammaticalRelation.valueOf(name);
+      stringToGramRels.put(name, rel);
+    }
+    return rel;
+  }
+
+  /**
+   * Reads an int written by BinaryGigaDoc.writeVarInt().
+   */
+  public static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = in.readByte();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while( (b & 0x80) != 0 );
+    return value;
+  }
+
+  /**
+   * @return The parse trees of the current story, if this is a parse file.
+   */
+  public List<Tree> getTrees() {
+    return trees;
+  }
+}
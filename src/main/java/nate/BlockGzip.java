@@ -0,0 +1,135 @@
+package nate;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import nate.util.Directory;
+
+
+/**
+ * Recompresses processed files (.parse, .deps, .events, .ner) as a series of gzip blocks
+ * that each hold whole stories, about BLOCK_SIZE bytes of text each. The blocks are
+ * concatenated gzip members, so the result is still a normal .gz file that gunzip and
+ * GZIPInputStream read from the start as before.
+ *
+ * Next to the file it writes a StoryIndex ("<file>.gz.idx") that gives each story's block.
+ * GigaDocReader and GigawordHandler use it to jump to a story by decompressing only from
+ * its block, and ProcessedCorpus uses it to split one large file across threads.
+ *
+ * BlockGzip <file-or-dir>...
+ */
+public class BlockGzip {
+  public static final int BLOCK_SIZE = 1 << 20;
+  // Lines are copied as bytes, so read and write them in a charset that keeps every byte.
+  private static final String CHARSET = "ISO-8859-1";
+
+
+  /**
+   * Writes the input file (plain or gzipped) to the output path as gzip blocks, and
+   * writes the output's StoryIndex.
+   */
+  public static void compress(String inpath, String outpath) throws IOException {
+    InputStream stream = new FileInputStream(inpath);
+    if( inpath.endsWith(".gz") ) stream = new GZIPInputStream(stream, 65536);
+    BufferedReader in = new BufferedReader(new InputStreamReader(stream, CHARSET), 65536);
+
+    FileOutputStream out = new FileOutputStream(outpath);
+    ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + BLOCK_SIZE/4);
+    Writer blockWriter = new OutputStreamWriter(block, CHARSET);
+    StoryIndex index = new StoryIndex();
+
+    try {
+      String line;
+      while( (line = in.readLine()) != null ) {
+        if( line.startsWith("<DOC ") ) {
+          // Only end a block between stories.
+          blockWriter.flush();
+          if( block.size() >= BLOCK_SIZE ) writeBlock(block, out);
+
+          if( line.indexOf("type=\"story") >= 0 ) {
+            int namestart = line.indexOf('"') + 1;
+            // The story starts in the next block written.
+            index.add(line.substring(namestart, line.indexOf('"', namestart)), out.getChannel().position());
+          }
+        }
+        blockWriter.write(line);
+        blockWriter.write('\n');
+      }
+      blockWriter.flush();
+      if( block.size() > 0 ) writeBlock(block, out);
+    } finally {
+      in.close();
+      out.close();
+    }
+
+    File outfile = new File(outpath);
+    index.save(new File(outpath + StoryIndex.SUFFIX), StoryIndex.header(outfile, true));
+  }
+
+  /**
+   * Compresses the buffered text as one gzip member at the end of the file.
+   */
+  private static void writeBlock(ByteArrayOutputStream block, FileOutputStream out) throws IOException {
+    GZIPOutputStream gz = new GZIPOutputStream(out, 65536);
+    block.writeTo(gz);
+    // Ends the member without closing the file.
+    gz.finish();
+    block.reset();
+  }
+
+  /**
+   * Converts one file to "<file>.gz" in blocks, replacing the file. A plain file is deleted
+   * with its StoryIndex once the blocks are in place, so directory scans don't read its
+   * stories twice.
+   */
+  public static void convert(String path) throws IOException {
+    String outpath = Directory.stripGZ(path) + ".gz";
+    if( Directory.fileExists(outpath + StoryIndex.SUFFIX) && StoryIndex.forFile(outpath) != null ) {
+      System.out.println("Already in blocks: " + outpath);
+      return;
+    }
+
+    System.out.println("Compressing " + path + " to " + outpath);
+    String tmppath = outpath + ParseOutput.TMP_SUFFIX;
+    compress(path, tmppath);
+    // Renaming keeps the length and modification time that the index checks.
+    Files.move(new File(tmppath + StoryIndex.SUFFIX).toPath(), new File(outpath + StoryIndex.SUFFIX).toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    Files.move(new File(tmppath).toPath(), new File(outpath).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+    if( !path.equals(outpath) ) {
+      Files.deleteIfExists(new File(path + StoryIndex.SUFFIX).toPath());
+      Files.delete(new File(path).toPath());
+    }
+  }
+
+  private static boolean isProcessedFile(String name) {
+    name = Directory.stripGZ(name);
+    return name.endsWith(".parse") || name.endsWith(".deps") || name.endsWith(".events") || name.endsWith(".ner");
+  }
+
+  public static void main(String[] args) throws IOException {
+    for( String arg : args ) {
+      File file = new File(arg);
+      if( file.isDirectory() ) {
+        for( String name : Directory.getFilesSorted(arg) ) {
+          if( isProcessedFile(name) )
+            convert(arg + File.separator + name);
+        }
+      }
+      else convert(arg);
+    }
+  }
+}
@@ -1,16 +1,21 @@
 package nate;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
+import nate.reading.ProcessedCorpus;
+import nate.reading.ProcessedData;
 import nate.util.Directory;
 import nate.util.HandleParameters;
+import nate.util.TokenClassifier;
 import nate.util.TreeOperator;
 import nate.util.WordNet;
 import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
@@ -42,8 +47,23 @@ import edu.stanford.nlp.trees.TreeFactory;
  * -outdir
  * The directory in which to save the .idf output files.
  *
+ * -threads
+ * Count on this many threads, each into its own IDF maps, and merge them before
+ * calculating the scores. The output is the same as counting on one thread.
+ *
+ * -shards
+ * Save the counts of each parse file to this directory, as <file>.idf and
+ * <file>-lemmas.idf, and merge them for the output. Files whose shards are newer than
+ * the file are not counted again, so adding files to a directory only counts the new ones.
+ * IDFMap's main() merges any shards into one IDF file. Not with -delta: the output is
+ * already the counts of every shard, old and new.
+ *
+ * -delta
+ * Add the counts to the output files already there, which must be from other documents,
+ * instead of replacing them. The IDF scores are calculated from the summed counts.
+ *
  */
-public class CalculateIDF {
+public class CalculateIDF implements StoryCounter {
   private String _parsesDir = "";
   private String _outputDir = ".";
   private String _outputPath = "tokens.idf";
@@ -53,12 +73,15 @@ public class CalculateIDF {
 
   private boolean _firstSentences = false;
   private boolean _ignorepostags = false;
+  private int _numThreads = 1;
+  private String _shardDir = null;
+  private boolean _delta = false;
   public WordNet _wordnet;
   private TreeFactory _treeFactory;
 
   // ugly globals...
-  private Map<String,Boolean> _seen = new HashMap<String, Boolean>(100);
-  private Map<String,Boolean> _seenLemmas = new HashMap<String, Boolean>(100);
+  private Set<String> _seen = new HashSet<String>(100);
+  private Set<String> _seenLemmas = new HashSet<String>(100);
 
   public IDFMap _idf;
   public IDFMap _idfLemmas;
@@ -88,6 +111,22 @@ public class CalculateIDF {
     if( params.hasFlag("-firstsentences") ) _firstSentences = true;
     System.out.println("firstsentences=" + _firstSentences);
 
+    if( params.hasFlag("-threads") ) _numThreads = Integer.parseInt(params.get("-threads"));
+    System.out.println("threads=" + _numThreads);
+    if( params.hasFlag("-delta") ) _delta = true;
+    System.out.println("delta=" + _delta);
+    if( params.hasFlag("-shards") ) {
+      _shardDir = params.get("-shards");
+      if( !Directory.fileExists(_shardDir) ) new File(_shardDir).mkdirs();
+      System.out.println("shards=" + _shardDir);
+    }
+    // The merged shards include the files counted before, so adding them to the old
+    // output would count those files twice.
+    if( _delta && _shardDir != null ) {
+      System.out.println("ERROR: -delta can't be used with -shards, which already only counts new files.");
+      System.exit(1);
+    }
+
     // Duplicate Gigaword files to ignore
     if( Directory.fileExists(_duplicatesPath))
       _duplicates = GigawordDuplicates.fromFile(_duplicatesPath);
@@ -104,6 +143,18 @@ public class CalculateIDF {
     _wordnet = wordnet;
   }
   
+  /**
+   * A worker for the -threads and -shards modes: counts with the settings of the given
+   * instance, into its own empty IDF maps.
+   */
+  private CalculateIDF(CalculateIDF settings) {
+    init();
+    _ignorepostags = settings._ignorepostags;
+    _firstSentences = settings._firstSentences;
+    _duplicates = settings._duplicates;
+    if( settings._wordnet != null ) _wordnet = new WordNet(settings._wordnet);
+  }
+
   private void init() {
     // Setup the IDF maps.
     _idf = new IDFMap(75000);
@@ -125,7 +176,7 @@ public class CalculateIDF {
   }
 
   public static String createKey(String token, char pos) {
-    return pos + "-" + token;
+    return TokenClassifier.key(token, pos);
   }
 
   public static String createKey(String token, int pos) {
@@ -145,6 +196,14 @@ public class CalculateIDF {
    * Leaves must be Nouns, Verbs or Adjectives to be counted
    */
   public void calculateTreeIDF(Tree tree, Tree fullTree) {
+    countLeaves(tree, (tree == fullTree ? null : tree.parent(fullTree)));
+  }
+
+  /**
+   * Counts the leaves under a tree, given its parent so that verbs find their particles
+   * without searching the full tree for it.
+   */
+  private void countLeaves(Tree tree, Tree parent) {
     // if tree is a leaf
     if( tree.isPreTerminal() ) {
       String wordString = tree.firstChild().value().toLowerCase();
@@ -152,10 +211,9 @@ public class CalculateIDF {
       // If we are counting every single token
       if( _ignorepostags ) {
         // Don't count numerals or weird starting punctuation tokens
-        if( wordString.matches("[a-zA-Z].*") && !wordString.matches(".*\\d.*") )  {
+        if( TokenClassifier.isWord(wordString) )  {
           // Count the documents the word appears in, for IDF score
-          if( !_seen.containsKey(wordString) ) {
-            _seen.put(wordString, true);
+          if( _seen.add(wordString) ) {
             // add the count of documents
             _idf.increaseDocCount(wordString);
           }
@@ -169,21 +227,17 @@ public class CalculateIDF {
 
         // if a verb, look for a particle
         if( normPostag == 'v' ) {
-//          System.out.println(wordString + " tree " + tree.parent(fullTree));
-          String particle = BasicEventAnalyzer.findParticleInTree(tree.parent(fullTree));
-//          System.out.println(wordString + " particle " + particle);
+          String particle = BasicEventAnalyzer.findParticleInTree(parent);
           if( particle != null ) wordString += "_" + particle.toLowerCase();
         }
 
         // Verbs, Nouns, Adjectives
         if( normPostag == 'v' || normPostag == 'n' || normPostag == 'j' || normPostag == 'r' ) {
-          String key = createKey(wordString, normPostag);
-
           // Don't count numerals or weird starting punctuation tokens
-          if( wordString.matches("[a-zA-Z].*") && !wordString.matches(".*\\d.*") )  {
+          if( TokenClassifier.isWord(wordString) )  {
+            String key = createKey(wordString, normPostag);
             // Count the documents the word appears in, for IDF score
-            if( !_seen.containsKey(key) ) {
-              _seen.put(key, true);
+            if( _seen.add(key) ) {
               // add the count of documents
               _idf.increaseDocCount(key);
             }
@@ -197,8 +251,7 @@ public class CalculateIDF {
             else if( normPostag == 'r' ) lemmaString = _wordnet.nounToLemma(wordString);
             if( lemmaString == null ) lemmaString = wordString;
             key = createKey(lemmaString, normPostag);
-            if( !_seenLemmas.containsKey(key) ) {
-              _seenLemmas.put(key, true);
+            if( _seenLemmas.add(key) ) {
               _idfLemmas.increaseDocCount(key);
             }
             _idfLemmas.increaseTermFrequency(key);
@@ -209,9 +262,8 @@ public class CalculateIDF {
 
     // else recurse on the tree
     else {
-      List<Tree> children = tree.getChildrenAsList();
-      for( Tree child : children ) 
-        calculateTreeIDF(child, fullTree);
+      for( Tree child : tree.children() ) 
+        countLeaves(child, tree);
     }
   }
 
@@ -246,6 +298,67 @@ public class CalculateIDF {
   }
 
 
+  /**
+   * Counts the words of one story from already decoded trees, unless it is a duplicate.
+   */
+  public void countStory(ProcessedData reader) {
+    if( _duplicates != null && _duplicates.contains(reader.currentStory()) )
+      System.out.println("Duplicate " + reader.currentStory());
+    else {
+      _idf.increaseDocCount();
+      _idfLemmas.increaseDocCount();
+
+      _seen.clear();
+      _seenLemmas.clear();
+      List<Tree> trees = reader.getTrees();
+      int sid = 0;
+      for( Tree tree : trees ) {
+        if( tree != null && (!_firstSentences || (trees.size() > 4 && sid < 2)) )
+          calculateTreeIDF(tree, tree);
+        sid++;
+      }
+    }
+  }
+
+  /**
+   * Writes the IDF scores to the output directory as a single file run does.
+   */
+  public void saveCounts() {
+    saveIDF("");
+  }
+
+  /**
+   * Computes the IDF scores and writes them to the output directory.
+   * @param suffix Added to the end of the file names.
+   */
+  public void saveIDF(String suffix) {
+    saveIDF(_idf, _outputDir + File.separator + _outputPath + suffix);
+    if( !_ignorepostags )
+      saveIDF(_idfLemmas, lemmaPath(suffix));
+  }
+
+  /**
+   * Calculates the map's scores and writes it, first adding the counts of the file that
+   * is already there if -delta is on. The map itself is not changed by the file.
+   */
+  private void saveIDF(IDFMap idf, String path) {
+    if( _delta && Directory.fileExists(path) ) {
+      System.out.println("Adding to the counts in " + path);
+      IDFMap total = new IDFMap(path);
+      total.merge(idf);
+      idf = total;
+    }
+    idf.calculateIDF();
+    idf.saveToFile(path);
+  }
+
+  /**
+   * @return The path of the lemma IDF file that saveIDF() writes.
+   */
+  public String lemmaPath(String suffix) {
+    return _outputDir + File.separator + _outputLemmaPath + suffix;
+  }
+
   /**
    * Checks if the input path is a directory or a file, and calls the appropriate
    * function to process it as such.
@@ -254,8 +367,12 @@ public class CalculateIDF {
     if( _parsesDir.length() > 0 ) {
       File dir = new File(_parsesDir);
 
+      if( _shardDir != null )
+        countShards(dir.isDirectory() ? "-all" : "");
+      else if( _numThreads > 1 )
+        countInParallel(parseFiles(), dir.isDirectory() ? "-all" : "");
       // If the path is a directory.
-      if( dir.isDirectory() )
+      else if( dir.isDirectory() )
         countDir();
       // If the path is a single file.
       else
@@ -281,50 +398,39 @@ public class CalculateIDF {
       Arrays.sort(files);
 
       for( String file : files ) {
-        // Only look at *.gz files
-        if( !file.startsWith(".") && file.contains("parse") &&
-            (file.endsWith(".gz") || file.endsWith(".parse")) ) {
+        // One version of each parse file: binary if it was converted.
+        if( ProcessedCorpus.isParseFileToRead(_parsesDir, file) ) {
           String year = file.substring(8,12);
           String month = "";
           if( file.length() > 14 ) file.substring(12,14);
           System.out.println("file: " + file);
 
           // Open the file
-          GigawordHandler giga = new GigawordProcessed(_parsesDir + File.separator + file);
-          Vector<String> sentences = giga.nextStory();
+          ProcessedData reader = new ProcessedData(_parsesDir + File.separator + file, null, null, null);
+          reader.nextStory();
 
           // Loop over each story
-          while( sentences != null ) {
-            if( _duplicates != null && _duplicates.contains(giga.currentStory()) )
-              System.out.println("Duplicate " + giga.currentStory());
+          while( reader.hasStory() ) {
+            if( _duplicates != null && _duplicates.contains(reader.currentStory()) )
+              System.out.println("Duplicate " + reader.currentStory());
             else {
               _idf.increaseDocCount();
               _idfLemmas.increaseDocCount();
 
               // Count the words in this story	      
-              calculateIDF( sentences );
+              calculateIDF( reader.getParseStrings() );
             }
-            sentences = giga.nextStory();
+            reader.nextStory();
           }
+          reader.close();
 
           // Save IDFs to file!
-          if( month.equals("12") ) {
-            _idf.calculateIDF();
-            _idf.saveToFile(_outputDir + File.separatorChar + _outputPath + "-" + year);
-            if( !_ignorepostags ) {
-              _idfLemmas.calculateIDF();
-              _idfLemmas.saveToFile(_outputDir + File.separatorChar + _outputLemmaPath + "-" + year);
-            }
-          }
+          if( month.equals("12") )
+            saveIDF("-" + year);
         }
       }
       
-      _idf.calculateIDF();
-      _idf.saveToFile(_outputDir + File.separatorChar + _outputPath + "-all");
-      if( !_ignorepostags ) {
-        _idfLemmas.calculateIDF();
-        _idfLemmas.saveToFile(_outputDir + File.separatorChar + _outputLemmaPath + "-all");
-      }
+      saveIDF("-all");
     }
   }
 
@@ -360,13 +466,129 @@ public class CalculateIDF {
       }
 
       // Save to file.
-      _idf.calculateIDF();
-      _idf.saveToFile(_outputDir + File.separator + _outputPath);
-      if( !_ignorepostags ) {
-        _idfLemmas.calculateIDF();
-        _idfLemmas.saveToFile(_outputDir + File.separator + _outputLemmaPath);
+      saveIDF("");
+    }
+  }
+
+  /**
+   * @return The parse files to count: the input file, or the parse files in the input
+   *         directory, in the form ProcessedCorpus takes them.
+   */
+  private List<String[]> parseFiles() {
+    List<String[]> files = new ArrayList<String[]>();
+    File dir = new File(_parsesDir);
+    if( dir.isDirectory() ) {
+      String names[] = dir.list();
+      Arrays.sort(names);
+      for( String file : names ) {
+        if( ProcessedCorpus.isParseFileToRead(_parsesDir, file) )
+          files.add(new String[] { _parsesDir + File.separator + file, null, null, null });
+      }
+    }
+    else files.add(new String[] { _parsesDir, null, null, null });
+    return files;
+  }
+
+  /**
+   * Counts the given files on _numThreads threads, each thread into its own IDF maps, and
+   * merges them into ours before saving.
+   * @param suffix Added to the end of the output file names.
+   */
+  private void countInParallel(List<String[]> files, String suffix) {
+    ProcessedCorpus corpus = new ProcessedCorpus(files);
+    corpus.setStoriesPerTask(CountTokenPairs.STORIES_PER_TASK);
+    corpus.setPrefetch(ProcessedData.DEFAULT_PREFETCH);
+
+    final CalculateIDF settings = this;
+    CalculateIDF counted = corpus.forEachDocument(new ProcessedCorpus.DocumentConsumer<CalculateIDF>() {
+      public CalculateIDF newAccumulator() {
+        return new CalculateIDF(settings);
+      }
+      public void document(CalculateIDF worker, ProcessedData reader) {
+        worker.countStory(reader);
+      }
+      public void merge(CalculateIDF into, CalculateIDF from) {
+        into.addCounts(from);
+      }
+    }, _numThreads);
+    addCounts(counted);
+    saveIDF(suffix);
+  }
+
+  /**
+   * Counts each parse file into its own shard in _shardDir, unless the shard is newer than
+   * the file, and merges all of the shards into ours before saving. The files are counted
+   * on _numThreads threads, each thread keeping separate IDF maps per file.
+   * @param suffix Added to the end of the output file names.
+   */
+  private void countShards(String suffix) {
+    List<String[]> toCount = new ArrayList<String[]>();
+    for( String[] paths : parseFiles() ) {
+      String shard = shardPath(paths[0], "");
+      if( Directory.fileExists(shard) && new File(shard).lastModified() >= new File(paths[0]).lastModified() &&
+          (_ignorepostags || Directory.fileExists(shardPath(paths[0], "-lemmas"))) ) {
+        System.out.println("Shard of " + paths[0] + " is up to date.");
+        _idf.merge(new IDFMap(shard));
+        if( !_ignorepostags ) _idfLemmas.merge(new IDFMap(shardPath(paths[0], "-lemmas")));
+      }
+      else toCount.add(paths);
+    }
+
+    if( toCount.size() > 0 ) {
+      ProcessedCorpus corpus = new ProcessedCorpus(toCount);
+      corpus.setStoriesPerTask(CountTokenPairs.STORIES_PER_TASK);
+      corpus.setPrefetch(ProcessedData.DEFAULT_PREFETCH);
+
+      // Each thread counts into one worker per file.
+      final CalculateIDF settings = this;
+      Map<String,CalculateIDF> counted = corpus.forEachDocument(new ProcessedCorpus.DocumentConsumer<Map<String,CalculateIDF>>() {
+        public Map<String,CalculateIDF> newAccumulator() {
+          return new HashMap<String,CalculateIDF>();
+        }
+        public void document(Map<String,CalculateIDF> workers, ProcessedData reader) {
+          CalculateIDF worker = workers.get(reader.parsePath());
+          if( worker == null ) {
+            worker = new CalculateIDF(settings);
+            workers.put(reader.parsePath(), worker);
+          }
+          worker.countStory(reader);
+        }
+        public void merge(Map<String,CalculateIDF> into, Map<String,CalculateIDF> from) {
+          for( Map.Entry<String,CalculateIDF> entry : from.entrySet() ) {
+            CalculateIDF worker = into.get(entry.getKey());
+            if( worker == null ) into.put(entry.getKey(), entry.getValue());
+            else worker.addCounts(entry.getValue());
+          }
+        }
+      }, _numThreads);
+
+      for( String[] paths : toCount ) {
+        CalculateIDF worker = counted.get(paths[0]);
+        // A file without stories still gets its empty shard.
+        if( worker == null ) worker = new CalculateIDF(this);
+        worker.calculateIDF();
+        worker._idf.saveToFile(shardPath(paths[0], ""));
+        if( !_ignorepostags ) worker._idfLemmas.saveToFile(shardPath(paths[0], "-lemmas"));
+        addCounts(worker);
       }
     }
+    saveIDF(suffix);
+  }
+
+  /**
+   * @return The shard file of a parse file's counts.
+   * @param kind "" for the tokens, "-lemmas" for the lemmas.
+   */
+  private String shardPath(String parseFile, String kind) {
+    return _shardDir + File.separator + new File(parseFile).getName() + kind + ".idf";
+  }
+
+  /**
+   * Merges the IDF counts of another instance into ours.
+   */
+  private void addCounts(CalculateIDF other) {
+    _idf.merge(other._idf);
+    _idfLemmas.merge(other._idfLemmas);
   }
 
   /**
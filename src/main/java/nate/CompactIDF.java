@@ -0,0 +1,289 @@
+package nate;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+
+/**
+ * The read-only counts of an IDF file in a few primitive arrays instead of an object per
+ * word: a string table of the words, parallel arrays of their term frequencies, document
+ * frequencies, IDF and information content, and an open-addressing hash table from the
+ * words' String.hashCode() to their index. Lookups compare a word against the table's
+ * UTF-8 bytes in place, so they allocate nothing.
+ *
+ * The arrays are read from a text .idf file into the heap, or memory-mapped from the
+ * binary form that main() converts it to. The binary file is the magic bytes "IDF1", the
+ * NUMDOCS value, the total term frequency, the number of words and of hash slots, then
+ * an offset per word into the UTF-8 bytes of the words, the bytes padded to 4, the four
+ * arrays, and the hash slots: each the word's hash code and its index plus one, or zeros
+ * if empty. The hash codes are next to the slots so that a probe reads one cache line.
+ */
+public class CompactIDF {
+  public static final byte[] MAGIC = { 'I', 'D', 'F', '1' };
+  public static final String SUFFIX = ".bin";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private int _numDocs;
+  private int _totalCorpusCount;
+  private int _numWords;
+  private IntBuffer _stringOffsets;
+  private ByteBuffer _strings;
+  private IntBuffer _frequencies, _docCounts, _slots;
+  private FloatBuffer _idfs, _ics;
+  private int _slotBits;
+
+
+  /**
+   * Maps a file written by save().
+   */
+  public CompactIDF(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 20);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if( !Arrays.equals(magic, MAGIC) )
+        throw new IOException("Not a binary IDF file: " + path);
+      _numDocs = header.getInt();
+      _totalCorpusCount = header.getInt();
+      _numWords = header.getInt();
+      int numSlots = header.getInt();
+
+      long pos = 20;
+      _stringOffsets = map(channel, pos, 4L * (_numWords+1)).asIntBuffer();
+      pos += 4L * (_numWords+1);
+      int numBytes = _stringOffsets.get(_numWords);
+      _strings = map(channel, pos, numBytes);
+      pos += padded(numBytes);
+      _frequencies = map(channel, pos, 4L * _numWords).asIntBuffer();
+      pos += 4L * _numWords;
+      _docCounts = map(channel, pos, 4L * _numWords).asIntBuffer();
+      pos += 4L * _numWords;
+      _idfs = map(channel, pos, 4L * _numWords).asFloatBuffer();
+      pos += 4L * _numWords;
+      _ics = map(channel, pos, 4L * _numWords).asFloatBuffer();
+      pos += 4L * _numWords;
+      _slots = map(channel, pos, 8L * numSlots).asIntBuffer();
+      _slotBits = Integer.numberOfTrailingZeros(numSlots);
+    } finally {
+      // The mappings stay valid after the file is closed.
+      file.close();
+    }
+  }
+
+  /**
+   * Counts in the heap, from parallel arrays of numWords words.
+   */
+  private CompactIDF(int numDocs, int numWords, String[] words, int[] frequencies, int[] docCounts,
+      float[] idfs, float[] ics) {
+    _numDocs = numDocs;
+    _numWords = numWords;
+    _frequencies = IntBuffer.wrap(frequencies, 0, numWords).slice();
+    _docCounts = IntBuffer.wrap(docCounts, 0, numWords).slice();
+    _idfs = FloatBuffer.wrap(idfs, 0, numWords).slice();
+    _ics = FloatBuffer.wrap(ics, 0, numWords).slice();
+
+    int[] offsets = new int[numWords+1];
+    byte[][] bytes = new byte[numWords][];
+    for( int i = 0; i < numWords; i++ ) {
+      bytes[i] = words[i].getBytes(UTF8);
+      offsets[i+1] = offsets[i] + bytes[i].length;
+      _totalCorpusCount += frequencies[i];
+    }
+    byte[] strings = new byte[offsets[numWords]];
+    for( int i = 0; i < numWords; i++ )
+      System.arraycopy(bytes[i], 0, strings, offsets[i], bytes[i].length);
+    _stringOffsets = IntBuffer.wrap(offsets);
+    _strings = ByteBuffer.wrap(strings);
+
+    // At most half of the slots are used.
+    _slotBits = 1;
+    while( (1 << _slotBits) < 2 * numWords ) _slotBits++;
+    int mask = (1 << _slotBits) - 1;
+    int[] slots = new int[2 << _slotBits];
+    for( int i = 0; i < numWords; i++ ) {
+      int hash = words[i].hashCode();
+      int slot = slot(hash);
+      // A word repeated in the file keeps its last counts, as IDFMap.fromFile() did.
+      while( slots[2*slot+1] != 0 && !words[slots[2*slot+1]-1].equals(words[i]) )
+        slot = (slot + 1) & mask;
+      slots[2*slot] = hash;
+      slots[2*slot+1] = i + 1;
+    }
+    _slots = IntBuffer.wrap(slots);
+  }
+
+  private static ByteBuffer map(FileChannel channel, long pos, long length) throws IOException {
+    if( length > Integer.MAX_VALUE )
+      throw new IOException("IDF file section too large to map: " + length);
+    return channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+  }
+
+  private static int padded(int numBytes) {
+    return (numBytes + 3) & ~3;
+  }
+
+  /**
+   * Reads a text IDF file as IDFMap.saveToFile() writes it.
+   */
+  public static CompactIDF fromText(String path) throws IOException {
+    int numDocs = 0;
+    int size = 0;
+    String[] words = new String[1024];
+    int[] frequencies = new int[1024], docCounts = new int[1024];
+    float[] idfs = new float[1024], ics = new float[1024];
+
+    BufferedReader in = new BufferedReader(new FileReader(path), 65536);
+    String line = null;
+    try {
+      line = in.readLine();
+      // number of docs
+      numDocs = Integer.parseInt(line.substring(line.indexOf(' ')+1));
+      // word list
+      while( (line = in.readLine()) != null ) {
+        if( size == words.length ) {
+          words = Arrays.copyOf(words, 2 * size);
+          frequencies = Arrays.copyOf(frequencies, 2 * size);
+          docCounts = Arrays.copyOf(docCounts, 2 * size);
+          idfs = Arrays.copyOf(idfs, 2 * size);
+          ics = Arrays.copyOf(ics, 2 * size);
+        }
+        int tab1 = line.indexOf('\t');
+        int tab2 = line.indexOf('\t', tab1+1);
+        int tab3 = line.indexOf('\t', tab2+1);
+        int tab4 = line.indexOf('\t', tab3+1);
+        words[size] = line.substring(0, tab1);
+        frequencies[size] = Integer.parseInt(line.substring(tab1+1, tab2));
+        docCounts[size] = Integer.parseInt(line.substring(tab2+1, tab3));
+        if( tab4 < 0 ) idfs[size] = Float.parseFloat(line.substring(tab3+1));
+        else {
+          idfs[size] = Float.parseFloat(line.substring(tab3+1, tab4));
+          int tab5 = line.indexOf('\t', tab4+1);
+          ics[size] = Float.parseFloat(tab5 < 0 ? line.substring(tab4+1) : line.substring(tab4+1, tab5));
+        }
+        size++;
+      }
+    } catch( RuntimeException ex ) {
+      throw new IOException("Bad line in " + path + ": " + line, ex);
+    } finally {
+      in.close();
+    }
+    return new CompactIDF(numDocs, size, words, frequencies, docCounts, idfs, ics);
+  }
+
+  public int numDocs() { return _numDocs; }
+  public int totalCorpusCount() { return _totalCorpusCount; }
+  public int size() { return _numWords; }
+
+  public int frequency(int index) { return _frequencies.get(index); }
+  public int docCount(int index) { return _docCounts.get(index); }
+  public float idf(int index) { return _idfs.get(index); }
+  public float informationContent(int index) { return _ics.get(index); }
+
+  public String word(int index) {
+    int start = _stringOffsets.get(index), end = _stringOffsets.get(index+1);
+    byte[] bytes = new byte[end - start];
+    for( int i = 0; i < bytes.length; i++ ) bytes[i] = _strings.get(start + i);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * @return The word's index, or -1 if it isn't in the file.
+   */
+  public int index(String word) {
+    int hash = word.hashCode();
+    int mask = (1 << _slotBits) - 1;
+    for( int slot = slot(hash); ; slot = (slot + 1) & mask ) {
+      int entry = _slots.get(2*slot+1);
+      if( entry == 0 ) return -1;
+      if( _slots.get(2*slot) == hash && matches(entry-1, word) ) return entry-1;
+    }
+  }
+
+  private int slot(int hash) {
+    return (hash * 0x9E3779B9) >>> (32 - _slotBits);
+  }
+
+  /**
+   * @return True if the word's UTF-8 encoding is the string table entry.
+   */
+  private boolean matches(int index, String word) {
+    int pos = _stringOffsets.get(index), end = _stringOffsets.get(index+1);
+    for( int i = 0; i < word.length(); i++ ) {
+      int ch = word.charAt(i);
+      if( ch < 0x80 ) {
+        if( pos >= end || _strings.get(pos++) != ch ) return false;
+        continue;
+      }
+      if( Character.isHighSurrogate((char)ch) && i+1 < word.length() && Character.isLowSurrogate(word.charAt(i+1)) )
+        ch = Character.toCodePoint((char)ch, word.charAt(++i));
+      int numBytes = (ch < 0x800 ? 2 : (ch < 0x10000 ? 3 : 4));
+      if( end - pos < numBytes ) return false;
+      // The lead byte, then six bits per continuation byte.
+      int lead = (numBytes == 2 ? 0xC0 : (numBytes == 3 ? 0xE0 : 0xF0)) | (ch >>> (6 * (numBytes-1)));
+      if( (_strings.get(pos++) & 0xFF) != lead ) return false;
+      for( int shift = 6 * (numBytes-2); shift >= 0; shift -= 6 )
+        if( (_strings.get(pos++) & 0xFF) != (0x80 | ((ch >>> shift) & 0x3F)) ) return false;
+    }
+    return pos == end;
+  }
+
+  /**
+   * Writes the binary form that the mapping constructor reads.
+   */
+  public void save(String path) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 65536));
+    out.write(MAGIC);
+    out.writeInt(_numDocs);
+    out.writeInt(_totalCorpusCount);
+    out.writeInt(_numWords);
+    out.writeInt(1 << _slotBits);
+
+    for( int i = 0; i <= _numWords; i++ ) out.writeInt(_stringOffsets.get(i));
+    int numBytes = _stringOffsets.get(_numWords);
+    for( int i = 0; i < numBytes; i++ ) out.writeByte(_strings.get(i));
+    for( int i = numBytes; i < padded(numBytes); i++ ) out.writeByte(0);
+    for( int i = 0; i < _numWords; i++ ) out.writeInt(_frequencies.get(i));
+    for( int i = 0; i < _numWords; i++ ) out.writeInt(_docCounts.get(i));
+    for( int i = 0; i < _numWords; i++ ) out.writeFloat(_idfs.get(i));
+    for( int i = 0; i < _numWords; i++ ) out.writeFloat(_ics.get(i));
+    for( int i = 0; i < _slots.capacity(); i++ ) out.writeInt(_slots.get(i));
+    out.close();
+  }
+
+  /**
+   * @return The binary file to read for the text IDF file: the path itself if it is a
+   *         binary file, or its converted file if that is newer than it. Null if neither.
+   */
+  public static String binaryPath(String path) {
+    if( path.endsWith(SUFFIX) ) return path;
+    File text = new File(path);
+    File binary = new File(path + SUFFIX);
+    if( binary.exists() && binary.lastModified() >= text.lastModified() ) return binary.getPath();
+    return null;
+  }
+
+  /**
+   * CompactIDF <idf-file>...
+   * Converts text IDF files to binary, each to <file>.bin
+   */
+  public static void main(String[] args) throws IOException {
+    for( String path : args ) {
+      System.out.println("Converting " + path + " to " + path + SUFFIX);
+      fromText(path).save(path + SUFFIX);
+    }
+  }
+}
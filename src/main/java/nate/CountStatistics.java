@@ -0,0 +1,243 @@
+package nate;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nate.args.CountArgumentTypes;
+import nate.reading.ProcessedCorpus;
+import nate.reading.ProcessedData;
+import nate.util.Directory;
+import nate.util.HandleParameters;
+import nate.util.Util;
+
+
+/**
+ * Counts the corpus statistics of runall.sh in as few reads of the processed files as
+ * possible. Each story is decoded once per pass and given to every counter, and each
+ * counter writes its usual output file. The counters are:
+ *   idf        - CalculateIDF: tokens.idf and tokens-lemmas.idf
+ *   verbdep    - CountVerbDepCorefs: dep-coref-lemmas.counts
+ *   pairs      - CountTokenPairs -type base, by distance: token-pairs-lemmas.counts-dist
+ *   corefpairs - CountTokenPairs -type vbnn -withcoref: token-pairs-lemmas.counts
+ *   args       - CountArgumentTypes: argcounts-verbs.arg and argcounts-pairs.arg
+ *
+ * The pair and argument counters skip tokens by their IDF scores, so without -idf this
+ * reads the files twice: first counting the IDF and the verb deps, then the rest with the
+ * new lemma IDF file. With -idf all of them count in one read, and idf is skipped.
+ * The counters use the same settings as the separate steps in runall.sh.
+ *
+ * CountStatistics -output <dir> -parsed <file> -deps <file> -events <file> -ner <file>
+ *
+ * -idf
+ * The lemma IDF file for the pair and argument counts, instead of counting it.
+ *
+ * -idfdir
+ * Count IDF over all parse files in this directory, like CalculateIDF given the directory,
+ * and write it with the -all suffix. Only the input file is counted for the others.
+ *
+ * -counters
+ * Comma-separated counters to run, all of them by default.
+ *
+ * -delta
+ * Count only new documents and add them to the output files already in the -output
+ * directory, summing their NUMDOCS. The IDF scores are recalculated from the summed counts,
+ * and the pair and argument counts skip tokens by the new scores.
+ */
+public class CountStatistics {
+  public static final String[] COUNTERS = { "idf", "verbdep", "pairs", "corefpairs", "args" };
+  // The value of a flag without one in args(), the empty value HandleParameters gives
+  // such flags, so the counters see it with hasFlag().
+  private static final String SET = "";
+  String _parsePath;
+  String _depsPath;
+  String _eventsPath;
+  String _nerPath;
+  String _outDirectory = ".";
+  String _idfPath = null;
+  String _idfDir = null;
+  boolean _delta = false;
+  Set<String> _counters = new HashSet<String>(Arrays.asList(COUNTERS));
+
+
+  public CountStatistics(String[] args) {
+    HandleParameters params = new HandleParameters(args);
+    _parsePath = params.get("-parsed");
+    _depsPath = params.get("-deps");
+    _eventsPath = params.get("-events");
+    _nerPath = params.get("-ner");
+
+    if( params.hasFlag("-output") ) _outDirectory = params.get("-output");
+    if( !Directory.fileExists(_outDirectory) ) new File(_outDirectory).mkdirs();
+    if( params.hasFlag("-idf") ) _idfPath = params.get("-idf");
+    if( params.hasFlag("-idfdir") ) _idfDir = params.get("-idfdir");
+    if( params.hasFlag("-delta") ) _delta = true;
+    if( params.hasFlag("-counters") )
+      _counters = new HashSet<String>(Arrays.asList(params.get("-counters").split(",")));
+    System.out.println("counters\t" + _counters);
+
+    for( String counter : _counters ) {
+      if( !Arrays.asList(COUNTERS).contains(counter) ) {
+        System.out.println("Unknown counter: " + counter);
+        System.exit(-1);
+      }
+    }
+    if( _delta && _idfDir != null ) {
+      System.out.println("-delta adds only the input file's counts, so it can't be used with -idfdir.");
+      System.exit(-1);
+    }
+    if( _idfPath == null && !_counters.contains("idf") &&
+        (_counters.contains("pairs") || _counters.contains("corefpairs") || _counters.contains("args")) ) {
+      System.out.println("The pair and argument counts need -idf or the idf counter.");
+      System.exit(-1);
+    }
+  }
+
+  /**
+   * Runs the counters, in one or two reads of the input files.
+   */
+  public void process() {
+    List<StoryCounter> first = new ArrayList<StoryCounter>();
+    CalculateIDF idf = null;
+    if( _counters.contains("idf") ) {
+      if( _idfPath != null ) System.out.println("Using " + _idfPath + " instead of counting IDF.");
+      else {
+        List<String> idfArgs = new ArrayList<String>(Arrays.asList(args("-outdir", _outDirectory, "-delta", delta())));
+        idfArgs.add(_parsePath);
+        idf = new CalculateIDF(idfArgs.toArray(new String[idfArgs.size()]));
+        first.add(idf);
+      }
+    }
+    if( _counters.contains("verbdep") )
+      first.add(new CountVerbDepCorefs(args("-output", _outDirectory, "-deps", _depsPath, "-events", _eventsPath,
+          "-parsed", _parsePath, "-ner", _nerPath, "-delta", delta())));
+
+    // All the counters at once, with the given IDF.
+    if( idf == null ) {
+      first.addAll(idfCounters(_idfPath));
+      count(first);
+      save(first);
+    }
+    // The counters that need IDF read the files again, once it is saved.
+    else {
+      count(first);
+      first.remove(idf);
+      save(first);
+      String suffix = "";
+      if( _idfDir != null ) {
+        countOtherIDF(idf);
+        suffix = "-all";
+      }
+      idf.saveIDF(suffix);
+      List<StoryCounter> second = idfCounters(idf.lemmaPath(suffix));
+      count(second);
+      save(second);
+    }
+  }
+
+  /**
+   * @return The counters that skip tokens by IDF, reading the given lemma IDF file.
+   */
+  private List<StoryCounter> idfCounters(String idfPath) {
+    List<StoryCounter> counters = new ArrayList<StoryCounter>();
+    if( _counters.contains("pairs") )
+      counters.add(new CountTokenPairs(args("-type", "base", "-idfcut", ".4", "-doccut", "5", "-dependents", SET,
+          "-fullprep", SET, "-output", _outDirectory, "-idf", idfPath, "-deps", _depsPath, "-parsed", _parsePath,
+          "-delta", delta())));
+    if( _counters.contains("corefpairs") )
+      counters.add(new CountTokenPairs(args("-type", "vbnn", "-idfcut", "0.0", "-doccut", "5", "-dependents", SET,
+          "-fullprep", SET, "-nodistance", SET, "-withcoref", SET, "-output", _outDirectory, "-idf", idfPath,
+          "-deps", _depsPath, "-parsed", _parsePath, "-events", _eventsPath, "-delta", delta())));
+    if( _counters.contains("args") )
+      counters.add(new CountArgumentTypes(args("-idf", idfPath, "-output", _outDirectory, "-deps", _depsPath,
+          "-events", _eventsPath, "-parsed", _parsePath, "-ner", _nerPath, "-delta", delta())));
+    return counters;
+  }
+
+  /**
+   * Reads the input files once, giving each story to all of the counters.
+   */
+  private void count(List<StoryCounter> counters) {
+    if( counters.size() == 0 ) return;
+    System.out.println("Counting " + counters.size() + " statistics in " + _parsePath);
+    ProcessedData reader = new ProcessedData(_parsePath, _depsPath, _eventsPath, _nerPath, ProcessedData.DEFAULT_PREFETCH);
+    reader.nextStory();
+    while( reader.hasStory() ) {
+      for( StoryCounter counter : counters )
+        counter.countStory(reader);
+      reader.nextStory();
+    }
+    reader.close();
+    Util.reportMemory();
+  }
+
+  private void save(List<StoryCounter> counters) {
+    for( StoryCounter counter : counters )
+      counter.saveCounts();
+  }
+
+  /**
+   * Adds the IDF counts of the parse files in the -idfdir directory other than the input.
+   * Each file is read in one version, and no version of the input is read.
+   */
+  private void countOtherIDF(CalculateIDF idf) {
+    Path input = unconverted(new File(_parsePath));
+    for( String file : Directory.getFilesSorted(_idfDir) ) {
+      if( ProcessedCorpus.isParseFileToRead(_idfDir, file) ) {
+        File path = new File(_idfDir, file);
+        if( unconverted(path).equals(input) ) continue;
+        System.out.println("IDF file: " + path);
+        ProcessedData reader = new ProcessedData(path.getPath(), null, null, null, ProcessedData.DEFAULT_PREFETCH);
+        reader.nextStory();
+        while( reader.hasStory() ) {
+          idf.countStory(reader);
+          reader.nextStory();
+        }
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * @return The absolute path without the gzip and binary extensions, which is the same
+   *         for every version of a parse file.
+   */
+  private static Path unconverted(File file) {
+    String path = Directory.stripGZ(file.getPath());
+    if( BinaryGigaDoc.isBinary(path) ) path = Directory.stripGZ(path.substring(0, path.length() - BinaryGigaDoc.SUFFIX.length()));
+    return new File(path).toPath().toAbsolutePath().normalize();
+  }
+
+  /**
+   * @return The value of the -delta flag for args(): set, or null to leave it out.
+   */
+  private String delta() {
+    return (_delta ? SET : null);
+  }
+
+  /**
+   * @param flagsAndValues Each flag followed by its value, or by SET for a flag without one.
+   *                       Flags whose value is null are left out.
+   * @return The command line arguments.
+   */
+  private static String[] args(String... flagsAndValues) {
+    List<String> args = new ArrayList<String>();
+    for( int i = 0; i < flagsAndValues.length; i += 2 ) {
+      String value = flagsAndValues[i+1];
+      if( value == null ) continue;
+      args.add(flagsAndValues[i]);
+      if( value.length() > 0 ) args.add(value);
+    }
+    return args.toArray(new String[args.size()]);
+  }
+
+
+  public static void main(String[] args) {
+    CountStatistics stats = new CountStatistics(args);
+    stats.process();
+  }
+}
@@ -5,10 +5,12 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -18,13 +20,20 @@ import java.util.Vector;
 
 import nate.EntityMention;
 import nate.args.CountArgumentTypes;
+import nate.reading.ProcessedCorpus;
 import nate.reading.ProcessedData;
 import nate.util.Directory;
 import nate.util.HandleParameters;
 import nate.util.Ling;
+import nate.util.MappedPairCounts;
+import nate.util.PairCountRuns;
+import nate.util.PairCounts;
 import nate.util.SortableScore;
+import nate.util.PairSketch;
+import nate.util.TokenClassifier;
 import nate.util.TreeOperator;
 import nate.util.Util;
+import nate.util.Vocabulary;
 import nate.util.WordNet;
 import nate.util.WordPosition;
 import edu.stanford.nlp.trees.Tree;
@@ -61,13 +70,46 @@ import edu.stanford.nlp.trees.TypedDependency;
  * -nodistance
  * Disables counting by distance within a doc, and simply counts by existence in the same doc.
  * 
+ * -window
+ * When counting by distance, only count pairs of tokens at most this many sentences apart.
+ * All pairs are counted by default.
+ * 
  * -withcoref
  * Count pairs with coreferring args only.
  * 
  * -output
  * The directory to write the token counts file to.
+ *
+ * -threads
+ * Count on this many threads, each into its own count tables, and add them together
+ * before each trim and save, giving the same counts as a serial run. Memory grows
+ * with the number of threads.
+ *
+ * -spill
+ * Keep at most this many megabytes of pair counts in memory. Beyond that the counts are
+ * written to sorted runs on disk, and the runs are merged into exact totals when saving.
+ *
+ * -spilldir
+ * The directory for the spilled runs, the output directory by default.
+ *
+ * -sketch
+ * Count pairs approximately in bounded memory, keeping only this many of the most
+ * frequent pairs. Counts are estimated by a Count-Min sketch, never too low and at most
+ * -sketcheps times the total count too high, except with probability -sketchdelta.
+ * The output is the usual counts file, which pairCountsToPMI() reads as it is.
+ *
+ * -sketcheps
+ * The sketch's error bound, a fraction of the total count. Default 0.0001.
+ *
+ * -sketchdelta
+ * The probability of a sketch count outside the error bound. Default 0.001.
+ *
+ * -delta
+ * Add the counts, and NUMDOCS, to the output file already there instead of replacing it.
+ * Its counts must be from other documents. Pairs that an earlier run trimmed from the
+ * file are not in it to add to, so only the untrimmed -withcoref counts add up exactly.
  */
-public class CountTokenPairs {
+public class CountTokenPairs implements StoryCounter {
   String _depsPath;
   String _parsePath;
   String _corefPath;
@@ -79,9 +121,21 @@ public class CountTokenPairs {
   boolean _includeDependents = false;
   boolean _includeRelations = false;
   boolean _countByDistance = true;
+  int _distanceWindow = -1; // the most sentences apart to count pairs by distance, -1 for all
   boolean _withCoref = false;
   boolean _fullPrep = false; // true if you want "p_during" and not just "p"
   boolean _countObjectCollocations = false; // true if you want to count collocations too
+  int _numThreads = 1;
+  boolean _delta = false; // true to add to the existing output file
+  // Pair counts spilled to disk, and the table size that triggers a spill.
+  PairCountRuns _runs = null;
+  long _spillBytes = 0;
+  // Approximate counts of the most frequent pairs, instead of exact counts.
+  PairSketch _sketch = null;
+  // Indexed files are split into tasks of this many stories for the threads.
+  public static final int STORIES_PER_TASK = 1000;
+  // Pair weights by sentence distance, ending with the lowest weight that all farther pairs get.
+  private static final float[] DISTANCE_WEIGHTS = distanceWeights();
   
   public static final int BASE = 0;
   public static final int VERBS = 1;
@@ -95,9 +149,15 @@ public class CountTokenPairs {
   private String _duplicatesPath = "duplicates";
   private Set<String> _duplicates;
   Map<String,Map<String,Integer>> _counts;
-  Map<String,Map<String,Integer>> _countsLemmas;
+  PairCounts _countsLemmas;
   Map<String,Map<String,Float>> _countsFloat;
-  Map<String,Map<String,Float>> _countsLemmasFloat;
+  // A binary counts file read in place of _counts or _countsFloat.
+  MappedPairCounts _mapped = null;
+  // Summed in doubles, which add the float distance weights exactly, so the totals
+  // don't depend on the order stories are counted in.
+  PairCounts _countsLemmasFloat;
+  // Token IDs of the two pair count tables.
+  Vocabulary _vocab;
   IDFMap _idf; // lemma idf
   // Individual tokens must have at least this IDF to be counted in a pair.
   float _idfCutoff = 0.9f;
@@ -151,6 +211,10 @@ public class CountTokenPairs {
       _countByDistance = false;
     System.out.println("countByDistance\t" + _countByDistance);
 
+    if( params.hasFlag("-window") )
+      _distanceWindow = Integer.parseInt(params.get("-window"));
+    System.out.println("window\t" + _distanceWindow);
+
     if( params.hasFlag("-output") )
       _outDirectory = params.get("-output");
     else {
@@ -165,21 +229,48 @@ public class CountTokenPairs {
     if( params.hasFlag("-doccut") ) 
       _docCutoff = Integer.parseInt(params.get("-doccut"));
     System.out.println("doccut\t" + _docCutoff);
+
+    if( params.hasFlag("-threads") )
+      _numThreads = Integer.parseInt(params.get("-threads"));
+    System.out.println("threads\t" + _numThreads);
+
+    if( params.hasFlag("-delta") ) _delta = true;
+    System.out.println("delta\t" + _delta);
+
+    if( params.hasFlag("-spill") ) {
+      _spillBytes = Long.parseLong(params.get("-spill")) * 1024 * 1024;
+      String spillDir = params.hasFlag("-spilldir") ? params.get("-spilldir") : _outDirectory;
+      _runs = new PairCountRuns(new File(spillDir), _countByDistance);
+    }
+    System.out.println("spillMB\t" + (_spillBytes / (1024 * 1024)));
+
+    if( params.hasFlag("-sketch") ) {
+      double epsilon = params.hasFlag("-sketcheps") ? Double.parseDouble(params.get("-sketcheps")) : 0.0001;
+      double delta = params.hasFlag("-sketchdelta") ? Double.parseDouble(params.get("-sketchdelta")) : 0.001;
+      _sketch = new PairSketch(Integer.parseInt(params.get("-sketch")), epsilon, delta);
+      System.out.println("sketch\t" + params.get("-sketch") + " pairs, eps " + epsilon + " delta " + delta
+          + ", " + (_sketch.memoryBytes() / (1024 * 1024)) + "MB");
+    }
     
     // Sanity check.
     if( _countByDistance && _withCoref ) {
       System.out.println("We can't count by distance and by coref at the same time...both are set to true.");
       System.exit(-1);
     }
+    if( _sketch != null && _runs != null ) {
+      System.out.println("We can't sketch and spill the counts at the same time...both -sketch and -spill are set.");
+      System.exit(-1);
+    }
     
     // Load WordNet
     _wordnet = new WordNet(WordNet.findWordnetPath());
 
     // Initialize count map
     _counts = new HashMap<String, Map<String, Integer>>();
-    _countsLemmas = new HashMap<String, Map<String, Integer>>();
 //    _countsFloat = new HashMap<String, Map<String, Float>>();
-    _countsLemmasFloat = new HashMap<String, Map<String, Float>>();
+    _vocab = new Vocabulary();
+    _countsLemmas = new PairCounts(_vocab, false);
+    _countsLemmasFloat = new PairCounts(_vocab, true);
 
     // Duplicate Gigaword files to ignore
     if( new File(_duplicatesPath).exists() )
@@ -195,6 +286,36 @@ public class CountTokenPairs {
 //    for( String word : arr ) _ignore.add(word);
   }
 
+  /**
+   * A worker for the -threads mode: counts with the settings of the given instance,
+   * into its own empty count tables.
+   */
+  private CountTokenPairs(CountTokenPairs settings) {
+    _tokenType = settings._tokenType;
+    _includeDependents = settings._includeDependents;
+    _includeRelations = settings._includeRelations;
+    _countByDistance = settings._countByDistance;
+    _distanceWindow = settings._distanceWindow;
+    _withCoref = settings._withCoref;
+    _fullPrep = settings._fullPrep;
+    _countObjectCollocations = settings._countObjectCollocations;
+    _idf = settings._idf;
+    _idfCutoff = settings._idfCutoff;
+    _docCutoff = settings._docCutoff;
+    _ignore = settings._ignore;
+    _duplicates = settings._duplicates;
+    _wordnet = new WordNet(settings._wordnet);
+    // Spill to the same runs, with a share of the memory.
+    _runs = settings._runs;
+    _spillBytes = settings._spillBytes / settings._numThreads;
+    if( settings._sketch != null ) _sketch = settings._sketch.emptyCopy();
+
+    _counts = new HashMap<String, Map<String, Integer>>();
+    _vocab = new Vocabulary();
+    _countsLemmas = new PairCounts(_vocab, false);
+    _countsLemmasFloat = new PairCounts(_vocab, true);
+  }
+
   /**
    * Only use this constructor if you want transitive verbs loaded
    * from file, and not actually counting verb-deps from a corpus.
@@ -245,57 +366,28 @@ public class CountTokenPairs {
   }
 
   /**
-   * Tally a verb/dep into our global _counts hashmaps.
+   * Tally a verb/dep into our global pair counts.
    */
-  private void incrementCount(Map<String,Map<String,Integer>> counts, String token1, String token2, int amount) {
+  private void incrementCount(PairCounts counts, String token1, String token2, int amount) {
     // Alphabetize.
     if( token1.compareTo(token2) > 0 ) {
       String temp = token1;
       token1 = token2;
       token2 = temp;
     }
-
-    // Find the first token.
-    Map<String,Integer> tokenMap;
-    if( !counts.containsKey(token1) ) {
-      tokenMap = new HashMap<String, Integer>(8);
-      counts.put(token1, tokenMap);
-    } else 
-      tokenMap = counts.get(token1);
-
-    // Increment the pair.
-    if( !tokenMap.containsKey(token2) ) tokenMap.put(token2, amount);
-    else {
-      Integer count = tokenMap.get(token2);
-      tokenMap.put(token2, count+amount);
-    }
+    if( _sketch != null ) _sketch.increment(token1, token2, amount);
+    else counts.increment(token1, token2, amount);
   }
 
-  private void incrementFloatCount(Map<String,Map<String,Float>> counts,
-      String token1, String token2, float amount) {
+  private void incrementFloatCount(PairCounts counts, String token1, String token2, float amount) {
     // Alphabetize.
     if( token1.compareTo(token2) > 0 ) {
       String temp = token1;
       token1 = token2;
       token2 = temp;
     }
-
-    //    System.out.println("incrementing " + token1 + " " + token2 + " " + amount);
-
-    // Find the first token.
-    Map<String,Float> tokenMap;
-    if( !counts.containsKey(token1) ) {
-      tokenMap = new HashMap<String, Float>(8);
-      counts.put(token1, tokenMap);
-    } else 
-      tokenMap = counts.get(token1);
-
-    // Increment the pair.
-    if( !tokenMap.containsKey(token2) ) tokenMap.put(token2, amount);
-    else {
-      Float count = tokenMap.get(token2);
-      tokenMap.put(token2, count+amount);
-    }
+    if( _sketch != null ) _sketch.increment(token1, token2, amount);
+    else counts.increment(token1, token2, (double)amount);
   }
 
   private void setCount(Map<String,Map<String,Integer>> counts,
@@ -320,76 +412,82 @@ public class CountTokenPairs {
   }
 
   /**
-   * Print the token pairs with their counts.
+   * Print the token pairs with their counts, one line per first token with its second
+   * tokens sorted by count.
    */
-  private void countsToFile(Map<String,Map<String,Integer>> counts, int numDocs, String outfile) {
-    System.out.println("tofile " + outfile + " with " + counts.size() + " entries.");
+  private void countsToFile(PairCounts counts, int numDocs, String outfile) {
+    Vocabulary vocab = counts.vocabulary();
+    System.out.println("tofile " + outfile + " with " + counts.numFirstTokens() + " entries.");
     try {
-      BufferedWriter out = new BufferedWriter(new FileWriter(outfile));
+      PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outfile)));
       out.write("NUMDOCS " + numDocs + "\n");
 
-      // Sort the keys.
-      String[] keys = new String[counts.size()];
-      keys = counts.keySet().toArray(keys);
-      Arrays.sort(keys);
-
-      // Print the keys in sorted order.
-      for( String key : keys ) {
-        Map<String,Integer> tokenCounts = counts.get(key);
-
-        if( tokenCounts != null && tokenCounts.size() > 0 ) {
-          out.write(key);
-
-          // Sort the counts.
-          SortableScore[] scores = new SortableScore[tokenCounts.size()];
-          int i = 0;
-          for( Map.Entry<String,Integer> entry2 : tokenCounts.entrySet() )
-            scores[i++] = new SortableScore(entry2.getValue(), entry2.getKey());
-          Arrays.sort(scores);
-
-          for( SortableScore score : scores )
-            out.write("\t" + score.key() + "\t" + (int)score.score());
-          out.write("\n");
+      // Keys are sorted by their tokens, so each first token's pairs are together.
+      long[] keys = counts.sortedKeys();
+      List<SortableScore> scores = new ArrayList<SortableScore>();
+      int start = 0;
+      while( start < keys.length ) {
+        int first = PairCounts.first(keys[start]);
+        int end = start;
+        while( end < keys.length && PairCounts.first(keys[end]) == first ) end++;
+
+        scores.clear();
+        for( int i = start; i < end; i++ ) {
+          int second = PairCounts.second(keys[i]);
+          // Distance counts are summed in doubles but written as floats, as they always were.
+          double count = (counts.isFloat() ? (float)counts.getFloat(first, second) : counts.getInt(first, second));
+          scores.add(new SortableScore(count, vocab.token(second)));
         }
+        writeRow(out, vocab.token(first), scores, counts.isFloat());
+        start = end;
       }
 
       out.close();
     } catch( Exception ex ) { ex.printStackTrace(); }
   }
 
-
   /**
-   * Print the token pairs with their counts.
+   * Print the token pairs with their total counts in the spilled runs, as countsToFile() does.
+   * @param cutoff Leave out pairs counted this much or less, -1 to keep all.
    */
-  private void floatsToFile(Map<String,Map<String,Float>> counts, int numDocs,
-      String outfile) {
-    System.out.println("tofile " + outfile + " with " + counts.size() + " entries.");
+  private void runsToFile(PairCountRuns runs, double cutoff, int numDocs, String outfile) throws IOException {
+    System.out.println("tofile " + outfile + " from " + runs.numRuns() + " runs.");
+    PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outfile)));
+    PairCountRuns.Merge merge = runs.merge();
     try {
-      PrintWriter out = new PrintWriter(new FileWriter(outfile));
-      //      BufferedWriter out = new BufferedWriter(new FileWriter(outfile));
       out.write("NUMDOCS " + numDocs + "\n");
 
-      for( Map.Entry<String,Map<String,Float>> entry : counts.entrySet() ) {
-        Map<String,Float> tokenCounts = entry.getValue();
-
-        if( tokenCounts != null && tokenCounts.size() > 0 ) {
-          out.write(entry.getKey());
-
-          SortableScore[] scores = new SortableScore[tokenCounts.size()];
-          int i = 0;
-          for( Map.Entry<String,Float> entry2 : tokenCounts.entrySet() )
-            scores[i++] = new SortableScore(entry2.getValue(), entry2.getKey());
-          Arrays.sort(scores);
-
-          for( SortableScore score : scores ) {
-            out.printf("\t%s\t%.2f", score.key(), score.score());
-          }
-          out.write("\n");
+      String first = null;
+      List<SortableScore> scores = new ArrayList<SortableScore>();
+      while( merge.next() ) {
+        if( !merge.first().equals(first) ) {
+          if( first != null ) writeRow(out, first, scores, _countByDistance);
+          first = merge.first();
+          scores.clear();
         }
+        if( merge.count() > cutoff )
+          scores.add(new SortableScore(_countByDistance ? (float)merge.count() : merge.count(), merge.second()));
       }
-
+      if( first != null ) writeRow(out, first, scores, _countByDistance);
+    } finally {
+      merge.close();
       out.close();
-    } catch( Exception ex ) { ex.printStackTrace(); }
+    }
+  }
+
+  /**
+   * Print one token's line of pairs, highest count first and ties by token.
+   * @param scores The second tokens and their counts.
+   */
+  private static void writeRow(PrintWriter out, String token, List<SortableScore> scores, boolean floats) {
+    if( scores.size() == 0 ) return;
+    Collections.sort(scores, SortableScore.BY_SCORE_THEN_KEY);
+    out.write(token);
+    for( SortableScore score : scores ) {
+      if( floats ) out.printf("\t%s\t%.2f", score.key(), score.score());
+      else out.write("\t" + score.key() + "\t" + (int)score.score());
+    }
+    out.write("\n");
   }
 
   /**
@@ -421,7 +519,19 @@ public class CountTokenPairs {
     intsFromFile(path, null, loadInverseCounts);
   }
   public void intsFromFile(String path, Collection<String> include, boolean loadInverseCounts) {
+    String binary = MappedPairCounts.binaryPath(path);
+    if( binary != null ) {
+      mapFile(binary, include, false);
+      if( _mapped.isFloat() ) {
+        System.out.println("Can't read float counts as integers: " + binary);
+        System.exit(-1);
+      }
+      _loadedInversesInt = loadInverseCounts;
+      return;
+    }
+
     String line = null;
+    _mapped = null;
     if( _counts == null ) _counts = new HashMap<String, Map<String, Integer>>();
     else _counts.clear();
     _totalCount = 0;
@@ -506,7 +616,14 @@ public class CountTokenPairs {
   }
   
   public void fromFile(String path, Collection<String> include) {
+    String binary = MappedPairCounts.binaryPath(path);
+    if( binary != null ) {
+      mapFile(binary, include, true);
+      return;
+    }
+
     String line = null;
+    _mapped = null;
     if( _countsFloat == null ) _countsFloat = new HashMap<String, Map<String, Float>>();
     else _countsFloat.clear();
     _totalCount = 0;
@@ -567,10 +684,65 @@ public class CountTokenPairs {
     }
   }
 
+  /**
+   * Map a binary counts file instead of reading the text one. Its rows are looked up
+   * where they are, and are only loaded into the maps if counts are added to them.
+   * @param floats True to add up the total count as fromFile() does, else as intsFromFile().
+   */
+  private void mapFile(String path, Collection<String> include, boolean floats) {
+    System.out.println("CountTokenPairs mapping " + path);
+    try {
+      _mapped = new MappedPairCounts(path);
+    } catch( IOException ex ) {
+      ex.printStackTrace();
+      System.exit(-1);
+    }
+    if( include != null ) _mapped.restrict(include);
+    _numStories = _mapped.numDocs();
+    _totalCount = _mapped.totalCount(floats);
+    _counts = null;
+    _countsFloat = null;
+    System.out.println("mapped " + _mapped.numPairs() + " pairs of " + _mapped.numTokens() + " tokens");
+  }
+
+  /**
+   * Loads the mapped counts into the maps, as intsFromFile() or fromFile() would have.
+   */
+  private void loadMapped(final boolean ints) {
+    if( ints ) _counts = new HashMap<String, Map<String, Integer>>();
+    else _countsFloat = new HashMap<String, Map<String, Float>>();
+    _mapped.forEachPair(new MappedPairCounts.PairVisitor() {
+      public void pair(String token1, String token2, double count) {
+        if( ints ) {
+          Util.incrementCount(intRow(token1), token2, (int)count);
+          if( _loadedInversesInt ) Util.incrementCount(intRow(token2), token1, (int)count);
+        }
+        else {
+          Map<String,Float> row = _countsFloat.get(token1);
+          if( row == null ) {
+            row = new HashMap<String, Float>(8);
+            _countsFloat.put(token1, row);
+          }
+          Util.incrementCount(row, token2, (float)count);
+        }
+      }
+      private Map<String,Integer> intRow(String token) {
+        Map<String,Integer> row = _counts.get(token);
+        if( row == null ) {
+          row = new HashMap<String, Integer>(8);
+          _counts.put(token, row);
+        }
+        return row;
+      }
+    });
+    _mapped = null;
+  }
+
   /**
    * Find all tokens in the pair counts that start with the given string.
    */
   public Set<String> tokensThatStartWith(String start) {
+    if( _mapped != null ) return _mapped.tokensThatStartWith(start);
     Set<String> tokens = new HashSet<String>();
     for( Map.Entry<String, Map<String,Integer>> entry : _counts.entrySet() ) {
       if( entry.getKey().startsWith(start) )
@@ -584,6 +756,7 @@ public class CountTokenPairs {
   }
 
   public Map<String,Integer> getCountsInt(String token) {
+    if( _mapped != null ) return _mapped.intRow(token, false, _loadedInversesInt);
     return _counts.get(token);
   }
   
@@ -592,6 +765,10 @@ public class CountTokenPairs {
    * Returns zero if token-reln is not found.
    */
   public float getCount(String token1, String token2) {
+    if( _mapped != null ) {
+      if( token1.compareTo(token2) > 0 ) return (float)_mapped.getCount(token2, token1);
+      return (float)_mapped.getCount(token1, token2);
+    }
     return getCountFloat(token1, token2, _countsFloat);
   }
   public float getCountFloat(String token1, String token2, Map<String,Map<String,Float>> counts) {
@@ -615,6 +792,10 @@ public class CountTokenPairs {
   }
 
   public int getCountInteger(String token1, String token2) {
+    if( _mapped != null ) {
+      if( token1.compareTo(token2) > 0 ) return (int)_mapped.getCount(token2, token1);
+      return (int)_mapped.getCount(token1, token2);
+    }
     return getCountInteger(token1, token2, _counts);
   }
   public int getCountInteger(String token1, String token2, Map<String,Map<String,Integer>> counts) {
@@ -646,6 +827,12 @@ public class CountTokenPairs {
    * @return All tokens and their counts with our desired token.
    */
   public Map<String,Integer> getCountVector(String token) {
+    // The mapped file has each token's pairs in both positions.
+    if( _mapped != null ) {
+      Map<String,Integer> vector = _mapped.intRow(token, false, true);
+      if( vector == null && !_loadedInversesInt ) vector = new HashMap<String,Integer>();
+      return vector;
+    }
     if( _loadedInversesInt ) {
 //      System.out.println("getCountVector " + token + " simply returns!");
       return _counts.get(token);
@@ -671,18 +858,22 @@ public class CountTokenPairs {
 
   
   public Set<String> intKeySet() {
+    if( _mapped != null ) return _mapped.firstTokens(_loadedInversesInt);
     return _counts.keySet();
   }
 
   public Set<String> floatKeySet() {
+    if( _mapped != null ) return _mapped.firstTokens(false);
     return _countsFloat.keySet();
   }
   
   public Set<String> intKeySet(String lemma1) {
+    if( _mapped != null ) return _mapped.intRow(lemma1, false, _loadedInversesInt).keySet();
     return _counts.get(lemma1).keySet();
   }
 
   public Set<String> floatKeySet(String lemma1) {
+    if( _mapped != null ) return _mapped.floatRow(lemma1, false).keySet();
     return _countsFloat.get(lemma1).keySet();
   }
 
@@ -1091,6 +1282,7 @@ public class CountTokenPairs {
    * @param counts Assumes the counts are integers.
    */
   public void addCountsInt(CountTokenPairs counts) {
+    if( _mapped != null ) loadMapped(true);
     for( String token1 : counts.intKeySet() ) {
       Map<String,Integer> myCounts = _counts.get(token1);
       if( myCounts == null ) {
@@ -1107,6 +1299,7 @@ public class CountTokenPairs {
    * @param counts Assumes the counts are floats.
    */
   public void addCountsFloat(CountTokenPairs counts) {
+    if( _mapped != null ) loadMapped(false);
     for( String token1 : counts.floatKeySet() ) {
       Map<String,Float> myCounts = _countsFloat.get(token1);
       if( myCounts == null ) {
@@ -1149,9 +1342,10 @@ public class CountTokenPairs {
       return null;
     }
     String posTag = subtree.label().value();
-    String govLemma = wordnet.lemmatizeTaggedWord(token, posTag);
-    if( CountVerbDeps.isNumber(token) )
+    String govLemma;
+    if( TokenClassifier.isNumber(token) )
       govLemma = CountVerbDeps.NUMBER_STRING;
+    else govLemma = wordnet.lemmatizeTaggedWord(token, posTag);
     // Attach particle.
     if( particles != null && particles.size() > 0 ) {
       String particle = particles.get(index);
@@ -1308,64 +1502,117 @@ public class CountTokenPairs {
       sid++;
     }
 
-    Map<String,Map<String,Integer>> localCounts = new HashMap<String,Map<String,Integer>>();
+    // Intern the tokens, and note those seen at more than one position.
     int size = tokensLemmas.size();
+    Vocabulary ids = new Vocabulary();
+    int[] tokenIDs = new int[size];
+    int[] firstSeen = new int[size];
+    boolean[] moved = new boolean[size];
+    for( int i = 0; i < size; i++ ) {
+      WordPosition word = tokensLemmas.get(i);
+      int numIDs = ids.size();
+      int id = ids.id(word.token);
+      tokenIDs[i] = id;
+      if( id == numIDs ) firstSeen[id] = i;
+      else if( !samePosition(word, tokensLemmas.get(firstSeen[id])) ) moved[id] = true;
+    }
 
-    //     // Count word pairs: If same pair appears more than once, save the shortest
-    //     //                   distance between the two.
-    //     for( int i = 0; i < size-1; i++ ) {
-    //       for( int j = i+1; j < size; j++ ) {
-    // 	WordPosition word1 = tokens.get(i);
-    // 	WordPosition word2 = tokens.get(j);
-    // 	int distance = 1 + Math.abs(word1.docIndex - word2.docIndex);
-    // 	int prevDistance = getCountInteger(word1.token, word2.token, localCounts);
-    // 	if( prevDistance == 0 || distance < prevDistance )
-    // 	  setCount(localCounts, word1.token, word2.token, distance);
-    //       }
-    //     }
-
-    //     // Scale the distance.
-    //     for( Map.Entry<String, Map<String,Integer>> entry : localCounts.entrySet() ) {
-    //       String token1 = entry.getKey();
-    //       for( Map.Entry<String,Integer> entry2 : entry.getValue().entrySet() ) {
-    // 	String token2 = entry2.getKey();
-    // 	int distance = entry2.getValue();
-    // 	// Scale distance by a log distance.
-    // 	double scaledDistance = Math.max(0.05, (1.0 - (Math.log(distance)/Math.log(4))));
-    // 	//	System.out.println(token1 + "\t" + token2 + "\t" + distance + "\t" + scaledDistance);
-    // 	incrementDoubleCount(_countsDouble, token1, token2, scaledDistance);
-    //       }
-    //     }
-
-    // Count word pairs: If same pair appears more than once, save the shortest
-    //                   distance between the two.
-    localCounts.clear();
+    // Count word pairs: If same pair appears more than once, save the weight of the shortest
+    //                   distance between the two.  Pairs farther apart than the weight table
+    //                   all get its last weight, so only its distances are scanned.
+    int window = (_distanceWindow < 0 ? DISTANCE_WEIGHTS.length - 2 : _distanceWindow);
+    PairCounts weights = new PairCounts(ids, true);
     for( int i = 0; i < size-1; i++ ) {
+      WordPosition word1 = tokensLemmas.get(i);
       for( int j = i+1; j < size; j++ ) {
-        WordPosition word1 = tokensLemmas.get(i);
         WordPosition word2 = tokensLemmas.get(j);
+        int gap = word2.sentIndex - word1.sentIndex;
+        if( gap > window ) break;
         // Don't count a pair if it is really the same token (v-claim and v-claim#o#responsibility).
-        if( word1.sentIndex != word2.sentIndex || word1.wordIndex != word2.wordIndex ) {
-          int distance = 1 + Math.abs(word1.sentIndex - word2.sentIndex);
-          int prevDistance = getCountInteger(word1.token, word2.token, localCounts);
-          if( prevDistance == 0 || distance < prevDistance )
-            setCount(localCounts, word1.token, word2.token, distance);
+        if( gap == 0 && word1.wordIndex == word2.wordIndex ) continue;
+        float weight = distanceWeight(1 + gap);
+        int id1 = Math.min(tokenIDs[i], tokenIDs[j]);
+        int id2 = Math.max(tokenIDs[i], tokenIDs[j]);
+        if( weight > weights.getFloat(id1, id2) ) weights.set(id1, id2, weight);
+      }
+    }
+
+    // All other pairs in the document are far apart.
+    if( _distanceWindow < 0 ) {
+      float lowest = DISTANCE_WEIGHTS[DISTANCE_WEIGHTS.length - 1];
+      for( int id1 = 0; id1 < ids.size(); id1++ ) {
+        for( int id2 = id1; id2 < ids.size(); id2++ ) {
+          // Tokens only seen at the same one position are never paired.
+          if( !moved[id1] && !moved[id2] && samePosition(tokensLemmas.get(firstSeen[id1]), tokensLemmas.get(firstSeen[id2])) )
+            continue;
+          if( weights.getFloat(id1, id2) == 0.0 ) weights.set(id1, id2, lowest);
         }
       }
     }
 
-    // Scale the distance.
-    for( Map.Entry<String, Map<String,Integer>> entry : localCounts.entrySet() ) {
-      String token1 = entry.getKey();
-      for( Map.Entry<String,Integer> entry2 : entry.getValue().entrySet() ) {
-        String token2 = entry2.getKey();
-        int distance = entry2.getValue();
-        // Scale distance by a log distance.
-        double scaledDistance = Math.max(0.05f, (1.0f - (Math.log(distance)/Math.log(4))));
-        //	System.out.println(token1 + "\t" + token2 + "\t" + distance + "\t" + scaledDistance);
-        incrementFloatCount(_countsLemmasFloat, token1, token2, (float)scaledDistance);
+    addDocumentWeights(weights);
+  }
+
+  /**
+   * Adds a document's pair weights, by the document's own token IDs, to the pair counts.
+   */
+  private void addDocumentWeights(PairCounts weights) {
+    Vocabulary ids = weights.vocabulary();
+    if( _sketch != null ) {
+      for( long key : weights.keys() ) {
+        int id1 = PairCounts.first(key), id2 = PairCounts.second(key);
+        incrementFloatCount(_countsLemmasFloat, ids.token(id1), ids.token(id2), (float)weights.getFloat(id1, id2));
+      }
+      return;
+    }
+
+    // Alphabetize by the tokens' ranks, and look up each token's global ID once.
+    int[] ranks = ids.sortedRanks();
+    int[] globalIDs = new int[ids.size()];
+    Arrays.fill(globalIDs, -1);
+    Vocabulary vocab = _countsLemmasFloat.vocabulary();
+    for( long key : weights.keys() ) {
+      int id1 = PairCounts.first(key), id2 = PairCounts.second(key);
+      float weight = (float)weights.getFloat(id1, id2);
+      if( ranks[id1] > ranks[id2] ) {
+        int temp = id1;
+        id1 = id2;
+        id2 = temp;
       }
+      if( globalIDs[id1] < 0 ) globalIDs[id1] = vocab.id(ids.token(id1));
+      if( globalIDs[id2] < 0 ) globalIDs[id2] = vocab.id(ids.token(id2));
+      _countsLemmasFloat.increment(globalIDs[id1], globalIDs[id2], (double)weight);
+    }
+  }
+
+  private static boolean samePosition(WordPosition word1, WordPosition word2) {
+    return word1.sentIndex == word2.sentIndex && word1.wordIndex == word2.wordIndex;
+  }
+
+  /**
+   * @param distance One more than the number of sentences between the two tokens.
+   * @return A normal count of 1 in the same sentence, smaller (1-log(distance)) counts farther apart.
+   */
+  private static float distanceWeight(int distance) {
+    if( distance < DISTANCE_WEIGHTS.length ) return DISTANCE_WEIGHTS[distance];
+    return DISTANCE_WEIGHTS[DISTANCE_WEIGHTS.length - 1];
+  }
+
+  /**
+   * @return The weights by distance, from 1 to the first distance at the lowest weight.
+   */
+  private static float[] distanceWeights() {
+    List<Float> weights = new ArrayList<Float>();
+    weights.add(0.0f);
+    for( int distance = 1; ; distance++ ) {
+      // Scale distance by a log distance.
+      double scaledDistance = Math.max(0.05f, (1.0f - (Math.log(distance)/Math.log(4))));
+      weights.add((float)scaledDistance);
+      if( (float)scaledDistance == 0.05f ) break;
     }
+    float[] table = new float[weights.size()];
+    for( int i = 0; i < table.length; i++ ) table[i] = weights.get(i);
+    return table;
   }
 
   /**
@@ -1409,69 +1656,194 @@ public class CountTokenPairs {
    */
   private void countPairs(ProcessedData reader) {
     reader.nextStory();
-    List<Tree> trees = TreeOperator.stringsToTrees(reader.getParseStrings());
+    List<Tree> trees = reader.getTrees();
 
     // Read the dependencies.
     while( trees != null ) {
-      // Skip duplicate stories.
-      if( _duplicates != null && _duplicates.contains(reader.currentStory()) ) {
-        System.out.println("duplicate " + reader.currentStory());
-      } else {
-        System.out.println(reader.currentStory());
-        if( _numStories++ % 100 == 0 ) Util.reportMemory();
-
-        // Trim for memory savings, this can huge in size.
-        if( !_withCoref && _numStories > 10000 && _numStories % 2000 == 0 ) {
-          System.out.println("Trimming mid-way at " + _numStories + " docs.");
-          if( _countsLemmasFloat.size() > 15000 ) trimFloatPairs(1.5f);
-          if( _countsLemmas.size() > 15000 ) trimIntegerPairs(2);
-        }
-        
-        // Count the args.
-        if( _countByDistance )
-          countTokenPairsByDistance(trees, reader.getDependencies(), reader.getNER());
-        else if( _withCoref )
-          countTokenPairsWithCoref(trees, reader.getDependencies(), reader.getEntities(), reader.getNER());
-        else 
-          countTokenPairs(trees, reader.getDependencies());
-      }
+      countStory(reader);
 
       // Advance to the next story.
       reader.nextStory();
-      trees = TreeOperator.stringsToTrees(reader.getParseStrings());
+      trees = reader.getTrees();
     }
   }
 
+  /**
+   * Count token pairs in the reader's current story.
+   */
+  public void countStory(ProcessedData reader) {
+    List<Tree> trees = reader.getTrees();
+    // Skip duplicate stories.
+    if( _duplicates != null && _duplicates.contains(reader.currentStory()) ) {
+      System.out.println("duplicate " + reader.currentStory());
+    } else {
+      System.out.println(reader.currentStory());
+      if( _numStories++ % 100 == 0 ) Util.reportMemory();
+
+      // Count the args.
+      if( _countByDistance )
+        countTokenPairsByDistance(trees, reader.getDependencies(), reader.getNER());
+      else if( _withCoref )
+        countTokenPairsWithCoref(trees, reader.getDependencies(), reader.getEntities(), reader.getNER());
+      else 
+        countTokenPairs(trees, reader.getDependencies());
+
+      spillIfFull();
+    }
+  }
+
+  /**
+   * @return The table of the pairs being counted, by distance or not.
+   */
+  private PairCounts countingTable() {
+    return (_countByDistance ? _countsLemmasFloat : _countsLemmas);
+  }
+
+  /**
+   * Writes the pair counts to a sorted run on disk if they use more than the -spill memory.
+   */
+  private void spillIfFull() {
+    spillIfFull(0);
+  }
 
   /**
-   * Trim away pairs appearing too sparse, to save memory
+   * Writes the pair counts to a sorted run on disk if they and the given number of bytes
+   * about to be added use more than the -spill memory.
    */
-  private void trimIntegerPairs(int cutoff) {
-    if( _countsLemmas != null ) {
-      System.out.println("Trimming pairs at " + cutoff);
-      for( Map.Entry<String,Map<String,Integer>> entry : _countsLemmas.entrySet() ) {
-        Util.trimIntegerCounts(entry.getValue(), cutoff);
+  private void spillIfFull(long adding) {
+    if( _runs != null && countingTable().memoryBytes() + adding > _spillBytes ) {
+      try {
+        _runs.spill(countingTable());
+      } catch( IOException ex ) {
+        throw new RuntimeException("Could not spill pair counts", ex);
       }
     }
   }
-   
+
   /**
-   * Trim away pairs appearing too sparse, to save memory
+   * Count token pairs in the given files on _numThreads threads, each thread into its own
+   * tables, and add the threads' counts to ours.
+   * @param files The parse, deps, events and NER paths of each file.
    */
-  private void trimFloatPairs(float cutoff) {
-    if( _countsLemmasFloat != null ) {
-      System.out.println("Trimming pairs at " + cutoff);
-      for( Map.Entry<String,Map<String,Float>> entry : _countsLemmasFloat.entrySet() ) {
-        Util.trimFloatCounts(entry.getValue(), cutoff);
+  private void countPairsInParallel(List<String[]> files) {
+    ProcessedCorpus corpus = new ProcessedCorpus(files);
+    corpus.setStoriesPerTask(STORIES_PER_TASK);
+    corpus.setPrefetch(ProcessedData.DEFAULT_PREFETCH);
+
+    final CountTokenPairs settings = this;
+    CountTokenPairs counted = corpus.forEachDocument(new ProcessedCorpus.DocumentConsumer<CountTokenPairs>() {
+      public CountTokenPairs newAccumulator() {
+        return new CountTokenPairs(settings);
+      }
+      public void document(CountTokenPairs worker, ProcessedData reader) {
+        worker.countStory(reader);
+      }
+      public void merge(CountTokenPairs into, CountTokenPairs from) {
+        // The other workers' tables are still in memory, so keep this one to its share.
+        into.addCounts(from);
+        into.spillIfFull();
       }
+    }, _numThreads);
+    spillIfFull(counted.countingTable().memoryBytes());
+    addCounts(counted);
+    spillIfFull();
+  }
+
+  /**
+   * Adds the pair counts and number of stories of another instance to ours.
+   */
+  private void addCounts(CountTokenPairs other) {
+    _numStories += other._numStories;
+    _countsLemmas.addAll(other._countsLemmas);
+    _countsLemmasFloat.addAll(other._countsLemmasFloat);
+    if( _sketch != null ) _sketch.addAll(other._sketch);
+  }
+
+
+
+  /**
+   * Writes the pairs counted so far to the file, then clears them. Trims away sparse
+   * pairs first, unless counting with coref.
+   * @param cutoff Leave out pairs counted this much or less.
+   * @param minTokens Only trim if more than this many tokens start pairs.
+   */
+  private void saveCounts(String outfile, double cutoff, int minTokens) {
+    PairCounts counts = countingTable();
+    if( _sketch != null ) {
+      System.out.println("Sketched " + _sketch.numCandidates() + " candidate pairs");
+      _sketch.topPairs(counts);
+      _sketch.clear();
+    }
+    int numDocs = _numStories;
+    if( _delta && Directory.fileExists(outfile) )
+      numDocs += addCountsFromFile(outfile);
+
+    if( _runs == null || _runs.numRuns() == 0 ) {
+      if( !_withCoref && counts.numFirstTokens() > minTokens ) {
+        System.out.println("Trimming pairs at " + cutoff);
+        counts.trim(cutoff);
+      }
+      countsToFile(counts, numDocs, outfile);
+    }
+    // Merge the counts on disk, trimming only the totals.
+    else {
+      try {
+        _runs.spill(counts);
+        boolean trim = !_withCoref && (minTokens == 0 || _runs.numFirstTokens() > minTokens);
+        if( trim ) System.out.println("Trimming pairs at " + cutoff);
+        runsToFile(_runs, (trim ? cutoff : -1.0), numDocs, outfile);
+      } catch( IOException ex ) {
+        throw new RuntimeException("Could not merge spilled pair counts", ex);
+      }
+      _runs.delete();
     }
+    counts.clear();
   }
-  
+
+  /**
+   * Adds the pairs in a counts file to the counting table, for -delta. Spills to disk as
+   * the table fills, as counting does.
+   * @return The number of documents the file's counts are from.
+   */
+  private int addCountsFromFile(String path) {
+    PairCounts counts = countingTable();
+    String line = null;
+    int numDocs = 0;
+    System.out.println("Adding to the counts in " + path);
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(path));
+      line = in.readLine();
+      if( line != null && line.startsWith("NUMDOCS ") ) {
+        numDocs = Integer.parseInt(line.substring(8));
+        line = in.readLine();
+      }
+
+      // e.g. "v-arrested:o v-attacked:o 58 v-barked:o 41"
+      for( ; line != null; line = in.readLine() ) {
+        String parts[] = line.split("\\s+");
+        if( parts.length < 3 || (parts.length % 2 != 1) )
+          throw new IOException("Strange line format: " + line);
+        for( int i = 1; i < parts.length; i += 2 ) {
+          if( counts.isFloat() ) counts.increment(parts[0], parts[i], Double.parseDouble(parts[i+1]));
+          else counts.increment(parts[0], parts[i], Integer.parseInt(parts[i+1]));
+        }
+        spillIfFull();
+      }
+      in.close();
+    } catch( Exception ex ) { 
+      System.out.println("Error on line: " + line);
+      ex.printStackTrace(); 
+      System.exit(-1); 
+    }
+    return numDocs;
+  }
+
   public void clear() {
     if( _countsLemmasFloat != null ) _countsLemmasFloat.clear();
     if( _countsLemmas != null ) _countsLemmas.clear();
     if( _counts != null ) _counts.clear();
     if( _countsFloat != null ) _countsFloat.clear();
+    _mapped = null;
     _countsLemmasFloat = null;
     _countsLemmas = null;
     _countsFloat = null;
@@ -1507,12 +1879,15 @@ public class CountTokenPairs {
     if( _depsPath.length() > 0 ) {
       File dir = new File(_parsePath);
       String haveLock = "";
+      // Files counted since the last save, for the threads to count at the next save.
+      List<String[]> unsaved = new ArrayList<String[]>();
 
       // Directory of files.  *** never tested
       if( dir.isDirectory() ) {
         int numfiles = 0;
         for( String file : Directory.getFilesSorted(_parsePath) ) {
-          if( file.contains("parse") ) {
+          // Use the binary version of a parse file instead, if it was converted.
+          if( ProcessedCorpus.isParseFileToRead(_parsePath, file) ) {
             System.out.println("file: " + file);
             String year = (file.length() > 15 && file.matches(".*\\d\\d\\d\\d.*")) ? file.substring(8,12) : "noyear";
             String month = (file.length() > 15 && file.matches(".*\\d\\d\\d\\d.*")) ? file.substring(12,14) : "nomonth";
@@ -1520,33 +1895,32 @@ public class CountTokenPairs {
             String depsFile = _parsePath + File.separator + Directory.nearestFile(file, _depsPath);
             String corefFile  = _corefPath + File.separator + Directory.nearestFile(file, _corefPath);
             String nerFile  = _corefPath + File.separator + Directory.nearestFile(file, _nerPath);
-            ProcessedData dataReader = new ProcessedData(parseFile, depsFile, corefFile, nerFile);
             
             // Lock this year for processing.
             if( checkLock(haveLock, year) ) {
               haveLock = year;
 
               // Count the pairs.
-              countPairs(dataReader);
+              if( _numThreads > 1 )
+                unsaved.add(new String[] { parseFile, depsFile, corefFile, nerFile });
+              else {
+                ProcessedData dataReader = new ProcessedData(parseFile, depsFile, corefFile, nerFile, ProcessedData.DEFAULT_PREFETCH);
+                countPairs(dataReader);
+                dataReader.close();
+              }
               numfiles++;
 
               // Save to file by year (and at half years).
               if( month.equals("06") || month.equals("12") || 
                   (year.equals("1999") && month.equals("11")) || (year.equals("2004") && month.equals("05")) ) {
-                System.out.println("saving to disc...");
-                if( !_withCoref ) {
-                  trimIntegerPairs(2);
-                  trimFloatPairs(2.0f);
+                if( unsaved.size() > 0 ) {
+                  countPairsInParallel(unsaved);
+                  unsaved.clear();
                 }
+                System.out.println("saving to disc...");
                 String suffix = "-1";
                 if( !month.equals("06") && !month.equals("05") ) suffix = "-2";
-                if( _countByDistance )
-                  floatsToFile(_countsLemmasFloat, _numStories, _outDirectory + File.separator + _outFileLemmas + "-" + year + suffix);
-                else        
-                  countsToFile(_countsLemmas, _numStories, _outDirectory + File.separator + _outFileLemmas + "-" + year + suffix);
-                // Now clear the memory!
-                if( _countsLemmas != null ) _countsLemmas.clear();
-                if( _countsLemmasFloat != null ) _countsLemmasFloat.clear();
+                saveCounts(_outDirectory + File.separator + _outFileLemmas + "-" + year + suffix, 2.0, 0);
               }
 
               Util.reportMemory();
@@ -1558,21 +1932,32 @@ public class CountTokenPairs {
       // Single text file input.
       else {
         System.out.println("file: " + _depsPath);
-        ProcessedData dataReader = new ProcessedData(_parsePath, _depsPath, _corefPath, _nerPath);
-        countPairs(dataReader);
-        // NEW: for larger processing, we need to trim...
-        if( !_withCoref ) {
-          if( _countsLemmasFloat.size() > 15000 ) trimFloatPairs(1.0f);
-          if( _countsLemmas.size() > 15000 ) trimIntegerPairs(2);
+        if( _numThreads > 1 ) {
+          List<String[]> files = new ArrayList<String[]>();
+          files.add(new String[] { _parsePath, _depsPath, _corefPath, _nerPath });
+          countPairsInParallel(files);
         }
-        if( _countByDistance )
-          floatsToFile(_countsLemmasFloat, _numStories, _outDirectory + File.separator + _outFileLemmas + "-dist");
-        else        
-          countsToFile(_countsLemmas, _numStories, _outDirectory + File.separator + _outFileLemmas);
+        else {
+          ProcessedData dataReader = new ProcessedData(_parsePath, _depsPath, _corefPath, _nerPath, ProcessedData.DEFAULT_PREFETCH);
+          countPairs(dataReader);
+          dataReader.close();
+        }
+        saveCounts();
       }
     }
   }
 
+  /**
+   * Writes the counts of a single input file to the output directory.
+   */
+  public void saveCounts() {
+    // NEW: for larger processing, we need to trim...
+    if( _countByDistance )
+      saveCounts(_outDirectory + File.separator + _outFileLemmas + "-dist", 1.0, 15000);
+    else        
+      saveCounts(_outDirectory + File.separator + _outFileLemmas, 2.0, 15000);
+  }
+
 
   public static void main(String[] args) {
     CountTokenPairs count = new CountTokenPairs(args);
@@ -13,6 +13,7 @@ import java.util.Set;
 import java.util.Vector;
 
 import nate.util.Ling;
+import nate.util.TokenClassifier;
 import nate.util.Util;
 import edu.stanford.nlp.ling.HasWord;
 import edu.stanford.nlp.parser.lexparser.Options;
@@ -78,12 +79,12 @@ public class CountTokens {
       for( List<HasWord> sentence : list ) {
         int precount = count;
         for( HasWord word : sentence ) {
-          if( word.word().matches(".*[a-zA-Z0-9].*") ) {
+          if( TokenClassifier.hasLetterOrDigit(word.word()) ) {
             //	    System.out.println(word + " *");
             count++;
             
             // Only store token counts for words with just letters.
-            if( word.word().matches("[a-zA-Z]+") )
+            if( TokenClassifier.isLetters(word.word()) )
               tokens.incrementCount(word.word().toLowerCase());
           }
           //	  else System.out.println(word);
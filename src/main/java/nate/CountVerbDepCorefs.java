@@ -5,6 +5,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -54,8 +55,12 @@ import edu.stanford.nlp.trees.TypedDependency;
  * -output
  * Directory to put the generated files.
  * 
+ * -delta
+ * Add the counts, and NUMDOCS, to the output file already there instead of replacing it.
+ * Its counts must be from other documents.
+ * 
  */
-public class CountVerbDepCorefs {
+public class CountVerbDepCorefs implements StoryCounter {
   int _totalCount = 0;
   String _depsPath;
   String _corefPath;
@@ -67,6 +72,7 @@ public class CountVerbDepCorefs {
 
   boolean _fullPrep = false; // true if you want "p_during" and not just "p"
   boolean _countObjectCollocations = false; // true if you want to count collocations too
+  boolean _delta = false; // true to add to the existing output file
   private String duplicatesPath = "duplicates";
   private Set<String> _duplicates;
   Map<String,Map<String,Count>> _counts;
@@ -88,6 +94,9 @@ public class CountVerbDepCorefs {
     if( params.hasFlag("-objects") ) _countObjectCollocations = true;
     System.out.println("objectCollocations\t" + _countObjectCollocations);
 
+    if( params.hasFlag("-delta") ) _delta = true;
+    System.out.println("delta\t" + _delta);
+
     if( params.hasFlag("-output") ) {
       _outdir = params.get("-output");
       if( !(new File(_outdir).isDirectory()) )
@@ -340,26 +349,33 @@ public class CountVerbDepCorefs {
    */
   private void countDeps(ProcessedData reader) {
     reader.nextStory();
-    List<Tree> trees = TreeOperator.stringsToTrees(reader.getParseStrings());
+    List<Tree> trees = reader.getTrees();
 
     // Read the dependencies.
     while( trees != null ) {
-      _numStories++;
-
-      // Count the args.
-      if( _duplicates == null || !_duplicates.contains(reader.currentStory()) ) {
-        countCorefs(trees, reader.getDependencies(), reader.getEntities(), reader.getNER());
-      }
-      // Skip duplicate stories.
-      else System.out.println("Duplicate " + reader.currentStory());
+      countStory(reader);
 
       // Advance to the next story.
       reader.nextStory();
-      trees = TreeOperator.stringsToTrees(reader.getParseStrings());
+      trees = reader.getTrees();
 //      if( _numStories > 10 ) break;
     }
   }
 
+  /**
+   * Counts the reader's current story, unless it is a duplicate.
+   */
+  public void countStory(ProcessedData reader) {
+    _numStories++;
+
+    // Count the args.
+    if( _duplicates == null || !_duplicates.contains(reader.currentStory()) ) {
+      countCorefs(reader.getTrees(), reader.getDependencies(), reader.getEntities(), reader.getNER());
+    }
+    // Skip duplicate stories.
+    else System.out.println("Duplicate " + reader.currentStory());
+  }
+
   /**
    * Removes any key (with an object) from the counts map whose relation counts are 
    * not seen more than or equal to the given cutoff.
@@ -436,6 +452,53 @@ public class CountVerbDepCorefs {
     System.out.println("...loaded " + _counts.size() + " words.");
   }
 
+  /**
+   * Adds the counts in a counts file to the given counts, for -delta.
+   * @return The number of documents the file's counts are from.
+   */
+  private int addCountsFromFile(Map<String,Map<String,Count>> counts, String path) {
+    String line = null;
+    int numDocs = 0;
+    System.out.println("Adding to the counts in " + path);
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(path));
+      line = in.readLine();
+      if( line != null && line.startsWith("NUMDOCS ") ) {
+        numDocs = Integer.parseInt(line.substring(8));
+        line = in.readLine();
+      }
+
+      // e.g. "spearhead o 16 20 8 s 4 7 1"
+      for( ; line != null; line = in.readLine() ) {
+        String parts[] = line.split("\t");
+        if( parts.length % 4 != 1 )
+          throw new IOException("Strange line format: " + line);
+
+        Map<String,Count> verbMap = counts.get(parts[0]);
+        if( verbMap == null ) {
+          verbMap = new HashMap<String, Count>(8);
+          counts.put(parts[0], verbMap);
+        }
+        for( int i = 1; i < parts.length; i += 4 ) {
+          Count count = verbMap.get(parts[i]);
+          if( count == null ) {
+            count = new Count(0, 0, 0);
+            verbMap.put(parts[i], count);
+          }
+          count.docCount += Integer.parseInt(parts[i+1]);
+          count.occurrences += Integer.parseInt(parts[i+2]);
+          count.corefs += Integer.parseInt(parts[i+3]);
+        }
+      }
+      in.close();
+    } catch( Exception ex ) { 
+      System.out.println("Error on line: " + line);
+      ex.printStackTrace(); 
+      System.exit(-1); 
+    }
+    return numDocs;
+  }
+
   /**
    * Get the number of times a token and a relation were seen.
    * Returns zero if token-reln is not found.
@@ -536,8 +599,9 @@ public class CountVerbDepCorefs {
             System.out.println(" coref: " + coref);
             System.out.println(" ner: " + ner);
 
-            ProcessedData dataReader = new ProcessedData(parses, deps, coref, ner);
+            ProcessedData dataReader = new ProcessedData(parses, deps, coref, ner, ProcessedData.DEFAULT_PREFETCH);
             countDeps(dataReader);
+            dataReader.close();
             Util.reportMemory();
           }
         }
@@ -546,20 +610,33 @@ public class CountVerbDepCorefs {
       // Single text file input.
       else {
         System.out.println("file: " + _depsPath);
-        ProcessedData dataReader = new ProcessedData(_parsePath, _depsPath, _corefPath, _nerPath);
+        ProcessedData dataReader = new ProcessedData(_parsePath, _depsPath, _corefPath, _nerPath, ProcessedData.DEFAULT_PREFETCH);
         countDeps(dataReader);
+        dataReader.close();
         System.out.println("_countsLemmas!!! has " + _countsLemmas.size() + " elements.");
       }
 
-      // Trim collocations?
-      if( _countObjectCollocations ) trimObjects(_countsLemmas, 25);
-      
-      // Output the full counts!
-      countsToFile(_countsLemmas, _numStories, _outdir + File.separator + _outfileLemmas);
-      //        countsToFile(_counts, _numStories, _outdir + File.separator + _outfile);
+      saveCounts();
     }
   }
 
+  /**
+   * Writes the lemma counts to the output directory.
+   */
+  public void saveCounts() {
+    String path = _outdir + File.separator + _outfileLemmas;
+    int numDocs = _numStories;
+    if( _delta && Directory.fileExists(path) )
+      numDocs += addCountsFromFile(_countsLemmas, path);
+
+    // Trim collocations?
+    if( _countObjectCollocations ) trimObjects(_countsLemmas, 25);
+
+    // Output the full counts!
+    countsToFile(_countsLemmas, numDocs, path);
+    //        countsToFile(_counts, _numStories, _outdir + File.separator + _outfile);
+  }
+
   private class Count {
     public int docCount = 0;
     public int occurrences = 0;
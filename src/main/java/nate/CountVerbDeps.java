@@ -15,6 +15,7 @@ import java.util.zip.GZIPInputStream;
 
 import nate.util.Directory;
 import nate.util.HandleParameters;
+import nate.util.TokenClassifier;
 import nate.util.WordNet;
 
 /**
@@ -109,9 +110,7 @@ public class CountVerbDeps {
    */
   public static boolean isNumber(String str) {
     // Must start with a number, and then can have commas.
-    if( str.matches("[0-9][0123456789,-]*") )
-      return true;
-    else return false;
+    return TokenClassifier.isNumber(str);
   }
 
   /**
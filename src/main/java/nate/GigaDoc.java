@@ -2,8 +2,10 @@ package nate;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -22,10 +24,24 @@ public class GigaDoc {
   public static String EVENT_ELEM = "EV";
   public static String DEP_ELEM = "D";
   public static String NER_ELEM = "N";
+  public static String SKIP_ELEM = "SKIP";
   //  BufferedWriter writer;
   PrintWriter writer;
+  // Only set for documents written to a file.
+  FileOutputStream fileOut = null;
+  // Only set for in-memory documents.
+  StringWriter buffer = null;
   boolean storyOpen = false;
 
+  /**
+   * Creates an in-memory document. Nothing is written to disk, the text can be
+   * retrieved with bufferedText() and later appended to a real file with addRaw().
+   */
+  public GigaDoc() {
+    buffer = new StringWriter();
+    writer = new PrintWriter(buffer);
+  }
+
   public GigaDoc(String docname) throws Exception {
     this(docname, false);
   }
@@ -40,7 +56,8 @@ public class GigaDoc {
     }
 
     try {
-      writer = new PrintWriter(new BufferedWriter(new FileWriter(docname, append)));
+      fileOut = new FileOutputStream(docname, append);
+      writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(fileOut)));
     } catch( Exception ex ) { ex.printStackTrace(); }
   }
 
@@ -139,6 +156,42 @@ public class GigaDoc {
     }
   }
 
+  /**
+   * Appends already formatted text (e.g., from an in-memory GigaDoc) to this document.
+   */
+  public void addRaw(String text) {
+    if( writer != null ) {
+      try {
+        writer.print(text);
+        writer.flush();
+      } catch( Exception ex ) { ex.printStackTrace(); }
+    }
+  }
+
+  /**
+   * @return The text written so far to an in-memory document, null if this document is a file.
+   */
+  public String bufferedText() {
+    if( buffer == null ) return null;
+    writer.flush();
+    return buffer.toString();
+  }
+
+  /**
+   * Records that the parser skipped an annotator on this story, e.g., "coref" or "parse 3".
+   */
+  public void addSkip(String what) {
+    if( writer != null && storyOpen ) {
+      try {
+        writer.print("<" + SKIP_ELEM + ">");
+        writer.print(what);
+        writer.print("</" + SKIP_ELEM + ">\n");
+      } catch( Exception ex ) { ex.printStackTrace(); }
+    } else {
+      System.out.println("WARNING: adding skip with no open story");
+    }
+  }
+
   public void openStory(String name, int idnum) {
     if( writer != null ) {
       try {
@@ -162,6 +215,22 @@ public class GigaDoc {
     }
   }
 
+  /**
+   * Flushes everything written so far and forces it to disk.
+   * @return The length of the file in bytes, or -1 if this isn't a file.
+   */
+  public long sync() {
+    if( fileOut == null ) return -1;
+    try {
+      writer.flush();
+      fileOut.getFD().sync();
+      return fileOut.getChannel().size();
+    } catch( Exception ex ) { 
+      ex.printStackTrace();
+      return -1;
+    }
+  }
+
   public void closeDoc() {
     try {
       writer.flush();
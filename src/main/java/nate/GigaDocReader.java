@@ -28,10 +28,14 @@ public class GigaDocReader {
   List<EntityMention> entities;
   List<List<TypedDependency>> alldeps;
   List<NERSpan> allner;
+  // Annotators the parser skipped on this story, see GigaDoc.addSkip()
+  List<String> skipped;
   String mainpath;
   int currentDoc = 0, currentStoryNum;
   String currentStory = null;
   Map<String,GrammaticalRelation> stringToGramRels;
+  // Seeks to stories by name, see nextStory(String).
+  StorySeeker seeker = null;
 
   public GigaDocReader() {
     init();
@@ -48,6 +52,7 @@ public class GigaDocReader {
     entities = new ArrayList<EntityMention>();
     alldeps = new ArrayList<List<TypedDependency>>();
     allner = new ArrayList<NERSpan>();
+    skipped = new ArrayList<String>();
     stringToGramRels = new HashMap<String, GrammaticalRelation>();
   }
   
@@ -63,13 +68,14 @@ public class GigaDocReader {
     entities = new ArrayList<EntityMention>();
     alldeps = new ArrayList<List<TypedDependency>>();
     allner = new ArrayList<NERSpan>();
+    skipped = new ArrayList<String>();
   }
 
   private void open(String filename) {
+    // Reopening keeps the seeker and its index.
+    if( seeker == null ) seeker = new StorySeeker(filename);
     try {
-      if( filename.endsWith(".gz") )
-        in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(filename))));
-      else in = new BufferedReader(new FileReader(filename));
+      in = seeker.open();
     } catch( Exception ex ) { 
       System.err.println("Error opening " + filename);
       ex.printStackTrace();
@@ -88,6 +94,7 @@ public class GigaDocReader {
     events.clear();
     alldeps.clear();
     allner.clear();
+    skipped.clear();
 
     if( in != null ) {
       try {
@@ -111,6 +118,7 @@ public class GigaDocReader {
 
           // Read in the story
           processStory(in);
+          seeker.advance();
           return true;
         }
       } catch( Exception ex ) { ex.printStackTrace(); }
@@ -124,6 +132,15 @@ public class GigaDocReader {
    * Read the events and entities from the next story
    */
   public boolean nextStory(String storyName) {
+    return nextStory(storyName, -1);
+  }
+
+  /**
+   * Read the events and entities from a story of the given name.
+   * @param occurrence Which of the stories with the name to read, counted from the start
+   *                   of the file (0 is the first), or -1 for the next one.
+   */
+  public boolean nextStory(String storyName, int occurrence) {
     currentDoc++;
     currentStory = null;
 
@@ -132,14 +149,22 @@ public class GigaDocReader {
     events.clear();
     alldeps.clear();
     allner.clear();
+    skipped.clear();
 
     if( in != null ) {
       try {
+        in = seeker.seekTo(storyName, occurrence, in);
+        // Without the index, pass the earlier stories of the name.
+        int skip = (seeker.found() ? 0 : Math.max(occurrence, 0));
         String line;
         while ( (line = in.readLine()) != null ) {
 
           // find the doc line of the story storyName
           if ( !line.startsWith("<DOC ") || line.indexOf(storyName) < 0 ) continue;
+          if( skip > 0 ) {
+            skip--;
+            continue;
+          }
           currentStory = storyName;
 
           // Get the story ID number
@@ -209,6 +234,10 @@ public class GigaDocReader {
 //          System.out.println("NER! " + ner);
           allner.add(ner);
         }
+        // annotators skipped by the parser
+        else if ( line.startsWith("<SKIP>") ) {
+          skipped.add(line.substring(6, line.indexOf("</SKIP>")));
+        }
       }
     }
   }
@@ -261,6 +290,10 @@ public class GigaDocReader {
 //          System.out.println("NER! " + ner);
           allner.add(ner);
         }
+        // annotators skipped by the parser
+        else if ( line.startsWith("<SKIP>") ) {
+          skipped.add(line.substring(6, line.indexOf("</SKIP>")));
+        }
       }
     }
   }
@@ -433,6 +466,7 @@ public class GigaDocReader {
         in.close();
       } catch( Exception ex ) { ex.printStackTrace(); }
     }
+    if( seeker != null ) seeker.close();
   }
 
   public List<EntityMention> getEntities() {
@@ -451,6 +485,11 @@ public class GigaDocReader {
     return allner;
   }
 
+  public List<String> getSkipped() {
+    return skipped;
+  }
+
   public String currentStory() { return currentStory; }
   public int currentStoryNum() { return currentStoryNum; }
+  public int currentDoc() { return currentDoc; }
 }
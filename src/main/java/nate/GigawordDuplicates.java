@@ -6,30 +6,46 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nate.util.Directory;
+import nate.util.HandleParameters;
+import nate.util.MinHash;
 
 
 /**
  * Class to process Gigaword files and look for duplicate documents.
  * Outputs a list of duplicates to a file named "duplicates".
+ *
+ * A document is a duplicate of an earlier document in the same file if their first two
+ * sentences are the same, or if their MinHash signatures say they share most of their
+ * word shingles (-threshold, default 0.8). Both checks are hash lookups, so each file
+ * takes linear time. Use -exact for only the sentence check.
+ *
+ * GigawordDuplicates [-threads n] [-threshold t] [-exact] [-output file] <dir>
  * @author Nate Chambers
  */
 public class GigawordDuplicates {
   String _dataPath = "";
-  HashMap<String,String> _initial;
-  HashMap<String,String> _other;
   Vector<String> _duplicates;
   String _outputFile = "duplicates-new";
+  int _numThreads = 1;
+  double _threshold = 0.8;
+  boolean _exactOnly = false;
 
 
   // Constructor for finding the duplicates
   GigawordDuplicates(String[] args) {
     handleParameters(args);
-    _initial = new HashMap<String, String>(20000);
-    _other = new HashMap<String, String>(20000);
     _duplicates = new Vector<String>();
   }
 
@@ -56,6 +72,11 @@ public class GigawordDuplicates {
 
 
   private void handleParameters(String[] args) {
+    HandleParameters params = new HandleParameters(args);
+    if( params.hasFlag("-threads") ) _numThreads = Integer.parseInt(params.get("-threads"));
+    if( params.hasFlag("-threshold") ) _threshold = Double.parseDouble(params.get("-threshold"));
+    if( params.hasFlag("-exact") ) _exactOnly = true;
+    if( params.hasFlag("-output") ) _outputFile = params.get("-output");
     _dataPath = args[args.length - 1];
   }
 
@@ -85,38 +106,69 @@ public class GigawordDuplicates {
     else return "";
   }
   
-  private void saveStamp(String docname, Vector<String> sentences) {
-    if( sentences != null && sentences.size() > 0 ) {
-      _initial.put(docname, cleanup(sentences.elementAt(0)));
-      _other.put(docname, makeOther(sentences));
+  /**
+   * @return The words of the whole story, for its MinHash signature.
+   */
+  private List<String> words(Vector<String> sentences) {
+    List<String> words = new ArrayList<String>();
+    for( String sentence : sentences ) {
+      String clean = cleanup(sentence);
+      if( clean.length() == 0 ) continue;
+      for( String word : clean.split(" ") )
+        words.add(word);
     }
+    return words;
   }
 
-  private boolean checkOriginality(String docname, Vector<String> sentences) {
-    if( sentences != null && sentences.size() > 0 ) {
-//      System.out.println("Checking " + docname);
-
-      // Yes, check first sentence of every doc before it
-      String first = cleanup(sentences.elementAt(0));
-      String second = null;
-
-      for( Map.Entry<String,String> entry : _initial.entrySet() ) {
-        String doc = entry.getKey();
-        // Check if the first sentence matches
-        if( first.equals(entry.getValue()) ) {
-//          System.out.println("Prelim match! " + first + "\n" + entry.getValue());
-          if( second == null ) second = makeOther(sentences);
-//          System.out.println("1. " + second);
-//          System.out.println("2. " + _other.get(doc));
-          // Check if the second sentence matches too
-          if( second.equals(_other.get(doc)) ) {
-//            System.out.println("Same doc! " + docname + " to " + doc);
-            return false;
+  /**
+   * Reads one Gigaword file and finds the stories that duplicate an earlier story in it.
+   * @return The duplicate story names, in file order.
+   */
+  public List<String> findDuplicates(String path) {
+    List<String> duplicates = new ArrayList<String>();
+    // First two sentences of each original story, to the story.
+    Map<String,String> stamps = new HashMap<String,String>();
+    MinHash minhash = new MinHash();
+    List<String> originals = new ArrayList<String>();
+
+    GigawordHandler giga = new GigawordHandler(path);
+    Vector<String> sentences = giga.nextStory();
+    while( sentences != null ) {
+      String docname = giga.currentStory();
+      if( sentences.size() > 0 ) {
+        String dupOf = null;
+
+        // Same first two sentences.
+        String stamp = cleanup(sentences.elementAt(0)) + "\n" + makeOther(sentences);
+        dupOf = stamps.get(stamp);
+
+        // Near-duplicate text.
+        int[] sig = null;
+        if( dupOf == null && !_exactOnly ) {
+          sig = minhash.signature(words(sentences));
+          if( sig != null ) {
+            int similar = minhash.findSimilar(sig, _threshold);
+            if( similar > -1 ) dupOf = originals.get(similar);
+          }
+        }
+
+        if( dupOf != null ) {
+          duplicates.add(docname);
+          System.out.println("dupe " + docname + " of " + dupOf);
+        }
+        else {
+          stamps.put(stamp, docname);
+          if( sig != null ) {
+            minhash.add(sig);
+            originals.add(docname);
           }
         }
       }
+      sentences = giga.nextStory();
     }
-    return true;
+    giga.closeFile();
+    System.out.println("file " + path + ": " + duplicates.size() + " duplicates");
+    return duplicates;
   }
 
 
@@ -131,45 +183,42 @@ public class GigawordDuplicates {
 
 
   /**
-   * @desc Parse each sentence and save to another file
+   * @desc Find the duplicates in each *.gz file, using -threads files at once.
    */
   public void processData() {
-    int numDocs = 0;
     if( _dataPath.length() > 0 ) {
-
       File dir = new File(_dataPath);
       if( dir.isDirectory() ) {
-        String files[] = dir.list();
-
-        for( String file : files ) {
+        List<String> paths = new ArrayList<String>();
+        for( String file : Directory.getFilesSorted(_dataPath) ) {
           // Only look at *.gz files
-          if( !file.startsWith(".") && file.endsWith(".gz") ) {
-//          if( file.startsWith("nyt_eng_200412") ) {
-            System.out.println("file: " + file);
-            GigawordHandler giga = new GigawordHandler(_dataPath + File.separator + file);
-
-            // Read the documents in this file 
-            Vector<String> sentences = giga.nextStory();
-            while( sentences != null ) {
-              numDocs++;
-              System.out.println(numDocs + ": (" + giga.currentDoc() + "/" + giga.numDocs() + ") " + giga.currentStory);
-              //              if( numDocs % 100 == 0 ) GigawordParser.reportMemory();
-
-              boolean original = checkOriginality(giga.currentStory(), sentences);
-              if( original ) saveStamp(giga.currentStory(), sentences);
-              else {
-                _duplicates.add(giga.currentStory());
-                System.out.println("dupe " + giga.currentStory());
-              }
-
-              sentences = giga.nextStory();
-
-              //	      if( numDocs == 12 ) return;
+          if( !file.startsWith(".") && file.endsWith(".gz") )
+            paths.add(_dataPath + File.separator + file);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(_numThreads);
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        for( final String path : paths ) {
+          results.add(pool.submit(new Callable<List<String>>() {
+            public List<String> call() {
+              System.out.println("file: " + path);
+              return findDuplicates(path);
             }
-            _initial.clear();
-            _other.clear();
-          }
+          }));
+        }
+
+        // Keep the output in file order. A failed file would leave its duplicates out of
+        // the list, so stop before writing it.
+        try {
+          for( Future<List<String>> result : results )
+            _duplicates.addAll(result.get());
+        } catch( Exception ex ) {
+          ex.printStackTrace();
+          System.err.println("ERROR: finding duplicates failed, not writing " + _outputFile);
+          pool.shutdownNow();
+          System.exit(1);
         }
+        pool.shutdown();
       }
     }
 
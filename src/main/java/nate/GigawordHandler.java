@@ -20,6 +20,8 @@ public class GigawordHandler implements DocumentHandler {
   String currentFilename;
   String currentStory;
   String currentHeadline;
+  // Seeks to stories by name, see nextStory(String).
+  StorySeeker seeker = null;
 
   // dummy constructor for extended classes
   public GigawordHandler() { }
@@ -32,10 +34,10 @@ public class GigawordHandler implements DocumentHandler {
     currentFilename = filename;
     //    numDocs = getNumDocs(filename);
     currentDoc = 0;
+    if( seeker != null ) seeker.close();
+    seeker = new StorySeeker(filename);
     try {
-      if( filename.endsWith(".gz") )
-        in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(filename))));
-      else in = new BufferedReader(new FileReader(filename));
+      in = seeker.open();
     } catch( Exception ex ) { ex.printStackTrace(); }
   }
 
@@ -84,6 +86,7 @@ public class GigawordHandler implements DocumentHandler {
 		// TODO Auto-generated catch block
 		e.printStackTrace();
 	}
+	if( seeker != null ) seeker.close();
   }
 
   /**
@@ -108,6 +111,7 @@ public class GigawordHandler implements DocumentHandler {
           if ( !line.startsWith("<DOC ") || line.indexOf("type=\"story") < 0 ) continue;
           int namestart = line.indexOf('"')+1;
           currentStory = line.substring(namestart, line.indexOf('"',namestart));
+          seeker.advance();
 
           // Get the story ID number
           currentStoryNum = parseStoryNum(line);
@@ -201,6 +205,14 @@ public class GigawordHandler implements DocumentHandler {
   }
 
   public Vector<String> nextStory(String storyName, boolean keepLineBreaks) {
+    return nextStory(storyName, -1, keepLineBreaks);
+  }
+
+  /**
+   * @param occurrence Which of the stories with the name to read, counted from the start
+   *                   of the file (0 is the first), or -1 for the next one.
+   */
+  public Vector<String> nextStory(String storyName, int occurrence, boolean keepLineBreaks) {
     StringBuffer sb = new StringBuffer();
     Vector<String> paragraphs = null;
     currentDoc++;
@@ -208,10 +220,17 @@ public class GigawordHandler implements DocumentHandler {
 
     if( in != null ) {
       try {
+        in = seeker.seekTo(storyName, occurrence, in);
+        // Without the index, pass the earlier stories of the name.
+        int skip = (seeker.found() ? 0 : Math.max(occurrence, 0));
         String line;
         while ( (line = in.readLine()) != null ) {
           // find the doc line of the next story "storyName"
           if ( !line.startsWith("<DOC ") || line.indexOf(storyName) < 0 ) continue;
+          if( skip > 0 ) {
+            skip--;
+            continue;
+          }
           int namestart = line.indexOf('"')+1;
           currentStory = line.substring(namestart, line.indexOf('"',namestart));
 
@@ -347,6 +366,7 @@ public class GigawordHandler implements DocumentHandler {
 
     if( in != null ) {
       try {
+        in = seeker.seekTo(name, in);
         String line;
         while ( (line = in.readLine()) != null ) {
 
@@ -5,6 +5,7 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -12,11 +13,18 @@ import java.util.TreeSet;
 import nate.util.Directory;
 
 
+/**
+ * Document and term frequencies of words, and their IDF scores. Maps read from a file
+ * are held compactly in a read-only CompactIDF, memory-mapped if the file was converted
+ * to binary, until something changes them.
+ */
 public class IDFMap {
 //  private HashMap<String,Integer> _wordToDocAppearances;
 //  private HashMap<String,Integer> _wordToFrequencies;
 //  private HashMap<String,Float> _wordToIDF;
   private Map<String,WordCounts> _wordToCounts;
+  // The counts read from a file, until the map is changed.
+  private CompactIDF _compact = null;
   private int _numDocs = 0;
   private int _totalCorpusCount = 0;
 
@@ -59,7 +67,7 @@ public class IDFMap {
    * @param filename The name of a file to create for the IDF scores
    */  
   public void saveToFile(String filename) {
-    Set<String> keys = _wordToCounts.keySet();
+    Set<String> keys = getWords();
     System.out.println("key size " + keys.size());
     TreeSet<String> treeset = new TreeSet<String>(keys);
     try {
@@ -85,52 +93,65 @@ public class IDFMap {
 
 
   /**
-   * @param filename The name of the IDF file
+   * @param filename The name of the IDF file, read from its converted binary file if
+   *                 that is newer than it.
    * @desc Read in a list of words and their IDF counts
    */
   public void fromFile(String filename) {
     if( filename == null || filename.length() > 0 ) {
       System.out.println("...reading IDF file " + filename);
-      String line = null;
-
-      BufferedReader in = null;
+      CompactIDF compact = null;
       try {
-        in = new BufferedReader(new FileReader(filename));
+        String binary = CompactIDF.binaryPath(filename);
+        if( binary != null ) compact = new CompactIDF(binary);
+        else compact = CompactIDF.fromText(filename);
       } catch( Exception ex ) { 
-        System.out.println("(IDFMap.java) Error opening file: " + filename);
+        System.out.println("(IDFMap.java) Error reading file: " + filename);
         ex.printStackTrace();
         System.exit(-1);
       }
+      // number of docs
+      _numDocs = compact.numDocs();
+      System.out.println("...based on " + _numDocs + " docs");
 
-      try {
-        line = in.readLine();
-        // number of docs
-        _numDocs = Integer.valueOf(line.substring(line.indexOf(' ')+1));
-        System.out.println("...based on " + _numDocs + " docs");
-        // word list
-        while( (line = in.readLine()) != null ) {
-          String parts[] = line.split("\t");
-          int freq = Integer.valueOf(parts[1]);
-          _totalCorpusCount += freq;
-
-          setFrequency(parts[0], freq);
-          setDocCount(parts[0], Integer.valueOf(parts[2]));
-          setIDFScore(parts[0], Float.valueOf(parts[3]));
-          if( parts.length > 4 ) setInformationContent(parts[0], Float.valueOf(parts[4]));
-//          System.out.println("idf\t" + parts[0] + "\t" + getCounts(parts[0]));
+      if( _compact == null && _wordToCounts.isEmpty() ) {
+        _compact = compact;
+        _totalCorpusCount = compact.totalCorpusCount();
+      }
+      // Words already in the map take the file's counts.
+      else {
+        _totalCorpusCount += compact.totalCorpusCount();
+        for( int i = 0; i < compact.size(); i++ ) {
+          WordCounts counts = getCounts(compact.word(i));
+          counts.tokenFrequency = compact.frequency(i);
+          counts.docFrequency = compact.docCount(i);
+          counts.idfScore = compact.idf(i);
+          counts.informationContent = compact.informationContent(i);
         }
-      } catch( Exception ex ) { 
-        System.out.println("Exception reading line: " + line);
-        ex.printStackTrace(); 
-        System.exit(1);
       }
-
     } else {
       System.out.println("WARNING: IDFMap fromFile() got an empty path");
       System.exit(1);
     }
   }
 
+  /**
+   * Copies the compact counts read from a file into the map, so they can be changed.
+   */
+  private void unpack() {
+    if( _compact != null ) {
+      CompactIDF compact = _compact;
+      _compact = null;
+      for( int i = 0; i < compact.size(); i++ ) {
+        WordCounts counts = getCounts(compact.word(i));
+        counts.tokenFrequency = compact.frequency(i);
+        counts.docFrequency = compact.docCount(i);
+        counts.idfScore = compact.idf(i);
+        counts.informationContent = compact.informationContent(i);
+      }
+    }
+  }
+
   public void setFrequency(String token, int freq) {
     WordCounts counts = getCounts(token);
     counts.tokenFrequency = freq;
@@ -155,6 +176,7 @@ public class IDFMap {
   }
   
   private WordCounts getCounts(String token) {
+    unpack();
     WordCounts counts = _wordToCounts.get(token);
     if( counts == null ) {
       counts = new WordCounts();
@@ -164,7 +186,7 @@ public class IDFMap {
   }
   
   public void printIDF() {
-    Set<String> keys = _wordToCounts.keySet();
+    Set<String> keys = getWords();
     TreeSet<String> treeset = new TreeSet<String>(keys);
     //    Object words[] = keys.toArray();
     //    Arrays.sort(words);
@@ -178,6 +200,7 @@ public class IDFMap {
    */
   public void calculateIDF() {
     System.out.println("Calculating IDF");
+    unpack();
     _totalCorpusCount = 0;
     double numDocs = (double)_numDocs;
     
@@ -190,10 +213,37 @@ public class IDFMap {
     }
   }
   
+  /**
+   * Adds another map's counts to ours: the number of documents, and each word's document
+   * and term frequencies. Maps counted over separate documents merge in any order to the
+   * counts of one map over all of them. Call calculateIDF() afterwards for the scores.
+   */
+  public void merge(IDFMap other) {
+    unpack();
+    _numDocs += other._numDocs;
+    _totalCorpusCount += other._totalCorpusCount;
+    CompactIDF compact = other._compact;
+    if( compact != null ) {
+      for( int i = 0; i < compact.size(); i++ ) {
+        WordCounts counts = getCounts(compact.word(i));
+        counts.docFrequency += compact.docCount(i);
+        counts.tokenFrequency += compact.frequency(i);
+      }
+    }
+    else {
+      for( Map.Entry<String,WordCounts> entry : other._wordToCounts.entrySet() ) {
+        WordCounts counts = getCounts(entry.getKey());
+        counts.docFrequency += entry.getValue().docFrequency;
+        counts.tokenFrequency += entry.getValue().tokenFrequency;
+      }
+    }
+  }
+
   /**
    * @return True if the given word is in our map, false otherwise.
    */
   public boolean contains(String word) {
+    if( _compact != null ) return _compact.index(word) > -1;
     return _wordToCounts.containsKey(word);
   }
   
@@ -202,6 +252,10 @@ public class IDFMap {
    * @return The IDF of the word, or 0 if the word is unknown.
    */
   public float get(String word) {
+    if( _compact != null ) {
+      int index = _compact.index(word);
+      return (index < 0 ? 0 : _compact.idf(index));
+    }
     WordCounts counts = _wordToCounts.get(word);   
     if( counts == null )
       return 0;
@@ -214,6 +268,10 @@ public class IDFMap {
    * @return The number of documents in which the word appears
    */
   public int getDocCount(String word) {
+    if( _compact != null ) {
+      int index = _compact.index(word);
+      return (index < 0 ? 0 : _compact.docCount(index));
+    }
     WordCounts counts = _wordToCounts.get(word);   
     if( counts == null )
       return 0;
@@ -226,6 +284,10 @@ public class IDFMap {
    * @return The number of times the word appears (term frequency over corpus)
    */
   public int getFrequency(String word) {
+    if( _compact != null ) {
+      int index = _compact.index(word);
+      return (index < 0 ? 0 : _compact.frequency(index));
+    }
     WordCounts counts = _wordToCounts.get(word);   
     if( counts == null )
       return 0;
@@ -234,6 +296,10 @@ public class IDFMap {
   }
 
   public float getInformationContent(String word) {
+    if( _compact != null ) {
+      int index = _compact.index(word);
+      return (index < 0 ? 0 : _compact.informationContent(index));
+    }
     WordCounts counts = _wordToCounts.get(word);   
     if( counts == null )
       return 0;
@@ -245,6 +311,11 @@ public class IDFMap {
    * @return The set of words
    */
   public Set<String> getWords() {
+    if( _compact != null ) {
+      Set<String> words = new HashSet<String>(2 * _compact.size());
+      for( int i = 0; i < _compact.size(); i++ ) words.add(_compact.word(i));
+      return words;
+    }
     return _wordToCounts.keySet();
   }
   
@@ -255,6 +326,13 @@ public class IDFMap {
    */
   public Map<String,Integer> getFrequencyVector(int cutoff) {
     Map<String,Integer> freq = new HashMap<String,Integer>();
+    if( _compact != null ) {
+      for( int i = 0; i < _compact.size(); i++ ) {
+        if( _compact.frequency(i) >= cutoff )
+          freq.put(_compact.word(i), _compact.frequency(i));
+      }
+      return freq;
+    }
     for( Map.Entry<String,WordCounts> entry : _wordToCounts.entrySet() ) {
       if( entry.getValue().tokenFrequency >= cutoff )
         freq.put(entry.getKey(), entry.getValue().tokenFrequency);
@@ -267,6 +345,7 @@ public class IDFMap {
    * @param word A string word
    */
   public void increaseDocCount(String word) {
+    unpack();
     WordCounts counts = _wordToCounts.get(word);   
     if( counts == null ) {
       counts = new WordCounts();
@@ -281,6 +360,7 @@ public class IDFMap {
    * @param word A string word
    */
   public void increaseTermFrequency(String word) {
+    unpack();
     WordCounts counts = _wordToCounts.get(word);   
     if( counts == null ) {
       counts = new WordCounts();
@@ -308,7 +388,26 @@ public class IDFMap {
   public int numDocs() { return _numDocs; }
   
   public void clear() {
+    _compact = null;
   	_wordToCounts.clear();
   	_wordToCounts = null;
   }
+
+
+  /**
+   * Merges IDF files counted over separate documents, such as the shards of CalculateIDF,
+   * into one file with new IDF scores.
+   */
+  public static void main(String[] args) {
+    if( args.length < 2 ) {
+      System.out.println("IDFMap <output-idf> <idf-file>*");
+      System.exit(-1);
+    }
+
+    IDFMap merged = new IDFMap(75000);
+    for( int i = 1; i < args.length; i++ )
+      merged.merge(new IDFMap(args[i]));
+    merged.calculateIDF();
+    merged.saveToFile(args[0]);
+  }
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Vector;
 
+import nate.reading.ProcessedCorpus;
 import nate.reading.ProcessedData;
 import nate.util.Directory;
 import nate.util.HandleParameters;
@@ -382,7 +383,7 @@ public class NERMarkup {
 
 
   private boolean validFilename(String file) {
-    if( !file.startsWith(".") && file.contains("parse") ) {
+    if( ProcessedCorpus.isTextParseFile(file) ) {
       return true;
     }
     return false;
@@ -0,0 +1,204 @@
+package nate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+
+/**
+ * The four output files AllParser creates for one text file: parses, dependencies,
+ * NER and events.
+ *
+ * The files are written under temporary names (e.g., "nyt_199407.parse.tmp") and only
+ * renamed to their real names when the whole text file is parsed, so an existing .parse
+ * file is always complete. After each story, the files are synced to disk and a journal
+ * file ("nyt_199407.journal") records the story and the length of each file. If the
+ * parser dies, the next run cuts the temporary files back to the journaled lengths and
+ * continues with the story after the journaled one. If that story can't be found in the
+ * text file again, restart() drops the earlier output and the file is parsed from the start.
+ */
+public class ParseOutput {
+  public static final String TMP_SUFFIX = ".tmp";
+  public static final String JOURNAL_SUFFIX = ".journal";
+
+  GigaDoc doc, depdoc, nerdoc, corefdoc;
+  // Final file paths, in the same order as the docs above.
+  String[] paths;
+  String journalPath = null;
+  // The last story in the journal, if we are continuing a previous run.
+  String resumeStory = null;
+  int resumeStoryID = -1;
+
+
+  /**
+   * @param outputDir The directory of the output files.
+   * @param file The name of the text file being parsed.
+   */
+  public ParseOutput(String outputDir, String file) {
+    String base = outputDir + File.separator + file;
+    paths = new String[] { base + ".parse", base + ".deps", base + ".ner", base + ".events" };
+    journalPath = base + JOURNAL_SUFFIX;
+  }
+
+  /**
+   * Opens existing output files to add stories to the end, without temporary files
+   * or a journal. Used by AllParser's -continue option on older output.
+   */
+  public static ParseOutput appendTo(String outputDir, String file) throws Exception {
+    ParseOutput out = new ParseOutput(outputDir, file);
+    out.journalPath = null;
+    out.doc = new GigaDoc(out.paths[0], true);
+    out.depdoc = new GigaDoc(out.paths[1], true);
+    out.nerdoc = new GigaDoc(out.paths[2], true);
+    out.corefdoc = new GigaDoc(out.paths[3], true);
+    return out;
+  }
+
+  /**
+   * @return True if the parse file was completed by an earlier run.
+   */
+  public boolean isDone() {
+    return GigaDoc.fileExists(paths[0]);
+  }
+
+  /**
+   * Opens the temporary output files. If a journal exists from an earlier run, the
+   * files are cut back to the last complete story and resumeStory() is set.
+   * Otherwise new empty files are created.
+   */
+  public void open() throws Exception {
+    long[] lengths = readJournal();
+
+    if( lengths != null ) {
+      for( int i = 0; i < paths.length; i++ ) {
+        // We may have died while renaming the finished files.
+        File tmp = new File(paths[i] + TMP_SUFFIX);
+        if( !tmp.exists() && GigaDoc.fileExists(paths[i]) )
+          Files.move(new File(paths[i]).toPath(), tmp.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        truncate(tmp, lengths[i]);
+      }
+      System.out.println("Resuming after story " + resumeStory + " (" + resumeStoryID + ")");
+    }
+    else {
+      for( String path : paths )
+        new File(path + TMP_SUFFIX).delete();
+    }
+
+    boolean append = (lengths != null);
+    doc = new GigaDoc(paths[0] + TMP_SUFFIX, append);
+    depdoc = new GigaDoc(paths[1] + TMP_SUFFIX, append);
+    nerdoc = new GigaDoc(paths[2] + TMP_SUFFIX, append);
+    corefdoc = new GigaDoc(paths[3] + TMP_SUFFIX, append);
+  }
+
+  /**
+   * Reads the journal of an earlier run, if there is one.
+   * @return The lengths of the four files after the last complete story, or null.
+   */
+  private long[] readJournal() {
+    if( journalPath == null || !GigaDoc.fileExists(journalPath) ) return null;
+
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(journalPath));
+      String line = in.readLine();
+      in.close();
+
+      String[] parts = line.split("\t");
+      long[] lengths = new long[paths.length];
+      for( int i = 0; i < paths.length; i++ )
+        lengths[i] = Long.parseLong(parts[i+2]);
+      resumeStoryID = Integer.parseInt(parts[0]);
+      resumeStory = parts[1];
+      return lengths;
+    } catch( Exception ex ) {
+      System.out.println("WARNING: unreadable journal " + journalPath + ", starting the file over.");
+      ex.printStackTrace();
+      resumeStory = null;
+      resumeStoryID = -1;
+      return null;
+    }
+  }
+
+  /**
+   * Drops the output of an earlier run, when its journaled story isn't in the text file
+   * anymore, and starts over with new empty files.
+   */
+  public void restart() throws Exception {
+    doc.closeDoc();
+    depdoc.closeDoc();
+    nerdoc.closeDoc();
+    corefdoc.closeDoc();
+    if( journalPath != null ) new File(journalPath).delete();
+    resumeStory = null;
+    resumeStoryID = -1;
+    open();
+  }
+
+  private void truncate(File file, long length) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if( raf.length() < length )
+        throw new Exception("File " + file + " is shorter than its journal says.");
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Call after a story is completely written to all four files. Syncs the files to disk,
+   * then journals the story and the file lengths. The new journal is synced before it
+   * atomically replaces the old one, so the journal always holds one complete entry.
+   */
+  public void storyWritten(int storyID, String storyName) {
+    if( journalPath == null ) return;
+
+    long[] lengths = { doc.sync(), depdoc.sync(), nerdoc.sync(), corefdoc.sync() };
+    try {
+      File tmp = new File(journalPath + TMP_SUFFIX);
+      StringBuilder entry = new StringBuilder();
+      entry.append(storyID).append('\t').append(storyName);
+      for( long length : lengths )
+        entry.append('\t').append(length);
+      entry.append('\n');
+      FileOutputStream writer = new FileOutputStream(tmp);
+      try {
+        writer.write(entry.toString().getBytes());
+        writer.getChannel().force(true);
+      } finally {
+        writer.close();
+      }
+      Files.move(tmp.toPath(), new File(journalPath).toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch( Exception ex ) { ex.printStackTrace(); }
+  }
+
+  /**
+   * Closes the files and renames them to their final names. The parse file is renamed
+   * last since its existence means the text file is done.
+   */
+  public void commit() {
+    doc.closeDoc();
+    depdoc.closeDoc();
+    nerdoc.closeDoc();
+    corefdoc.closeDoc();
+    if( journalPath == null ) return;
+
+    try {
+      for( int i = paths.length-1; i >= 0; i-- )
+        Files.move(new File(paths[i] + TMP_SUFFIX).toPath(), new File(paths[i]).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      new File(journalPath).delete();
+    } catch( Exception ex ) { ex.printStackTrace(); }
+  }
+
+  /**
+   * @return The name of the last story written by an earlier run, or null if starting fresh.
+   */
+  public String resumeStory() { return resumeStory; }
+  public int resumeStoryID() { return resumeStoryID; }
+}
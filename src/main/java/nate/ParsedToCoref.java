@@ -7,6 +7,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Vector;
 
+import nate.reading.ProcessedCorpus;
 import nate.util.Directory;
 import nate.util.HandleParameters;
 import nate.util.Locks;
@@ -121,8 +122,7 @@ public class ParsedToCoref {
     File dir = new File(parseDir);
     if( dir.isDirectory() ) {
       for( String file : Directory.getFilesSorted(parseDir) ) {
-        // Only look at *.gz files
-        if( !file.startsWith(".") && file.contains("parse") ) {
+        if( ProcessedCorpus.isTextParseFile(file) ) {
           String core = file.substring(0,file.indexOf('.'));
           String newfile = outputDir + File.separator + core + ".events";
           
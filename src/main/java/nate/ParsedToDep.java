@@ -6,6 +6,7 @@ import java.io.StringReader;
 import java.util.Collection;
 import java.util.Vector;
 
+import nate.reading.ProcessedCorpus;
 import nate.util.Directory;
 import nate.util.HandleParameters;
 
@@ -97,7 +98,7 @@ public class ParsedToDep {
   private boolean validFilename(String file) {
     if( _inputType.equals("bnc") && (file.contains("charniak") || file.contains("_eng")) ) 
       return true;
-    else if( _inputType.equals("giga") && file.contains("parse") )
+    else if( _inputType.equals("giga") && ProcessedCorpus.isTextParseFile(file) )
       return true;
     else return false;
   }
@@ -0,0 +1,20 @@
+package nate;
+
+import nate.reading.ProcessedData;
+
+
+/**
+ * A statistics counter that CountStatistics can feed stories to, so that several
+ * counters share one read of the corpus instead of each decoding it again.
+ */
+public interface StoryCounter {
+  /**
+   * Counts the reader's current story. Counters skip duplicate stories themselves.
+   */
+  public void countStory(ProcessedData reader);
+
+  /**
+   * Writes the counts to the counter's usual output file, as a run over a single file does.
+   */
+  public void saveCounts();
+}
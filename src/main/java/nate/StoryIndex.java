@@ -0,0 +1,254 @@
+package nate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Byte offsets of the <DOC ... type="story"> lines in an uncompressed pseudo-xml file,
+ * so GigaDocReader and GigawordHandler can seek straight to a story by name.
+ *
+ * The index is saved next to the file as "<file>.idx" the first time it is needed, and
+ * rebuilt if the file's length or modification time changed. Its first line is the
+ * file's length and modification time, then one "name<tab>offset" line per story in
+ * file order.
+ *
+ * A plain gzipped file cannot seek, so it has no index. Files written by BlockGzip are
+ * gzipped in independent blocks that each start at a story. Their index is written with
+ * the file, and its offsets are the compressed offsets of each story's block: seeking
+ * starts decompressing at the block, and the reader scans forward to the story in it.
+ */
+public class StoryIndex {
+  public static final String SUFFIX = ".idx";
+
+  List<String> names = new ArrayList<String>();
+  List<Long> offsets = new ArrayList<Long>();
+  Map<String,Integer> positions = new HashMap<String,Integer>();
+  // Every position of the names that appear more than once.
+  Map<String,List<Integer>> repeats = new HashMap<String,List<Integer>>();
+  // True if the offsets point to gzip blocks instead of the stories themselves.
+  boolean blocks = false;
+
+
+  /**
+   * @return The index of the given file, loaded from its .idx file or built and saved.
+   *         Null if the file is gzipped or can't be read.
+   */
+  public static StoryIndex forFile(String path) {
+    if( path == null ) return null;
+    File file = new File(path);
+    if( !file.exists() ) return null;
+
+    boolean gzipped = path.endsWith(".gz");
+    String header = header(file, gzipped);
+    File idxFile = new File(path + SUFFIX);
+    try {
+      if( idxFile.exists() ) {
+        StoryIndex index = load(idxFile, header);
+        if( index != null ) {
+          index.blocks = gzipped;
+          return index;
+        }
+      }
+      // Only BlockGzip can index a gzipped file, as it writes it.
+      if( gzipped ) return null;
+      StoryIndex index = build(file);
+      index.save(idxFile, header);
+      return index;
+    } catch( IOException ex ) {
+      System.out.println("WARNING: could not index " + path);
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * The first line of an index file, which ties it to one version of the indexed file.
+   */
+  static String header(File file, boolean blocks) {
+    return file.length() + "\t" + file.lastModified() + (blocks ? "\tblocks" : "");
+  }
+
+  /**
+   * Reads the file once, recording the offset of each story's DOC line.
+   */
+  public static StoryIndex build(File file) throws IOException {
+    System.out.println("Indexing stories in " + file);
+    StoryIndex index = new StoryIndex();
+    InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+    try {
+      StringBuilder line = new StringBuilder();
+      long offset = 0, lineStart = 0;
+      int b;
+      while( true ) {
+        b = in.read();
+        if( b == '\n' || b == -1 ) {
+          // Only DOC lines matter, and they are ASCII.
+          if( line.length() > 5 && line.charAt(0) == '<' && line.indexOf("<DOC ") == 0 ) {
+            String doc = line.toString();
+            if( doc.indexOf("type=\"story") >= 0 ) {
+              int namestart = doc.indexOf('"') + 1;
+              index.add(doc.substring(namestart, doc.indexOf('"', namestart)), lineStart);
+            }
+          }
+          if( b == -1 ) break;
+          line.setLength(0);
+          lineStart = offset + 1;
+        }
+        // Don't bother saving the rest of long lines.
+        else if( line.length() < 1024 ) line.append((char)b);
+        offset++;
+      }
+    } finally {
+      in.close();
+    }
+    return index;
+  }
+
+  private static StoryIndex load(File idxFile, String header) throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(idxFile));
+    try {
+      if( !header.equals(in.readLine()) ) return null;
+      StoryIndex index = new StoryIndex();
+      String line;
+      while( (line = in.readLine()) != null ) {
+        int tab = line.lastIndexOf('\t');
+        index.add(line.substring(0, tab), Long.parseLong(line.substring(tab+1)));
+      }
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Saves through a temporary file, so readers never see half an index. The temporary
+   * name is per thread since several readers of one file may index it at once.
+   */
+  void save(File idxFile, String header) {
+    File tmp = new File(idxFile.getPath() + "." + Thread.currentThread().getId() + ParseOutput.TMP_SUFFIX);
+    try {
+      PrintWriter writer = new PrintWriter(tmp);
+      writer.println(header);
+      for( int i = 0; i < names.size(); i++ )
+        writer.println(names.get(i) + "\t" + offsets.get(i));
+      writer.close();
+      Files.move(tmp.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch( Exception ex ) {
+      // Read-only directories are fine, we just rebuild it next time.
+      System.out.println("WARNING: could not save " + idxFile + ": " + ex.getMessage());
+      tmp.delete();
+    }
+  }
+
+  void add(String name, long offset) {
+    Integer first = positions.get(name);
+    if( first == null ) positions.put(name, names.size());
+    else {
+      List<Integer> all = repeats.get(name);
+      if( all == null ) {
+        all = new ArrayList<Integer>();
+        all.add(first);
+        repeats.put(name, all);
+      }
+      all.add(names.size());
+    }
+    names.add(name);
+    offsets.add(offset);
+  }
+
+  /**
+   * @return The position of the named story in the file (0 is the first story), or -1.
+   *         The first one if the name is repeated.
+   */
+  public int position(String name) {
+    Integer pos = positions.get(name);
+    return (pos == null ? -1 : pos);
+  }
+
+  /**
+   * @return The position of the first story with the name at or after the given position,
+   *         else its first position, or -1 if it isn't in the file.
+   */
+  public int position(String name, int from) {
+    List<Integer> all = repeats.get(name);
+    if( all != null ) {
+      for( int pos : all )
+        if( pos >= from ) return pos;
+    }
+    return position(name);
+  }
+
+  /**
+   * @return The position of the given occurrence of the name (0 is its first story), or
+   *         -1 if the file has fewer stories with the name.
+   */
+  public int nthPosition(String name, int occurrence) {
+    List<Integer> all = repeats.get(name);
+    if( all != null ) return (occurrence < all.size() ? all.get(occurrence) : -1);
+    return (occurrence == 0 ? position(name) : -1);
+  }
+
+  /**
+   * @return The number of stories before the given position with the same name.
+   */
+  public int occurrence(int position) {
+    List<Integer> all = repeats.get(names.get(position));
+    return (all == null ? 0 : all.indexOf(position));
+  }
+
+  /**
+   * @return The position of the first story in the same gzip block as the given one, or
+   *         the position itself if the offsets point to stories.
+   */
+  public int blockStart(int position) {
+    if( !blocks ) return position;
+    long offset = offsets.get(position);
+    while( position > 0 && offsets.get(position-1) == offset ) position--;
+    return position;
+  }
+
+  public long offset(int position) { return offsets.get(position); }
+  public String name(int position) { return names.get(position); }
+  public int size() { return names.size(); }
+
+  /**
+   * Moves the file to the given offset. Closing the reader frees its decompressor but
+   * leaves the file open, to seek again.
+   * @param gzipped True if the offset starts a gzip block.
+   * @return A new reader that starts at the offset.
+   */
+  public static BufferedReader open(RandomAccessFile file, long offset, boolean gzipped) throws IOException {
+    file.getChannel().position(offset);
+    InputStream stream = new FilterInputStream(Channels.newInputStream(file.getChannel())) {
+      public void close() { }
+    };
+    if( gzipped ) stream = new GZIPInputStream(stream, 65536);
+    return new BufferedReader(new InputStreamReader(stream));
+  }
+
+  /**
+   * Moves the file to the given story, or for block files to the start of its block.
+   * @return A new reader that starts there.
+   */
+  public BufferedReader seek(RandomAccessFile file, int position) throws IOException {
+    return open(file, offsets.get(position), blocks);
+  }
+}
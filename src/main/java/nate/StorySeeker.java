@@ -0,0 +1,123 @@
+package nate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/**
+ * Seeks the stream of a GigaDocReader or GigawordHandler to stories by name, with the
+ * file's StoryIndex.
+ *
+ * It follows the position in the index of the next story in the stream, so it only seeks
+ * when the named story isn't next anyway, and so a repeated story name finds the next
+ * story of that name instead of jumping back to the first. Files without an index (plain
+ * gzip) and names not in the index are left to the reader's forward scan.
+ */
+public class StorySeeker {
+  // Longest line to look back over when stopping before a story in a gzip block.
+  static final int MARK_LIMIT = 8192;
+
+  String _path;
+  RandomAccessFile _raf = null;
+  StoryIndex _index = null;
+  boolean _noIndex = false;
+  // The position in the index of the next story in the stream, or -1 if not known.
+  int _next = 0;
+  // True if the last seekTo() found the story in the index.
+  boolean _found = false;
+
+
+  public StorySeeker(String path) {
+    _path = path;
+  }
+
+  /**
+   * Opens the file from its start. Gzipped files can seek too if BlockGzip wrote them.
+   * @return A reader at the start of the file.
+   */
+  public BufferedReader open() throws IOException {
+    close();
+    _raf = new RandomAccessFile(_path, "r");
+    _next = 0;
+    return StoryIndex.open(_raf, 0, _path.endsWith(".gz"));
+  }
+
+  /**
+   * The reader read the next story in the stream without seeking.
+   */
+  public void advance() {
+    if( _next >= 0 ) _next++;
+  }
+
+  /**
+   * Moves to the named story, unless it is the next one in the given stream.
+   * @param in The reader's stream, as returned by open() or the last seekTo().
+   * @return The stream to scan forward for the story: the given one, or a new one that
+   *         starts at the story.
+   */
+  public BufferedReader seekTo(String storyName, BufferedReader in) throws IOException {
+    return seekTo(storyName, -1, in);
+  }
+
+  /**
+   * Moves to a story by name, unless it is the next one in the given stream.
+   * @param occurrence Which of the stories with the name to move to, 0 for the first in
+   *                   the file, or -1 for the first one at or after the stream.
+   * @param in The reader's stream, as returned by open() or the last seekTo().
+   * @return The stream to scan forward for the story: the given one, or a new one that
+   *         starts at the story.
+   */
+  public BufferedReader seekTo(String storyName, int occurrence, BufferedReader in) throws IOException {
+    int next = _next;
+    _next = -1;
+    _found = false;
+    if( _raf == null || _noIndex ) return in;
+
+    if( _index == null ) _index = StoryIndex.forFile(_path);
+    if( _index == null ) {
+      _noIndex = true;
+      return in;
+    }
+
+    int pos = (occurrence < 0 ? _index.position(storyName, Math.max(next, 0)) : _index.nthPosition(storyName, occurrence));
+    if( pos < 0 ) return in;
+    _next = pos + 1;
+    _found = true;
+    if( pos == next ) return in;
+
+    // The old stream's decompressor isn't needed any more, but the file still is.
+    if( in != null ) in.close();
+    BufferedReader seeked = _index.seek(_raf, pos);
+    // A gzip block may start with earlier stories, which could have the same name.
+    int skip = pos - _index.blockStart(pos);
+    String line;
+    while( skip >= 0 ) {
+      seeked.mark(MARK_LIMIT);
+      if( (line = seeked.readLine()) == null ) break;
+      if( line.startsWith("<DOC ") && line.indexOf("type=\"story") >= 0 && skip-- == 0 )
+        seeked.reset();
+    }
+    return seeked;
+  }
+
+  /**
+   * @return True if the last seekTo() found the story in the file's index, so the stream
+   *         it returned is at that story. Otherwise the reader has to find it by scanning.
+   */
+  public boolean found() {
+    return _found;
+  }
+
+  /**
+   * Closes the file. The reader closes its own stream, which leaves the file open.
+   */
+  public void close() {
+    if( _raf != null ) {
+      try {
+        _raf.close();
+      } catch( IOException ex ) { ex.printStackTrace(); }
+      _raf = null;
+    }
+  }
+}
@@ -1,8 +1,11 @@
 package nate.args;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -21,7 +24,10 @@ import nate.GigawordHandler;
 import nate.GigawordProcessed;
 import nate.IDFMap;
 import nate.NERSpan;
+import nate.StoryCounter;
 import nate.WordEvent;
+import nate.reading.ProcessedCorpus;
+import nate.reading.ProcessedData;
 import nate.util.Directory;
 import nate.util.HandleParameters;
 import nate.util.Ling;
@@ -52,10 +58,19 @@ import edu.stanford.nlp.trees.TypedDependency;
  * -nopairs
  * Only counts args of verbs, doesn't also count pairs of coref verbs.
  * 
- * CountArgumentTypes [-idf <idf>] [-nopairs] [-output <output-dir>] -events <events-dir> -deps <deps-dir> -parsed <parse-dir> -ner <ner-dir>
+ * -delta
+ * Add the counts to the output files already there instead of replacing them.
+ * Their counts must be from other documents.
+ * 
+ * -threads
+ * Count on this many threads, each into its own argument counts, and add them together
+ * before saving. A directory of files is then counted all at once into one pair of output
+ * files, instead of by year with lock files.
+ * 
+ * CountArgumentTypes [-idf <idf>] [-nopairs] [-threads <n>] [-output <output-dir>] -events <events-dir> -deps <deps-dir> -parsed <parse-dir> -ner <ner-dir>
  *
  */
-public class CountArgumentTypes {
+public class CountArgumentTypes implements StoryCounter {
   private String _parseDir;
   private String _eventsDir;
   private String _depsDir;
@@ -75,6 +90,8 @@ public class CountArgumentTypes {
   boolean _fullPrep = true; // true if you want "p_during" and not just "p"
   boolean _doPairs = true; // false if you don't want to count verb pair arguments
   boolean _countObjectCollocations = false; // true if you want to count objects as part of events
+  boolean _delta = false; // true to add to the existing output files
+  int _numThreads = 1;
 
   
   private HashSet<String> _ignoreList;
@@ -87,7 +104,7 @@ public class CountArgumentTypes {
   private IDFMap _idf;
 
 
-  CountArgumentTypes(String[] args) {
+  public CountArgumentTypes(String[] args) {
     handleParameters(args);
 
     initLexResources();
@@ -107,6 +124,27 @@ public class CountArgumentTypes {
     _verbCounts = new HashMap<String, Map<String,Integer>>();
   }
 
+  /**
+   * A worker for the -threads mode: counts with the settings of the given instance,
+   * into its own empty argument counts.
+   */
+  private CountArgumentTypes(CountArgumentTypes settings) {
+    _tokenType = settings._tokenType;
+    _idfCutoff = settings._idfCutoff;
+    _docCutoff = settings._docCutoff;
+    _fullPrep = settings._fullPrep;
+    _doPairs = settings._doPairs;
+    _countObjectCollocations = settings._countObjectCollocations;
+    _pairDistance = settings._pairDistance;
+    _ignoreList = settings._ignoreList;
+    _duplicates = settings._duplicates;
+    _idf = settings._idf;
+    _wordnet = new WordNet(settings._wordnet);
+
+    if( _doPairs ) _pairCounts = new HashMap<String, Map<String,Integer>>();
+    _verbCounts = new HashMap<String, Map<String,Integer>>();
+  }
+
   /**
    * CountArgumentTypes <events-dir> <deps-dir>
    */
@@ -130,6 +168,12 @@ public class CountArgumentTypes {
     if( params.hasFlag("-nopairs") )
       _doPairs = false;
 
+    if( params.hasFlag("-delta") ) _delta = true;
+    System.out.println("delta\t" + _delta);
+
+    if( params.hasFlag("-threads") ) _numThreads = Integer.parseInt(params.get("-threads"));
+    System.out.println("threads\t" + _numThreads);
+
     if( params.hasFlag("-output") )
       _outputDir = params.get("-output");
 
@@ -647,6 +691,121 @@ public class CountArgumentTypes {
     }
   }
 
+  /**
+   * Counts the reader's current story, unless it is a duplicate.
+   */
+  public void countStory(ProcessedData reader) {
+    if( _duplicates != null && _duplicates.contains(reader.currentStory()) ) {
+      System.out.println("duplicate " + reader.currentStory());
+    } else {
+      System.out.println(reader.currentStory());
+      if( _numStories++ % 100 == 0 ) Util.reportMemory();
+      analyzeDocument(reader.getTrees(), reader.getDependencies(), reader.getEntities(), reader.getNER(), reader.currentStoryNum());
+    }
+  }
+
+  /**
+   * Trims and writes the counts of a single input file to the output directory.
+   */
+  public void saveCounts() {
+    saveCounts("");
+  }
+
+  /**
+   * Trims and writes the counts to the output files, adding the counts already in them
+   * first if -delta is on.
+   * @param suffix Added to the end of the file names.
+   */
+  private void saveCounts(String suffix) {
+    String pairPath = _outputDir + File.separator + _outputPairFile + suffix;
+    String verbPath = _outputDir + File.separator + _outputVerbFile + suffix;
+    if( _delta ) {
+      if( _doPairs && Directory.fileExists(pairPath) ) addCountsFromFile(_pairCounts, pairPath);
+      if( Directory.fileExists(verbPath) ) addCountsFromFile(_verbCounts, verbPath);
+    }
+    // Trim collocations
+    trimVerbObjects(_verbCounts);
+    // Write to file.
+    if( _doPairs )
+      writeCountsToFile(_pairCounts, pairPath);
+    writeCountsToFile(_verbCounts, verbPath);
+  }
+
+  /**
+   * Adds the argument counts in a file written by writeCountsToFile() to the given counts.
+   */
+  private void addCountsFromFile(Map<String, Map<String,Integer>> counts, String path) {
+    String line = null;
+    System.out.println("Adding to the counts in " + path);
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(path));
+      // e.g. "v-arrested:o law 99 city 88"
+      while( (line = in.readLine()) != null ) {
+        String parts[] = line.split("\t");
+        if( parts.length % 2 != 1 )
+          throw new IOException("Strange line format: " + line);
+        Map<String,Integer> argCounts = counts.get(parts[0]);
+        if( argCounts == null ) {
+          argCounts = new HashMap<String,Integer>();
+          counts.put(parts[0], argCounts);
+        }
+        for( int i = 1; i < parts.length; i += 2 )
+          Util.incrementCount(argCounts, parts[i], Integer.parseInt(parts[i+1]));
+      }
+      in.close();
+    } catch( Exception ex ) {
+      System.out.println("Error on line: " + line);
+      ex.printStackTrace();
+      System.exit(-1);
+    }
+  }
+
+  /**
+   * Counts the arguments in the given files on _numThreads threads, each thread into its
+   * own counts, and adds the threads' counts to ours.
+   * @param files The parse, deps, events and NER paths of each file.
+   */
+  private void countInParallel(List<String[]> files) {
+    ProcessedCorpus corpus = new ProcessedCorpus(files);
+    corpus.setStoriesPerTask(CountTokenPairs.STORIES_PER_TASK);
+    corpus.setPrefetch(ProcessedData.DEFAULT_PREFETCH);
+
+    final CountArgumentTypes settings = this;
+    CountArgumentTypes counted = corpus.forEachDocument(new ProcessedCorpus.DocumentConsumer<CountArgumentTypes>() {
+      public CountArgumentTypes newAccumulator() {
+        return new CountArgumentTypes(settings);
+      }
+      public void document(CountArgumentTypes worker, ProcessedData reader) {
+        worker.countStory(reader);
+      }
+      public void merge(CountArgumentTypes into, CountArgumentTypes from) {
+        into.addCounts(from);
+      }
+    }, _numThreads);
+    addCounts(counted);
+  }
+
+  /**
+   * Adds the argument counts and number of stories of another instance to ours.
+   */
+  private void addCounts(CountArgumentTypes other) {
+    _numStories += other._numStories;
+    if( _doPairs ) addCounts(_pairCounts, other._pairCounts);
+    addCounts(_verbCounts, other._verbCounts);
+  }
+
+  private void addCounts(Map<String, Map<String,Integer>> counts, Map<String, Map<String,Integer>> other) {
+    for( Map.Entry<String, Map<String,Integer>> entry : other.entrySet() ) {
+      Map<String,Integer> argCounts = counts.get(entry.getKey());
+      // The other instance is done with its maps, so take them when we can.
+      if( argCounts == null ) counts.put(entry.getKey(), entry.getValue());
+      else {
+        for( Map.Entry<String,Integer> arg : entry.getValue().entrySet() )
+          Util.incrementCount(argCounts, arg.getKey(), arg.getValue());
+      }
+    }
+  }
+
   public void countDocument(String parsePath, String depsPath, String eventPath, String nerPath) {
     GigawordHandler parseReader = new GigawordProcessed(parsePath);
     GigaDocReader depsReader = new GigaDocReader(depsPath);
@@ -695,11 +854,29 @@ public class CountArgumentTypes {
       File dir = new File(_parseDir);
       String haveLock = "";
 
+      // Directory of files, all at once on the threads.
+      if( dir.isDirectory() && _numThreads > 1 ) {
+        List<String[]> files = new ArrayList<String[]>();
+        for( String file : Directory.getFilesSorted(_parseDir) ) {
+          if( ProcessedCorpus.isParseFileToRead(_parseDir, file) ) {
+            System.out.println("file: " + file);
+            String gzsuffix = (file.endsWith(".gz") ? ".gz" : "");
+            String base = file.substring(0,file.indexOf(".parse"));
+            files.add(new String[] { _parseDir + File.separator + file,
+                _depsDir + File.separator + base + ".deps" + gzsuffix,
+                _eventsDir + File.separator + base + ".events" + gzsuffix,
+                _nerDir + File.separator + base + ".gz.ner" + gzsuffix });
+          }
+        }
+        countInParallel(files);
+        saveCounts();
+      }
+
       // Directory of files.  *** never tested
-      if( dir.isDirectory() ) {
+      else if( dir.isDirectory() ) {
         int numfiles = 0;
         for( String file : Directory.getFilesSorted(_parseDir) ) {
-          if( file.contains("parse") ) {
+          if( ProcessedCorpus.isParseFileToRead(_parseDir, file) ) {
             System.out.println("file: " + file);
             String year = (file.length() > 15 && file.matches(".*\\d\\d\\d\\d.*")) ? file.substring(8,12) : "noyear";
             String month = (file.length() > 15 && file.matches(".*\\d\\d\\d\\d.*")) ? file.substring(12,14) : "nomonth";
@@ -727,12 +904,7 @@ public class CountArgumentTypes {
                 System.out.println("saving to disc...");
                 String suffix = "-1";
                 if( !month.equals("06") && !month.equals("05") ) suffix = "-2";
-                // Trim collocations
-                trimVerbObjects(_verbCounts);
-                // Write to file.
-                if( _doPairs )
-                  writeCountsToFile(_pairCounts, _outputDir + File.separator + _outputPairFile + "-" + year + suffix);
-                writeCountsToFile(_verbCounts, _outputDir + File.separator + _outputVerbFile + "-" + year + suffix);
+                saveCounts("-" + year + suffix);
                 // Now clear the memory.
                 if( _doPairs ) _pairCounts.clear();
                 _verbCounts.clear();
@@ -746,13 +918,13 @@ public class CountArgumentTypes {
         }
       } else {
         // Count the pairs - single files.
-        countDocument(_parseDir, _depsDir, _eventsDir, _nerDir);
-        // Trim collocations
-        trimVerbObjects(_verbCounts);
-        // Write to file.
-        if( _doPairs )
-          writeCountsToFile(_pairCounts, _outputDir + File.separator + _outputPairFile);
-        writeCountsToFile(_verbCounts, _outputDir + File.separator + _outputVerbFile);
+        if( _numThreads > 1 ) {
+          List<String[]> files = new ArrayList<String[]>();
+          files.add(new String[] { _parseDir, _depsDir, _eventsDir, _nerDir });
+          countInParallel(files);
+        }
+        else countDocument(_parseDir, _depsDir, _eventsDir, _nerDir);
+        saveCounts();
       }
     }
   }
@@ -834,7 +1006,7 @@ public class CountArgumentTypes {
         int xx = 0;
         for( Map.Entry<String,Integer> entry : argCounts.entrySet() )
           scores[xx++] = new SortableScore(entry.getValue(), entry.getKey());
-        Arrays.sort(scores);
+        Arrays.sort(scores, SortableScore.BY_SCORE_THEN_KEY);
 
         for( SortableScore score : scores )
           out.write("\t" + score.key() + "\t" + (int)score.score());
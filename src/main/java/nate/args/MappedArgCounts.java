@@ -0,0 +1,386 @@
+package nate.args;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An argument counts file (argcounts-verbs.arg or argcounts-pairs.arg) in a binary format
+ * that is memory-mapped instead of read. VerbArgCounts and VerbPairArgCounts look up the
+ * slots they need where they are, so only those pages are read, instead of reading and
+ * splitting every line to keep a few of them.
+ *
+ * The file is the magic bytes "ACB1", the number of keys (slots or pairs), of distinct
+ * arguments, and of counts. Then the keys and the arguments, each sorted by
+ * String.compareTo() as an offset per string into UTF-8 bytes. Then the rows: for each key
+ * the start of its row, then its arguments' IDs in order and their counts. Then the same
+ * counts inverted, a row of keys for each argument, so finding the slots of an argument
+ * doesn't need to build the reverse index first.
+ *
+ * Run main() on .arg files to convert them.
+ */
+public class MappedArgCounts {
+  public static final byte[] MAGIC = { 'A', 'C', 'B', '1' };
+  public static final String SUFFIX = ".bin";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private int _numKeys, _numArgs, _numCounts;
+  private Strings _keys, _args;
+  private Rows _rows, _inverse;
+
+
+  /**
+   * Maps a file written by convert().
+   */
+  public MappedArgCounts(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if( !Arrays.equals(magic, MAGIC) )
+        throw new IOException("Not a binary argument counts file: " + path);
+      _numKeys = header.getInt();
+      _numArgs = header.getInt();
+      _numCounts = header.getInt();
+
+      long pos = 16;
+      _keys = new Strings(channel, pos, _numKeys);
+      pos += _keys.length();
+      _args = new Strings(channel, pos, _numArgs);
+      pos += _args.length();
+      _rows = new Rows(channel, pos, _numKeys);
+      pos += _rows.length();
+      _inverse = new Rows(channel, pos, _numArgs);
+    } finally {
+      // The mappings stay valid after the file is closed.
+      file.close();
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long pos, long length) throws IOException {
+    if( length > Integer.MAX_VALUE )
+      throw new IOException("Argument counts file section too large to map: " + length);
+    return channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+  }
+
+  private static int padded(int numBytes) {
+    return (numBytes + 3) & ~3;
+  }
+
+  public int numKeys() { return _numKeys; }
+  public int numArgs() { return _numArgs; }
+  public int numCounts() { return _numCounts; }
+
+  public String key(int id) { return _keys.get(id); }
+  public String arg(int id) { return _args.get(id); }
+
+  /**
+   * @return The key's ID, or -1 if it isn't in the file.
+   */
+  public int keyID(String key) { return _keys.find(key); }
+
+  /**
+   * @return The argument's ID, or -1 if it isn't in the file.
+   */
+  public int argID(String arg) { return _args.find(arg); }
+
+  /**
+   * @return The IDs of the keys that start with the string: from the first element,
+   *         inclusive, to the second, exclusive.
+   */
+  public int[] keysThatStartWith(String start) {
+    int low = _keys.lowerBound(start);
+    int high = low;
+    while( high < _numKeys && key(high).startsWith(start) ) high++;
+    return new int[] { low, high };
+  }
+
+  /**
+   * @return The key's arguments with their counts, leaving out counts below the cutoff.
+   */
+  public Map<String,Integer> args(int keyID, int cutoff) {
+    Map<String,Integer> args = new HashMap<String,Integer>();
+    for( int i = _rows.start(keyID), end = _rows.start(keyID+1); i < end; i++ ) {
+      int count = _rows.count(i);
+      if( count >= cutoff ) args.put(arg(_rows.id(i)), count);
+    }
+    return args;
+  }
+
+  /**
+   * @return The count of the argument with the key, or -1 if it isn't in the key's row.
+   */
+  public int count(int keyID, String arg) {
+    int argID = argID(arg);
+    if( argID < 0 ) return -1;
+    int i = _rows.find(keyID, argID);
+    return (i < 0 ? -1 : _rows.count(i));
+  }
+
+  /**
+   * @return The number of keys the argument has counts with.
+   */
+  public int numKeysOf(int argID) {
+    return _inverse.start(argID+1) - _inverse.start(argID);
+  }
+
+  /**
+   * @return The ID of the argument's i'th key, from the inverted rows.
+   */
+  public int keyOf(int argID, int i) {
+    return _inverse.id(_inverse.start(argID) + i);
+  }
+
+  /**
+   * @return The count of the argument's i'th key, from the inverted rows.
+   */
+  public int countOf(int argID, int i) {
+    return _inverse.count(_inverse.start(argID) + i);
+  }
+
+
+  /**
+   * Sorted strings: an offset for each into their UTF-8 bytes.
+   */
+  private static class Strings {
+    int size;
+    IntBuffer offsets;
+    ByteBuffer bytes;
+
+    Strings(FileChannel channel, long pos, int size) throws IOException {
+      this.size = size;
+      offsets = map(channel, pos, 4L * (size+1)).asIntBuffer();
+      bytes = map(channel, pos + 4L * (size+1), offsets.get(size));
+    }
+
+    long length() {
+      return 4L * (size+1) + padded(offsets.get(size));
+    }
+
+    String get(int id) {
+      int start = offsets.get(id), end = offsets.get(id+1);
+      byte[] chars = new byte[end - start];
+      for( int i = 0; i < chars.length; i++ ) chars[i] = bytes.get(start + i);
+      return new String(chars, UTF8);
+    }
+
+    int find(String str) {
+      int low = 0, high = size - 1;
+      while( low <= high ) {
+        int mid = (low + high) >>> 1;
+        int diff = get(mid).compareTo(str);
+        if( diff < 0 ) low = mid + 1;
+        else if( diff > 0 ) high = mid - 1;
+        else return mid;
+      }
+      return -1;
+    }
+
+    /**
+     * @return The ID of the first string not before the given one.
+     */
+    int lowerBound(String str) {
+      int low = 0, high = size;
+      while( low < high ) {
+        int mid = (low + high) >>> 1;
+        if( get(mid).compareTo(str) < 0 ) low = mid + 1;
+        else high = mid;
+      }
+      return low;
+    }
+  }
+
+  /**
+   * Rows of counts: the start of each row, then the IDs and counts of all rows.
+   */
+  private class Rows {
+    int numRows;
+    IntBuffer starts, ids, counts;
+
+    Rows(FileChannel channel, long pos, int numRows) throws IOException {
+      this.numRows = numRows;
+      starts = map(channel, pos, 4L * (numRows+1)).asIntBuffer();
+      pos += 4L * (numRows+1);
+      ids = map(channel, pos, 4L * _numCounts).asIntBuffer();
+      pos += 4L * _numCounts;
+      counts = map(channel, pos, 4L * _numCounts).asIntBuffer();
+    }
+
+    long length() {
+      return 4L * (numRows+1) + 8L * _numCounts;
+    }
+
+    int start(int row) { return starts.get(row); }
+    int id(int i) { return ids.get(i); }
+    int count(int i) { return counts.get(i); }
+
+    /**
+     * @return The index of the ID in the row, or -1.
+     */
+    int find(int row, int id) {
+      int low = starts.get(row), high = starts.get(row+1) - 1;
+      while( low <= high ) {
+        int mid = (low + high) >>> 1;
+        int found = ids.get(mid);
+        if( found < id ) low = mid + 1;
+        else if( found > id ) high = mid - 1;
+        else return mid;
+      }
+      return -1;
+    }
+  }
+
+
+  /**
+   * @return The binary file to read for the text argument counts file: the path itself if
+   *         it is a binary file, or its converted file if that is newer than it. Null if
+   *         neither.
+   */
+  public static String binaryPath(String path) {
+    if( path.endsWith(SUFFIX) ) return path;
+    File text = new File(path);
+    File binary = new File(path + SUFFIX);
+    if( binary.exists() && binary.lastModified() >= text.lastModified() ) return binary.getPath();
+    return null;
+  }
+
+  /**
+   * Converts a text argument counts file to <name>.bin
+   */
+  public static void convert(String inpath, String outpath) throws IOException {
+    Map<String,Integer> argIDs = new HashMap<String,Integer>();
+    List<String> args = new ArrayList<String>();
+    Map<String,Map<Integer,Integer>> rows = new HashMap<String,Map<Integer,Integer>>();
+
+    // e.g. "arrest:s white 1 rosa 2 mayor 1"
+    BufferedReader in = new BufferedReader(new FileReader(inpath));
+    for( String line = in.readLine(); line != null; line = in.readLine() ) {
+      int tab = line.indexOf('\t');
+      if( tab == -1 ) throw new IOException("Bad line format: " + line);
+      String key = line.substring(0, tab);
+      if( rows.containsKey(key) ) throw new IOException("Repeated key? " + key);
+      // Later counts of an argument replace earlier ones, as the text readers do.
+      Map<Integer,Integer> row = new HashMap<Integer,Integer>();
+      rows.put(key, row);
+      String[] parts = line.substring(tab+1).split("\t");
+      for( int i = 0; i < parts.length; i += 2 ) {
+        Integer id = argIDs.get(parts[i]);
+        if( id == null ) {
+          id = args.size();
+          argIDs.put(parts[i], id);
+          args.add(parts[i]);
+        }
+        row.put(id, Integer.parseInt(parts[i+1]));
+      }
+    }
+    in.close();
+
+    // Renumber the arguments in sorted order.
+    String[] sortedArgs = args.toArray(new String[args.size()]);
+    Arrays.sort(sortedArgs);
+    int[] ranks = new int[sortedArgs.length];
+    for( int rank = 0; rank < sortedArgs.length; rank++ ) ranks[argIDs.get(sortedArgs[rank])] = rank;
+    String[] keys = rows.keySet().toArray(new String[rows.size()]);
+    Arrays.sort(keys);
+
+    int numCounts = 0;
+    int[][] rowArgs = new int[keys.length][];
+    int[][] rowCounts = new int[keys.length][];
+    int[] argRowSizes = new int[sortedArgs.length];
+    for( int k = 0; k < keys.length; k++ ) {
+      Map<Integer,Integer> row = rows.remove(keys[k]);
+      long[] sorted = new long[row.size()];
+      int i = 0;
+      for( Map.Entry<Integer,Integer> entry : row.entrySet() )
+        sorted[i++] = ((long)ranks[entry.getKey()] << 32) | (entry.getValue() & 0xffffffffL);
+      Arrays.sort(sorted);
+      rowArgs[k] = new int[sorted.length];
+      rowCounts[k] = new int[sorted.length];
+      for( i = 0; i < sorted.length; i++ ) {
+        rowArgs[k][i] = (int)(sorted[i] >>> 32);
+        rowCounts[k][i] = (int)sorted[i];
+        argRowSizes[rowArgs[k][i]]++;
+      }
+      numCounts += sorted.length;
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outpath), 65536));
+    out.write(MAGIC);
+    out.writeInt(keys.length);
+    out.writeInt(sortedArgs.length);
+    out.writeInt(numCounts);
+    writeStrings(out, keys);
+    writeStrings(out, sortedArgs);
+
+    // The rows by key, with their arguments in ID order.
+    int start = 0;
+    for( int[] row : rowArgs ) {
+      out.writeInt(start);
+      start += row.length;
+    }
+    out.writeInt(start);
+    for( int[] row : rowArgs )
+      for( int id : row ) out.writeInt(id);
+    for( int[] row : rowCounts )
+      for( int count : row ) out.writeInt(count);
+
+    // The rows by argument. The keys are in ID order, so each argument's row is too.
+    int[] starts = new int[sortedArgs.length+1];
+    for( int a = 0; a < sortedArgs.length; a++ ) starts[a+1] = starts[a] + argRowSizes[a];
+    int[] keyIDs = new int[numCounts];
+    int[] counts = new int[numCounts];
+    int[] next = Arrays.copyOf(starts, sortedArgs.length);
+    for( int k = 0; k < keys.length; k++ ) {
+      for( int i = 0; i < rowArgs[k].length; i++ ) {
+        int pos = next[rowArgs[k][i]]++;
+        keyIDs[pos] = k;
+        counts[pos] = rowCounts[k][i];
+      }
+    }
+    for( int s : starts ) out.writeInt(s);
+    for( int id : keyIDs ) out.writeInt(id);
+    for( int count : counts ) out.writeInt(count);
+    out.close();
+  }
+
+  private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+    byte[][] bytes = new byte[strings.length][];
+    int offset = 0;
+    for( int id = 0; id < strings.length; id++ ) {
+      bytes[id] = strings[id].getBytes(UTF8);
+      out.writeInt(offset);
+      offset += bytes[id].length;
+    }
+    out.writeInt(offset);
+    for( byte[] str : bytes ) out.write(str);
+    for( int i = offset; i < padded(offset); i++ ) out.writeByte(0);
+  }
+
+  /**
+   * MappedArgCounts <arg-file>...
+   * Converts text argument counts files to binary, each to <file>.bin
+   */
+  public static void main(String[] args) throws IOException {
+    for( String path : args ) {
+      System.out.println("Converting " + path + " to " + path + SUFFIX);
+      convert(path, path + SUFFIX);
+    }
+  }
+}
@@ -3,12 +3,26 @@ package nate.args;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import nate.util.HandleParameters;
 import nate.util.SortableScore;
@@ -19,30 +33,51 @@ import nate.util.SortableScore;
  * of arguments and their counts on each line, one pair per line.
  * The pairs must be in sorted order.  This code merges all of the files into
  * one single file, maintaining sorted order, and summing all common argument
- * counts.  It merges all files containing "argcounts" in their name.
+ * counts.  It merges all files containing "counts" in their name.  SortArgs
+ * sorts a file into the order this expects.
+ *
+ * The files are merged in one streaming pass, taking the next string from a heap of the
+ * files' current lines. Files ending in .gz are read through gzip, and the output is
+ * gzipped if its path ends in .gz. When there are more files than -fanin, groups of them
+ * are first merged into intermediate files, on -threads threads, and then those are merged.
  *
  * Input: <dir>
  * A directory of files with counts.
- * 
+ *
  * Count file example line:
  *   string-no-white-space arg1 34 arg2 9 arg3 1 arg4 88 ...
  *
  * Output: a single text file "merged.all"
  * The format is the same as the input format, but the argument counts are
- * summed across all input files with the same leading string.
- * 
- * MergeCounts [-output <path>] [-cutoff <int>] <dir>
- * 
+ * summed across all input files with the same leading string.  Each line's
+ * arguments are sorted by count, and then alphabetically.
+ *
+ * MergeCounts [-output <path>] [-cutoff <int>] [-threads <n>] [-fanin <n>] [-tmpdir <dir>] <dir>
+ *
  * -output
  * -cutoff
- * 
+ *
+ * -threads
+ * The number of groups of files to merge at the same time, when there are more than -fanin.
+ *
+ * -fanin
+ * The most files to merge at once, 512 by default.
+ *
+ * -tmpdir
+ * Where to write the intermediate merges, the output file's directory by default.
  */
 public class MergeCounts {
   String _outputFile = "/jude17/scr1/natec/merged.all";
   String _inputDir;
+  String _tmpDir = null;
   // Count is written to file if it matches or is greater than this number.
   int _outputCutoff = 2; // with coref
 //  int _outputCutoff = 3; // all pairs
+  int _numThreads = 1;
+  int _fanIn = 512;
+
+  // Chars buffered for each file read or written.
+  private static final int BUFFER_SIZE = 1 << 16;
 
   /**
    * Constructor
@@ -58,6 +93,12 @@ public class MergeCounts {
       _outputCutoff = Integer.valueOf(params.get("-cutoff"));
     System.out.println("outputCutoff\t" + _outputCutoff);
 
+    if( params.hasFlag("-threads") ) _numThreads = Integer.parseInt(params.get("-threads"));
+    if( params.hasFlag("-fanin") ) _fanIn = Math.max(2, Integer.parseInt(params.get("-fanin")));
+    if( params.hasFlag("-tmpdir") ) _tmpDir = params.get("-tmpdir");
+    else _tmpDir = new File(_outputFile).getAbsoluteFile().getParent();
+    System.out.println("threads=" + _numThreads + " fanin=" + _fanIn);
+
     _inputDir = args[args.length-1];
   }
 
@@ -71,92 +112,30 @@ public class MergeCounts {
 
     File dir = new File(_inputDir);
     if( dir.isDirectory() ) {
-      String line;
       String files[] = dir.list();
       Arrays.sort(files);
 
-      // Create and open readers for all files
-      Vector<BufferedReader> inputs = new Vector<BufferedReader>();
+      List<String> paths = new ArrayList<String>();
       for( String file : files ) {
         if( !file.startsWith(".") && file.contains("counts") ) {
-          // Create a reader for each file
-          try {
-            System.out.println("Opening " + file);
-            inputs.add(new BufferedReader(new FileReader(_inputDir + File.separator + file)));
-          } catch( Exception ex ) { ex.printStackTrace(); System.exit(1); }
+          System.out.println("Opening " + file);
+          paths.add(_inputDir + File.separator + file);
         }
       }
 
       try {
-        // Create the output buffer
-        BufferedWriter out = new BufferedWriter(new FileWriter(_outputFile));      
-
-        // Read the first line from each input buffer
-        String[] pairs = new String[inputs.size()];
-        Map<String,Integer>[] countMaps = new HashMap[inputs.size()];
-        int i = 0;
-        for( BufferedReader reader : inputs ) {
-          line = reader.readLine();
-//          System.out.println("line " + line);
-//          while( line.matches("NUMDOCS .+") || line.matches("\\s*") || !line.matches(".+\t.+") ) {
-          while( !line.matches(".+\t.+") ) {
-            line = reader.readLine();
-//            System.out.println("now line " + line);
-          }
-
-          pairs[i] = line.substring(0,line.indexOf('\t'));
-          countMaps[i] = new HashMap<String, Integer>();
-          countsFromLine(line, countMaps[i]);
-          System.out.println("i " + pairs[i]);
-          i++;
+        // Merge groups of files until there are few enough to merge at once.
+        boolean intermediate = false;
+        while( paths.size() > _fanIn ) {
+          List<String> merged = mergeGroups(paths);
+          if( intermediate ) deleteFiles(paths);
+          paths = merged;
+          intermediate = true;
         }
 
-        // Loop until all input buffers are exhausted
-        int numlines = 0;
-        int finished = 0;
-        while( finished < pairs.length ) {
-
-          // Find the first line alphabetically
-          String lowest = "zzzzzzzz";
-          for( String pair : pairs ) {
-            if( !pair.equals("*finished*") && pair.compareTo(lowest) < 0 )
-              lowest = pair;
-          }
-
-          // Sum all matching pairs
-          Map<String,Integer> sum = new HashMap<String, Integer>();
-          int yy = 0;
-          for( String pair : pairs ) {
-
-            if( pair.equals(lowest) ) {
-              // Sum the two maps together
-              mergeMaps(sum, countMaps[yy]);
-
-              // Read the next line in this input
-              line = inputs.elementAt(yy).readLine();
-              while( line != null && !line.matches(".+\t.+") )
-                line = inputs.elementAt(yy).readLine();
-              //	      System.out.println("Read " + line);
-              if( line == null ) {
-                pairs[yy] = "*finished*";
-                finished++;
-              } else {
-                pairs[yy] = line.substring(0,line.indexOf('\t'));
-                countsFromLine(line, countMaps[yy]);
-              }
-            }
-            yy++;
-          }
-
-          // Write this one to file
-          System.out.println("Writing " + lowest);
-          writeCounts(out, lowest, sum);
-
-          numlines++;
-        } // while active buffers exist
-
-        out.close();
-        System.out.println("wrote to file " + _outputFile);
+        int numlines = mergeFiles(paths, _outputFile, _outputCutoff);
+        if( intermediate ) deleteFiles(paths);
+        System.out.println("wrote " + numlines + " lines to file " + _outputFile);
       } catch( Exception ex ) { ex.printStackTrace(); System.exit(1); }
 
     } else {
@@ -166,61 +145,206 @@ public class MergeCounts {
 
 
   /**
-   * Destructively adds the counts in mergee to the counts in merger.  We change
-   * the counts in merger to be the sum, but mergee will stay the same.
+   * Merges the files in groups of at most _fanIn, on _numThreads threads, keeping all of
+   * the counts. Consecutive files go in the same group.
+   * @return The merged files, in order.
+   */
+  private List<String> mergeGroups(List<String> paths) throws Exception {
+    int numGroups = (paths.size() + _fanIn - 1) / _fanIn;
+    System.out.println("Merging " + paths.size() + " files in " + numGroups + " groups");
+
+    ExecutorService pool = Executors.newFixedThreadPool(_numThreads);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for( int i = 0; i < numGroups; i++ ) {
+      final List<String> group = paths.subList(i * paths.size() / numGroups, (i+1) * paths.size() / numGroups);
+      final File merged = File.createTempFile("merge-", ".tmp", new File(_tmpDir));
+      merged.deleteOnExit();
+      results.add(pool.submit(new Callable<String>() {
+        public String call() throws IOException {
+          mergeFiles(group, merged.getPath(), Integer.MIN_VALUE);
+          return merged.getPath();
+        }
+      }));
+    }
+
+    List<String> merged = new ArrayList<String>();
+    try {
+      for( Future<String> result : results )
+        merged.add(result.get());
+    } finally { pool.shutdown(); }
+    return merged;
+  }
+
+  private void deleteFiles(List<String> paths) {
+    for( String path : paths )
+      new File(path).delete();
+  }
+
+
+  /**
+   * One input file and its current line.
+   */
+  private static class Input {
+    BufferedReader reader;
+    // The file's position in the input order, to break ties between equal strings.
+    int index;
+    String line;
+    String pair;
+
+    Input(BufferedReader reader, int index) {
+      this.reader = reader;
+      this.index = index;
+    }
+
+    /**
+     * Reads the next line with counts.
+     * @return False at the end of the file.
+     */
+    boolean next() throws IOException {
+      line = reader.readLine();
+      while( line != null && !isCountLine(line) )
+        line = reader.readLine();
+      if( line == null ) {
+        reader.close();
+        return false;
+      }
+      pair = line.substring(0, line.indexOf('\t'));
+      return true;
+    }
+  }
+
+  private static final Comparator<Input> BY_PAIR = new Comparator<Input>() {
+    public int compare(Input a, Input b) {
+      int cmp = a.pair.compareTo(b.pair);
+      return (cmp != 0 ? cmp : a.index - b.index);
+    }
+  };
+
+
+  /**
+   * Merges the given sorted files into one, summing the counts of equal strings.
+   * @param cutoff The smallest count to write.
+   * @return The number of lines written.
    */
-  private void mergeMaps(Map<String,Integer> merger, Map<String,Integer> mergee) {
-    for( String key : merger.keySet() ) {
-      if( mergee.containsKey(key) )
-        merger.put(key, merger.get(key) + mergee.get(key));
+  private int mergeFiles(List<String> paths, String outPath, int cutoff) throws IOException {
+    System.out.println("Merging " + paths.size() + " files into " + outPath);
+    PriorityQueue<Input> heap = new PriorityQueue<Input>(Math.max(1, paths.size()), BY_PAIR);
+    for( int i = 0; i < paths.size(); i++ ) {
+      Input input = new Input(openReader(paths.get(i)), i);
+      if( input.next() ) heap.add(input);
     }
 
-    for( String key : mergee.keySet() ) {
-      if( !merger.containsKey(key) )
-        merger.put(key, mergee.get(key));
-    }    
+    BufferedWriter out = openWriter(outPath);
+    int numlines = 0;
+    while( !heap.isEmpty() ) {
+      // Sum the counts of every file at the lowest string.
+      String lowest = heap.peek().pair;
+      Map<String,int[]> sum = new HashMap<String,int[]>();
+      while( !heap.isEmpty() && heap.peek().pair.equals(lowest) ) {
+        Input input = heap.poll();
+        countsFromLine(input.line, sum);
+        if( input.next() ) heap.add(input);
+      }
+
+      if( writeCounts(out, lowest, sum, cutoff) ) numlines++;
+    }
+    out.close();
+    return numlines;
   }
 
 
   /**
    * Write the given pair and counts to the given output buffer.
+   * @return True if anything was written.
    */
-  private void writeCounts(BufferedWriter out, String pair, Map<String,Integer> counts) {
+  private boolean writeCounts(BufferedWriter out, String pair, Map<String,int[]> counts, int cutoff) throws IOException {
     if( counts.size() > 0 ) {
       SortableScore[] scores = new SortableScore[counts.size()];
       int i = 0;
-      for( Map.Entry<String,Integer> entry : counts.entrySet() )
-        scores[i++] = new SortableScore(entry.getValue(), entry.getKey());
-      Arrays.sort(scores);
-
-      if( (int)scores[0].score() >= _outputCutoff ) {
-        try {
-          out.write(pair);
-          for( SortableScore score : scores ) {
-            if( (int)score.score() >= _outputCutoff )
-              out.write("\t" + score.key() + "\t" + (int)score.score());
-            else break;
-          }
-          out.write("\n");
-        } catch( Exception ex ) { ex.printStackTrace(); System.exit(1); }
+      for( Map.Entry<String,int[]> entry : counts.entrySet() )
+        scores[i++] = new SortableScore(entry.getValue()[0], entry.getKey());
+      Arrays.sort(scores, SortableScore.BY_SCORE_THEN_KEY);
+
+      if( (int)scores[0].score() >= cutoff ) {
+        StringBuilder sb = new StringBuilder(pair);
+        for( SortableScore score : scores ) {
+          if( (int)score.score() >= cutoff )
+            sb.append('\t').append(score.key()).append('\t').append((int)score.score());
+          else break;
+        }
+        sb.append('\n');
+        out.write(sb.toString());
+        return true;
       }
     }
+    return false;
+  }
+
+
+  /**
+   * @return True if the line is a string and its counts, separated by a tab. The same as
+   *         line.matches(".+\t.+").
+   */
+  private static boolean isCountLine(String line) {
+    boolean tab = false;
+    for( int i = 0, n = line.length(); i < n; i++ ) {
+      char ch = line.charAt(i);
+      // The regex dot does not match line breaks.
+      if( ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029' ) return false;
+      if( ch == '\t' && i > 0 && i < n-1 ) tab = true;
+    }
+    return tab;
+  }
+
+  private static boolean isSpace(char ch) {
+    return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
   }
 
 
   /**
-   * DESTRUCTIVE: fills a hashmap of strings to counts, splitting the counts from the
-   * given line: "verb-pair canwest 1 *per* 1  attorney 1 department 2"
+   * DESTRUCTIVE: adds the counts of the given line to a hashmap of strings to counts:
+   * "verb-pair canwest 1 *per* 1  attorney 1 department 2"
+   * The line is split at whitespace as by split("\\s+"), without making the array.
    */
-  private void countsFromLine(String line, Map<String,Integer> counts) {
-    String[] parts = line.split("\\s+");
-    counts.clear();
-
-    if( parts.length > 1 ) {
-      if( parts.length % 2 == 1 ) {
-        for( int i = 1, n = parts.length; i < n; i += 2 ) {
-          int count = Integer.parseInt(parts[i+1]);
-          counts.put(parts[i], count);
+  private static void countsFromLine(String line, Map<String,int[]> counts) {
+    int n = line.length();
+    // The split's first part is empty when the line starts with whitespace.
+    int numParts = 1;
+    int i = 0;
+    while( i < n && !isSpace(line.charAt(i)) ) i++;
+    while( i < n && isSpace(line.charAt(i)) ) i++;
+
+    // Each argument and where its count is.
+    String arg = null;
+    int numArgs = 0;
+    String[] args = new String[8];
+    int[] bounds = new int[16];
+    while( i < n ) {
+      int start = i;
+      while( i < n && !isSpace(line.charAt(i)) ) i++;
+      if( arg == null ) arg = line.substring(start, i);
+      else {
+        if( numArgs == args.length ) {
+          args = Arrays.copyOf(args, 2*numArgs);
+          bounds = Arrays.copyOf(bounds, 4*numArgs);
+        }
+        args[numArgs] = arg;
+        bounds[2*numArgs] = start;
+        bounds[2*numArgs+1] = i;
+        numArgs++;
+        arg = null;
+      }
+      numParts++;
+      while( i < n && isSpace(line.charAt(i)) ) i++;
+    }
+
+    if( numParts > 1 ) {
+      if( numParts % 2 == 1 ) {
+        for( int j = 0; j < numArgs; j++ ) {
+          int value = parseInt(line, bounds[2*j], bounds[2*j+1]);
+          int[] count = counts.get(args[j]);
+          if( count == null ) counts.put(args[j], new int[] { value });
+          else count[0] += value;
         }
       }
       else System.out.println("WARNING: pair counts not odd: " + line);
@@ -228,6 +352,34 @@ public class MergeCounts {
     else System.out.println("WARNING: short line: " + line);
   }
 
+  /**
+   * @return The integer in the given chars of the line, as Integer.parseInt() reads it.
+   */
+  private static int parseInt(String line, int start, int end) {
+    // Leave signs, long numbers and errors to parseInt.
+    if( end - start > 9 || end == start ) return Integer.parseInt(line.substring(start, end));
+    int value = 0;
+    for( int i = start; i < end; i++ ) {
+      char ch = line.charAt(i);
+      if( ch < '0' || ch > '9' ) return Integer.parseInt(line.substring(start, end));
+      value = 10*value + (ch - '0');
+    }
+    return value;
+  }
+
+
+  private static BufferedReader openReader(String path) throws IOException {
+    InputStream in = new FileInputStream(path);
+    if( path.endsWith(".gz") ) in = new GZIPInputStream(in, BUFFER_SIZE);
+    return new BufferedReader(new InputStreamReader(in), BUFFER_SIZE);
+  }
+
+  private static BufferedWriter openWriter(String path) throws IOException {
+    OutputStream out = new FileOutputStream(path);
+    if( path.endsWith(".gz") ) out = new GZIPOutputStream(out, BUFFER_SIZE);
+    return new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+  }
+
 
   /**
    * Main
@@ -238,7 +390,7 @@ public class MergeCounts {
       merger.merge();
     }
     else {
-      System.out.println("MergeCounts [-output <path>] [-cutoff <int>] <dir>");
+      System.out.println("MergeCounts [-output <path>] [-cutoff <int>] [-threads <n>] [-fanin <n>] [-tmpdir <dir>] <dir>");
     }
   }
-}
\ No newline at end of file
+}
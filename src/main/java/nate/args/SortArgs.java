@@ -1,27 +1,83 @@
 package nate.args;
 
-import java.util.Vector;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import nate.util.HandleParameters;
 
 
 /**
  * This class reads a file of pairs with their argument counts and sorts
  * the lines by the pair.  It outputs the sorted order to STDOUT.  This
- * is basically the same as the unix sort utility, but Nate found that 
+ * is basically the same as the unix sort utility, but Nate found that
  * unix sort orders underscore _ and semicolon ; differently than Java
  * sort.
  *
  * Input example line:
  *   string-no-white-space arg1 34 arg2 9 arg3 1 arg4 88 ...
  *
- * Output is sorted to stdout.
+ * The pair is the text before the first tab, or before the first space in lines without
+ * tabs.  Pairs are ordered by String.compareTo(), as MergeCounts expects, unless
+ * setComparator() gives another order.  Of lines with the same pair, only the last one
+ * in the file is kept.
+ *
+ * Files larger than -memory are sorted externally: runs of lines that fit are sorted on
+ * -threads threads and written to temporary files, which are then merged.  Files ending
+ * in .gz are read through gzip, and the output is gzipped if its path ends in .gz.
+ *
+ * Output is sorted to stdout, or to the -output file.
+ *
+ * SortArgs [-output <path>] [-memory <MB>] [-threads <n>] [-tmpdir <dir>] <file>
+ *
+ * -memory
+ * Megabytes of lines to hold at once, across all threads. A quarter of the heap by default.
+ *
+ * -threads
+ * The number of runs to sort at the same time.
+ *
+ * -tmpdir
+ * Where to write the sorted runs, the system's temporary directory by default.
  */
 public class SortArgs {
   String inputFile;
+  String _outputFile = null;
+  String _tmpDir = null;
+  long _memory = Runtime.getRuntime().maxMemory() / 4;
+  int _numThreads = 1;
+  Comparator<String> _order = JAVA_ORDER;
+
+  // The most runs to merge at once.
+  private static final int FAN_IN = 512;
+  // Chars buffered for each file read or written.
+  private static final int BUFFER_SIZE = 1 << 16;
+  // Rough bytes of heap for a line beyond its chars: the Line, two Strings and their arrays.
+  private static final int LINE_OVERHEAD = 96;
+
+  public static final Comparator<String> JAVA_ORDER = new Comparator<String>() {
+    public int compare(String a, String b) {
+      return a.compareTo(b);
+    }
+  };
 
   /**
    * Constructor
@@ -30,45 +86,250 @@ public class SortArgs {
     inputFile = filename;
   }
 
+  SortArgs(String[] args) {
+    HandleParameters params = new HandleParameters(args);
+    if( params.hasFlag("-output") ) _outputFile = params.get("-output");
+    if( params.hasFlag("-memory") ) _memory = Long.parseLong(params.get("-memory")) * 1024 * 1024;
+    if( params.hasFlag("-threads") ) _numThreads = Integer.parseInt(params.get("-threads"));
+    if( params.hasFlag("-tmpdir") ) _tmpDir = params.get("-tmpdir");
+    inputFile = args[args.length-1];
+  }
+
+  /**
+   * Sets the order of the pairs, String.compareTo() by default.
+   */
+  public void setComparator(Comparator<String> order) {
+    _order = order;
+  }
+
+
+  /**
+   * One line and its leading pair.
+   */
+  private static class Line {
+    String key;
+    String text;
+
+    Line(String text) {
+      this.text = text;
+      key = keyOf(text);
+    }
+  }
+
+  /**
+   * @return The pair that a line is sorted by.
+   */
+  private static String keyOf(String line) {
+    int end = line.indexOf('\t');
+    if( end < 0 ) end = line.indexOf(' ');
+    return (end < 0 ? line : line.substring(0, end));
+  }
+
+  private Comparator<Line> byKey() {
+    return new Comparator<Line>() {
+      public int compare(Line a, Line b) {
+        return _order.compare(a.key, b.key);
+      }
+    };
+  }
+
+
   /**
    * Read a file, get the leading pair, sort the array, output the result.
    */
   public void sort() {
-    Vector<String> lines = new Vector();
-    Map<String,String> map = new HashMap();
-
+    List<File> runs = new ArrayList<File>();
     try {
-      BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-      String line = reader.readLine();
+      BufferedReader reader = openReader(inputFile);
+      // Runs in memory at once: one per thread, one waiting for a thread, one being read.
+      long runBytes = Math.max(1, _memory / (_numThreads + 2));
+      List<Line> lines = new ArrayList<Line>();
+      boolean end = readRun(reader, runBytes, lines);
+
+      // Small files are sorted in memory.
+      if( end ) {
+        reader.close();
+        Line[] sorted = lines.toArray(new Line[lines.size()]);
+        Arrays.sort(sorted, byKey());
+        BufferedWriter out = openOutput();
+        writeLines(Arrays.asList(sorted), out, true);
+        out.close();
+        return;
+      }
 
-      // Save all lines
-      while( line != null ) {
-	String key = line.substring(0,line.indexOf(' '));
-	map.put(key, line);
-	line = reader.readLine();	
+      // Sort runs of lines on the threads while the next runs are read.
+      ExecutorService pool = Executors.newFixedThreadPool(_numThreads);
+      LinkedList<Future<File>> sorting = new LinkedList<Future<File>>();
+      while( lines.size() > 0 ) {
+        final List<Line> run = lines;
+        sorting.add(pool.submit(new Callable<File>() {
+          public File call() throws IOException {
+            return writeRun(run);
+          }
+        }));
+        // Hold at most one run per thread and one waiting for a thread while reading.
+        if( sorting.size() > _numThreads + 1 ) runs.add(sorting.removeFirst().get());
+        lines = new ArrayList<Line>();
+        if( !end ) end = readRun(reader, runBytes, lines);
       }
       reader.close();
-    } catch( Exception ex ) { ex.printStackTrace(); }
-
-    // Sort
-    String arr[] = new String[map.size()];
-    map.keySet().toArray(arr);
-    Arrays.sort(arr);
-    
-    // Write to STDOUT
-    for( int i = 0, n = arr.length; i < n; i++ ) {
-      System.out.println(map.get(arr[i]));
+      while( sorting.size() > 0 )
+        runs.add(sorting.removeFirst().get());
+      pool.shutdown();
+      System.err.println("Sorted " + runs.size() + " runs of " + inputFile);
+
+      // Merge groups of runs until there are few enough to merge at once.
+      while( runs.size() > FAN_IN ) {
+        List<File> merged = new ArrayList<File>();
+        for( int i = 0; i < runs.size(); i += FAN_IN ) {
+          List<File> group = runs.subList(i, Math.min(runs.size(), i + FAN_IN));
+          File file = tempFile();
+          BufferedWriter out = openWriter(file.getPath());
+          mergeRuns(group, out, false);
+          out.close();
+          for( File run : group ) run.delete();
+          merged.add(file);
+        }
+        runs = merged;
+      }
+
+      BufferedWriter out = openOutput();
+      mergeRuns(runs, out, true);
+      out.close();
+    } catch( Exception ex ) { ex.printStackTrace(); System.exit(1); }
+    finally {
+      for( File run : runs ) run.delete();
+    }
+  }
+
+  /**
+   * Reads lines until they take about the given bytes of memory.
+   * @return True if the file ended.
+   */
+  private boolean readRun(BufferedReader reader, long runBytes, List<Line> lines) throws IOException {
+    long bytes = 0;
+    while( bytes < runBytes ) {
+      String line = reader.readLine();
+      if( line == null ) return true;
+      lines.add(new Line(line));
+      bytes += 2L * line.length() + LINE_OVERHEAD;
     }
+    return false;
+  }
+
+  private File writeRun(List<Line> lines) throws IOException {
+    Line[] sorted = lines.toArray(new Line[lines.size()]);
+    Arrays.sort(sorted, byKey());
+    File file = tempFile();
+    BufferedWriter out = openWriter(file.getPath());
+    writeLines(Arrays.asList(sorted), out, false);
+    out.close();
+    return file;
   }
-  
+
+  /**
+   * Writes sorted lines.
+   * @param lastOnly Of lines with the same pair, write only the last one.
+   */
+  private void writeLines(List<Line> lines, BufferedWriter out, boolean lastOnly) throws IOException {
+    for( int i = 0, n = lines.size(); i < n; i++ ) {
+      if( lastOnly && i+1 < n && lines.get(i).key.equals(lines.get(i+1).key) ) continue;
+      out.write(lines.get(i).text);
+      out.write('\n');
+    }
+  }
+
+
+  /**
+   * One sorted run and its current line.
+   */
+  private static class Run {
+    BufferedReader reader;
+    // The run's position in the file, to keep lines with the same pair in file order.
+    int index;
+    Line line;
+  }
+
+  /**
+   * Merges sorted runs, taken from the file in the given order.
+   * @param lastOnly Of lines with the same pair, write only the last one.
+   */
+  private void mergeRuns(List<File> files, BufferedWriter out, boolean lastOnly) throws IOException {
+    final Comparator<Line> byKey = byKey();
+    PriorityQueue<Run> heap = new PriorityQueue<Run>(Math.max(1, files.size()), new Comparator<Run>() {
+      public int compare(Run a, Run b) {
+        int cmp = byKey.compare(a.line, b.line);
+        return (cmp != 0 ? cmp : a.index - b.index);
+      }
+    });
+    for( int i = 0; i < files.size(); i++ ) {
+      Run run = new Run();
+      run.reader = openReader(files.get(i).getPath());
+      run.index = i;
+      if( nextLine(run) ) heap.add(run);
+    }
+
+    Line pending = null;
+    while( !heap.isEmpty() ) {
+      Run run = heap.poll();
+      if( pending != null && !(lastOnly && pending.key.equals(run.line.key)) ) {
+        out.write(pending.text);
+        out.write('\n');
+      }
+      pending = run.line;
+      if( nextLine(run) ) heap.add(run);
+    }
+    if( pending != null ) {
+      out.write(pending.text);
+      out.write('\n');
+    }
+  }
+
+  private static boolean nextLine(Run run) throws IOException {
+    String line = run.reader.readLine();
+    if( line == null ) {
+      run.reader.close();
+      return false;
+    }
+    run.line = new Line(line);
+    return true;
+  }
+
+
+  private File tempFile() throws IOException {
+    File file = File.createTempFile("sortargs-", ".tmp", (_tmpDir == null ? null : new File(_tmpDir)));
+    file.deleteOnExit();
+    return file;
+  }
+
+  private BufferedWriter openOutput() throws IOException {
+    if( _outputFile != null ) return openWriter(_outputFile);
+    return new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+  }
+
+  private static BufferedReader openReader(String path) throws IOException {
+    InputStream in = new FileInputStream(path);
+    if( path.endsWith(".gz") ) in = new GZIPInputStream(in, BUFFER_SIZE);
+    return new BufferedReader(new InputStreamReader(in), BUFFER_SIZE);
+  }
+
+  private static BufferedWriter openWriter(String path) throws IOException {
+    OutputStream out = new FileOutputStream(path);
+    if( path.endsWith(".gz") ) out = new GZIPOutputStream(out, BUFFER_SIZE);
+    return new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+  }
+
 
   /**
    * Main
    */
   public static void main(String[] args) {
     if( args.length > 0 ) {
-      SortArgs sorter = new SortArgs(args[0]);
+      SortArgs sorter = new SortArgs(args);
       sorter.sort();
     }
+    else {
+      System.out.println("SortArgs [-output <path>] [-memory <MB>] [-threads <n>] [-tmpdir <dir>] <file>");
+    }
   }
-}
\ No newline at end of file
+}
@@ -2,6 +2,7 @@ package nate.args;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -18,12 +19,20 @@ import nate.util.Util;
  * File line format:
  * arrest:s white 1 rosa 2 mayor 1 judge 1 *per* 82 tibet 1
  *
+ * If the file was converted with MappedArgCounts, the binary file is mapped instead, and
+ * a slot's counts are only read into the hash when the slot is asked for. getSlots() then
+ * reads the file's inverted counts instead of building the whole arg->slot table.
  */
 public class VerbArgCounts {
   // eat:o -> food/12
   Map<String, Map<String,Integer>> _verbHash = null;
   // food -> eat-o/12
   Map<String, Map<String,Integer>> _argHash = null;
+  // The mapped binary file, if read from one, until all its slots are loaded.
+  MappedArgCounts _mapped = null;
+  // The mapped slots that were loaded from the file, or null for all of them.
+  boolean[] _included = null;
+  int _numIncluded = 0;
 
 
   // Counts that are *equal to or greater* are saved.
@@ -75,8 +84,10 @@ public class VerbArgCounts {
    * @return All the slots.
    */
   public Set<String> getAllSlots() {
-    if( _verbHash != null )
+    if( _verbHash != null ) {
+      loadMapped();
       return _verbHash.keySet();
+    }
     else
       return null;
   }
@@ -86,6 +97,7 @@ public class VerbArgCounts {
    */
   public Set<String> getAllSlotTokens() {
     if( _verbHash != null ) {
+      loadMapped();
       Set<String> tokens = new HashSet<String>();
       for( String slot : _verbHash.keySet() ) {
 //        System.out.println("allslots slot " + slot + " substr " + slot.substring(0, slot.lastIndexOf(':')));
@@ -118,6 +130,7 @@ public class VerbArgCounts {
   }
 
   public int size() {
+    if( _mapped != null ) return _numIncluded;
     return _verbHash.size();
   }
 
@@ -126,6 +139,7 @@ public class VerbArgCounts {
    * @return A hashmap of argument heads with their counts
    */
   public Map<String,Integer> getArgsForSlot(String slot) {
+    if( _mapped != null ) return mappedSlot(slot);
     return _verbHash.get(slot);
   }
 
@@ -138,7 +152,7 @@ public class VerbArgCounts {
    */
   public void removeArgFromSlot(String slot, String arg) {
     if( _verbHash != null ) {
-      Map<String,Integer> argCounts = _verbHash.get(slot);
+      Map<String,Integer> argCounts = getArgsForSlot(slot);
       if( argCounts != null )
         argCounts.remove(arg);
     }
@@ -161,6 +175,14 @@ public class VerbArgCounts {
    * @param arg An argument head string
    */
   public int getCount(String slot, String arg) {
+    // Look up slots that aren't loaded in the mapped file.
+    if( _mapped != null && !_verbHash.containsKey(slot) ) {
+      int id = mappedID(slot);
+      if( id < 0 ) return 0;
+      int count = _mapped.count(id, arg);
+      return (count < 0 || count < ARGUMENT_CUTOFF ? 0 : count);
+    }
+
     Map<String,Integer> args = _verbHash.get(slot);
     if( args != null ) {
       Integer count = args.get(arg);
@@ -177,17 +199,21 @@ public class VerbArgCounts {
    * @param counts Map of argument strings to their counts
    */
   public void put(String slot, Map<String,Integer> counts) {
+    loadMapped();
     _verbHash.put(slot, counts);
   }
 
   public boolean containsSlot(String slot) {
     if( _verbHash != null && _verbHash.containsKey(slot) )
       return true;
+    else if( _mapped != null && mappedID(slot) > -1 )
+      return true;
     else
       return false;
   }
 
   public Set<String> keySet() {
+    loadMapped();
     return _verbHash.keySet();
   }
 
@@ -213,6 +239,7 @@ public class VerbArgCounts {
    * @return A hashmap of verb slots in which this argument appeared
    */
   public Map<String,Integer> getSlots(String arg) {
+    if( _mapped != null ) return mappedSlots(arg);
     if( _argHash == null ) {
       System.out.println("Building the inverse arg->verbcount table");
       _argHash = new HashMap<String, Map<String, Integer>>();
@@ -226,6 +253,7 @@ public class VerbArgCounts {
    * Adds their counts to ours.
    */
   public void addCounts(VerbArgCounts counts) {
+    loadMapped();
     _argHash = null;
     
     for( String slot : counts.keySet() ) {
@@ -243,6 +271,103 @@ public class VerbArgCounts {
     }
   }
   
+  /**
+   * @return The slot's ID in the mapped file, or -1 if it isn't there or wasn't loaded.
+   */
+  private int mappedID(String slot) {
+    int id = _mapped.keyID(slot);
+    if( id < 0 || (_included != null && !_included[id]) ) return -1;
+    return id;
+  }
+
+  /**
+   * Reads a slot's counts from the mapped file into the hash, the first time it is asked for.
+   */
+  private Map<String,Integer> mappedSlot(String slot) {
+    Map<String,Integer> args = _verbHash.get(slot);
+    if( args == null ) {
+      int id = mappedID(slot);
+      if( id > -1 ) {
+        args = _mapped.args(id, ARGUMENT_CUTOFF);
+        _verbHash.put(slot, args);
+      }
+    }
+    return args;
+  }
+
+  /**
+   * Finds the slots of an argument in the mapped file's inverted counts, using the counts
+   * of slots already in the hash, which may have changed.
+   */
+  private Map<String,Integer> mappedSlots(String arg) {
+    if( _argHash == null ) _argHash = new HashMap<String, Map<String,Integer>>();
+    if( _argHash.containsKey(arg) ) return _argHash.get(arg);
+
+    Map<String,Integer> slots = null;
+    int argID = _mapped.argID(arg);
+    for( int i = 0, n = (argID < 0 ? 0 : _mapped.numKeysOf(argID)); i < n; i++ ) {
+      int id = _mapped.keyOf(argID, i);
+      if( _included != null && !_included[id] ) continue;
+      String slot = _mapped.key(id);
+      Map<String,Integer> args = _verbHash.get(slot);
+      Integer count = null;
+      if( args != null ) count = args.get(arg);
+      else if( _mapped.countOf(argID, i) >= ARGUMENT_CUTOFF ) count = _mapped.countOf(argID, i);
+      if( count != null ) {
+        if( slots == null ) slots = new HashMap<String,Integer>();
+        slots.put(slot, count);
+      }
+    }
+    _argHash.put(arg, slots);
+    return slots;
+  }
+
+  /**
+   * Reads the rest of the mapped file's slots into the hash, and stops using the file.
+   */
+  private void loadMapped() {
+    if( _mapped == null ) return;
+    for( int id = 0; id < _mapped.numKeys(); id++ ) {
+      if( _included != null && !_included[id] ) continue;
+      String slot = _mapped.key(id);
+      if( !_verbHash.containsKey(slot) ) _verbHash.put(slot, _mapped.args(id, ARGUMENT_CUTOFF));
+    }
+    _mapped = null;
+    _included = null;
+    // Only the arguments asked for were found.
+    _argHash = null;
+  }
+
+  /**
+   * Maps a binary file from MappedArgCounts instead of reading the text file.
+   * @param desiredVerbs Only look up the slots of these verbs, or all of them if null.
+   */
+  private void mapFile(String path, Set<String> desiredVerbs) {
+    System.out.println("Mapping arg counts " + path);
+    try {
+      _mapped = new MappedArgCounts(path);
+    } catch( IOException ex ) {
+      ex.printStackTrace();
+      System.exit(-1);
+    }
+
+    _numIncluded = _mapped.numKeys();
+    if( desiredVerbs != null ) {
+      // A slot is "verb:role", so a verb's slots are next to each other in sorted order.
+      _included = new boolean[_mapped.numKeys()];
+      _numIncluded = 0;
+      for( String verb : desiredVerbs ) {
+        if( verb.indexOf(':') > -1 ) continue;
+        int[] range = _mapped.keysThatStartWith(verb + ":");
+        for( int id = range[0]; id < range[1]; id++ ) {
+          _included[id] = true;
+          _numIncluded++;
+        }
+      }
+    }
+    System.out.println("Mapped " + _numIncluded + " of " + _mapped.numKeys() + " slots");
+  }
+
   /**
    * Assuming the slot->argcount hash is built, invert the table and build
    * the arg->slotcount table.
@@ -282,6 +407,12 @@ public class VerbArgCounts {
       System.out.println("Loading arg counts for " + desiredVerbs.size() + " verbs");
     else System.out.println("Loading all arg counts");
 
+    String binary = MappedArgCounts.binaryPath(filename);
+    if( binary != null ) {
+      mapFile(binary, desiredVerbs);
+      return;
+    }
+
     try {
       BufferedReader in = new BufferedReader(new FileReader(filename));
       int lines = 0;
@@ -338,6 +469,14 @@ public class VerbArgCounts {
    */
   public Set<String> keysThatStartWith(String start) {
     Set<String> keys = new HashSet<String>();
+    if( _mapped != null ) {
+      int[] range = _mapped.keysThatStartWith(start);
+      for( int id = range[0]; id < range[1]; id++ ) {
+        if( _included == null || _included[id] )
+          keys.add(_mapped.key(id));
+      }
+      return keys;
+    }
     for( Map.Entry<String, Map<String,Integer>> entry : _verbHash.entrySet() ) {
       if( entry.getKey().startsWith(start) )
         keys.add(entry.getKey());
@@ -347,6 +486,8 @@ public class VerbArgCounts {
 
   public void setVerbHash(Map<String, Map<String,Integer>> verbHash) {
     _verbHash = verbHash;
+    _mapped = null;
+    _included = null;
     // TODO: this should really be created here, if we need it for something.
     _argHash = null;
   }
@@ -354,5 +495,7 @@ public class VerbArgCounts {
   public void clear() {
     if( _verbHash != null ) _verbHash.clear();
     if( _argHash != null ) _argHash.clear();
+    _mapped = null;
+    _included = null;
   }
 }
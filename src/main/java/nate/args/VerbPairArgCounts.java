@@ -2,6 +2,7 @@ package nate.args;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -16,6 +17,8 @@ import java.util.Set;
  * File line format:
  * arrest:convict;obj:obj white 1 rosa 2 mayor 1 judge 1 *per* 82 tibet 1
  *
+ * If the file was converted with MappedArgCounts, the binary file is mapped instead, and
+ * a pair's counts are only read into the hash when the pair is asked for.
  */
 public class VerbPairArgCounts {
   // arrest:convict;obj:obj -> food/12
@@ -27,6 +30,12 @@ public class VerbPairArgCounts {
   // The splitting character in the file. (most are tabs, my legacy files are spaces)
   final String spliton = "\t";
 
+  // The mapped binary file, if read from one, until all its pairs are loaded.
+  MappedArgCounts _mapped = null;
+  // The mapped pairs that were loaded from the file, or null for all of them.
+  boolean[] _included = null;
+  int _numIncluded = 0;
+
   /**
    * Constructor
    * @param cutoff Don't read arguments with counts below the cutoff.
@@ -70,6 +79,7 @@ public class VerbPairArgCounts {
   }
 
   public int size() {
+    if( _mapped != null ) return _numIncluded;
     return pairHash.size();
   }
 
@@ -107,6 +117,10 @@ public class VerbPairArgCounts {
    * @return A hashmap of argument heads with their counts
    */
   public Map<String,Integer> getArgsForPair(String pair) {
+    if( _mapped != null && !pairHash.containsKey(pair) ) {
+      int id = mappedID(pair);
+      if( id > -1 ) pairHash.put(pair, _mapped.args(id, ARGUMENT_CUTOFF));
+    }
     return pairHash.get(pair);
   }
 
@@ -116,6 +130,14 @@ public class VerbPairArgCounts {
    * @param arg An argument head string
    */
   public Integer getCount(String pair, String arg) {
+    // Look up pairs that aren't loaded in the mapped file.
+    if( _mapped != null && !pairHash.containsKey(pair) ) {
+      int id = mappedID(pair);
+      if( id < 0 ) return null;
+      int count = _mapped.count(id, arg);
+      return (count < 0 || count < ARGUMENT_CUTOFF ? null : count);
+    }
+
     Map<String,Integer> args = pairHash.get(pair);
     if( args != null )
       return args.get(arg);
@@ -129,11 +151,13 @@ public class VerbPairArgCounts {
    * @param counts Map of argument strings to their counts
    */
   public void put(String pair, Map<String,Integer> counts) {
+    loadMapped();
     pairHash.put(pair, counts);
   }
 
 
   public Set<String> pairKeySet() {
+    loadMapped();
     return pairHash.keySet();
   }
 
@@ -158,6 +182,64 @@ public class VerbPairArgCounts {
     return false;
   }
 
+  /**
+   * @return The pair's ID in the mapped file, or -1 if it isn't there or wasn't loaded.
+   */
+  private int mappedID(String pair) {
+    int id = _mapped.keyID(pair);
+    if( id < 0 || (_included != null && !_included[id]) ) return -1;
+    return id;
+  }
+
+  /**
+   * Reads the rest of the mapped file's pairs into the hash, and stops using the file.
+   */
+  private void loadMapped() {
+    if( _mapped == null ) return;
+    for( int id = 0; id < _mapped.numKeys(); id++ ) {
+      if( _included != null && !_included[id] ) continue;
+      String pair = _mapped.key(id);
+      if( !pairHash.containsKey(pair) ) pairHash.put(pair, _mapped.args(id, ARGUMENT_CUTOFF));
+    }
+    _mapped = null;
+    _included = null;
+  }
+
+  /**
+   * Maps a binary file from MappedArgCounts instead of reading the text file.
+   * @param desiredVerbs Only look up pairs of two of these verbs, or all pairs if null.
+   */
+  private void mapFile(String path, Set<String> desiredVerbs) {
+    System.out.println("Mapping arg counts " + path);
+    try {
+      _mapped = new MappedArgCounts(path);
+    } catch( IOException ex ) {
+      ex.printStackTrace();
+      System.exit(-1);
+    }
+
+    _numIncluded = _mapped.numKeys();
+    if( desiredVerbs != null ) {
+      // The pairs of a first verb are next to each other in sorted order.
+      _included = new boolean[_mapped.numKeys()];
+      _numIncluded = 0;
+      for( String verb : desiredVerbs ) {
+        if( verb.indexOf(':') > -1 ) continue;
+        int[] range = _mapped.keysThatStartWith(verb + ":");
+        for( int id = range[0]; id < range[1]; id++ ) {
+          String pair = _mapped.key(id);
+          int colon = pair.indexOf(':');
+          int semi = pair.indexOf(';');
+          if( semi > colon && desiredVerbs.contains(pair.substring(colon+1, semi)) ) {
+            _included[id] = true;
+            _numIncluded++;
+          }
+        }
+      }
+    }
+    System.out.println("Mapped " + _numIncluded + " of " + _mapped.numKeys() + " pairs");
+  }
+
  
   /**
    * Read a hash of argument nouns to parent/counts<br>
@@ -165,12 +247,18 @@ public class VerbPairArgCounts {
    */
   public void fromFile(String filename, Set<String> desiredVerbs) {
     String line;
-    pairHash.clear();
+    clear();
 
     if( desiredVerbs != null ) 
       System.out.println("Loading arg counts for " + desiredVerbs.size() + " verbs");
     else System.out.println("Loading all arg counts");
 
+    String binary = MappedArgCounts.binaryPath(filename);
+    if( binary != null ) {
+      mapFile(binary, desiredVerbs);
+      return;
+    }
+
     try {
       BufferedReader in = new BufferedReader(new FileReader(filename));
       int lines = 0;
@@ -224,5 +312,7 @@ public class VerbPairArgCounts {
 
   public void clear() {
     pairHash.clear();
+    _mapped = null;
+    _included = null;
   }
 }
\ No newline at end of file
@@ -167,7 +167,7 @@ public class EvaluateTemplates {
         if( guessedFrame != null ) {
           // Extract the story.
           dataReader.nextStory(storyname);
-          List<Tree> trees = TreeOperator.stringsToTrees(dataReader.getParseStrings());
+          List<Tree> trees = dataReader.getTrees();
           List<List<TypedDependency>> deps = dataReader.getDependencies(); 
           List<EntityMention> entities = dataReader.getEntities();
 //          System.out.println("story " + storyname + " with " + trees.size() + " trees and " + deps.size() + " deps.");
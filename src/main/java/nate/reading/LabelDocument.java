@@ -378,9 +378,9 @@ public class LabelDocument {
       theDataReader.nextStory();
 
       // Read the documents in this file.
-      while( theDataReader.getParseStrings() != null ) {
+      while( theDataReader.getTrees() != null ) {
         String storyname = theDataReader.currentStory();
-        List<Tree> trees = TreeOperator.stringsToTrees(theDataReader.getParseStrings());
+        List<Tree> trees = theDataReader.getTrees();
 
         // Extra merging of coref clusters.
         List<EntityMention> entities = theDataReader.getEntities();
@@ -558,9 +558,9 @@ public class LabelDocument {
       int storyID = theDataReader.currentStoryNum();
 
       // Read the documents in this file.
-      while( theDataReader.getParseStrings() != null ) {
+      while( theDataReader.getTrees() != null ) {
         String storyname = theDataReader.currentStory();
-        List<Tree> trees = TreeOperator.stringsToTrees(theDataReader.getParseStrings());
+        List<Tree> trees = theDataReader.getTrees();
         System.out.println("\n****\n" + storyname + " id=" + storyID);
 
         // Extra merging of coref clusters.
@@ -2585,7 +2585,7 @@ public class LabelDocument {
       theDataReader.nextStory();
 
       // Read the documents in this file.
-      while( theDataReader.getParseStrings() != null ) {
+      while( theDataReader.getTrees() != null ) {
         System.out.println("\n" + theDataReader.currentStory());
 
         // Print the sentence's key tokens.
@@ -2656,7 +2656,7 @@ public class LabelDocument {
       System.out.println(theDataReader.currentStory() + " id=" + storyID);
 
       // Read the documents in this file.
-      while( theDataReader.getParseStrings() != null ) {
+      while( theDataReader.getTrees() != null ) {
         _currentStory = theDataReader.currentStory();
         System.out.print(NUMDOCS + ": (" + theDataReader.currentDoc() + "/??) ");
         System.out.println(_currentStory);
@@ -0,0 +1,301 @@
+package nate.reading;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import nate.BinaryGigaDoc;
+import nate.StoryIndex;
+import nate.util.Directory;
+
+
+/**
+ * A directory (or single file) of processed text: the .parse files and their matching
+ * .deps, .events and .ner files. This does the file pairing and the story loop that the
+ * counting programs each used to write themselves, and runs it on several threads.
+ *
+ * forEachDocument() splits the corpus into tasks (whole files, or ranges of stories in
+ * large files that have a StoryIndex: plain text, or gzipped by BlockGzip) and runs them
+ * in a fork-join pool. Each worker thread gets its own accumulator from the
+ * DocumentConsumer, so consumers need no locking, and the accumulators are merged into
+ * one when all tasks are done. If a task fails, the tasks not yet started are skipped and
+ * forEachDocument() throws the failure instead of returning partial counts.
+ */
+public class ProcessedCorpus {
+  String _parsePath, _depsPath, _corefPath, _nerPath;
+  // Split files into tasks of this many stories, 0 to keep files whole.
+  int _storiesPerTask = 0;
+  int _prefetch = 0;
+  // Files chosen by the caller, instead of listing the parse directory.
+  List<String[]> _files = null;
+  // The first task of forEachDocument() that failed, and why.
+  volatile Throwable _failure = null;
+  Task _failedTask = null;
+
+
+  /**
+   * Consumes the stories of a corpus into a per-thread accumulator.
+   */
+  public interface DocumentConsumer<A> {
+    /** @return A new empty accumulator, one per worker thread. */
+    A newAccumulator();
+    /** Process the current story of the reader into the accumulator. */
+    void document(A accumulator, ProcessedData reader);
+    /** Add everything in the second accumulator to the first. */
+    void merge(A into, A from);
+  }
+
+  /**
+   * Paths may be directories or single files. Only the parse path is required.
+   */
+  public ProcessedCorpus(String parsePath, String depsPath, String corefPath, String nerPath) {
+    _parsePath = parsePath;
+    _depsPath = depsPath;
+    _corefPath = corefPath;
+    _nerPath = nerPath;
+  }
+
+  /**
+   * A corpus of the given files, each the parse, deps, events and NER paths as from files().
+   */
+  public ProcessedCorpus(List<String[]> files) {
+    _files = files;
+  }
+
+  /**
+   * Split indexed files (plain text, or gzipped by BlockGzip) into tasks of this many
+   * stories, so a few large files can still use all the threads. Uses the files'
+   * StoryIndex to start each task.
+   */
+  public void setStoriesPerTask(int stories) {
+    _storiesPerTask = stories;
+  }
+
+  /**
+   * Each task reads its files with this much ProcessedData prefetching.
+   */
+  public void setPrefetch(int stories) {
+    _prefetch = stories;
+  }
+
+  /**
+   * @return One array per parse file: the parse, deps, events and NER paths. Missing
+   *         files are null.
+   */
+  public List<String[]> files() {
+    if( _files != null ) return _files;
+    List<String[]> files = new ArrayList<String[]>();
+    if( !Directory.isDirectory(_parsePath) ) {
+      files.add(new String[] { _parsePath, _depsPath, _corefPath, _nerPath });
+      return files;
+    }
+
+    for( String file : Directory.getFilesSorted(_parsePath) ) {
+      if( !isParseFileToRead(_parsePath, file) ) continue;
+
+      String base = file.substring(0, file.indexOf(".parse"));
+      files.add(new String[] { _parsePath + File.separator + file,
+          sibling(_depsPath, base, ".deps"),
+          sibling(_corefPath, base, ".events"),
+          sibling(_nerPath, base, ".ner") });
+    }
+    return files;
+  }
+
+  /**
+   * @return True if the file name is a parse file: plain, gzipped or binary. Not the
+   *         StoryIndex, journal or temporary files written next to parse files.
+   */
+  public static boolean isParseFile(String file) {
+    if( file.startsWith(".") ) return false;
+    return file.endsWith(".parse") || file.endsWith(".parse.gz")
+        || file.endsWith(".parse" + BinaryGigaDoc.SUFFIX) || file.endsWith(".parse" + BinaryGigaDoc.SUFFIX + ".gz");
+  }
+
+  /**
+   * @return True if the file name is a plain or gzipped parse file, for the readers that
+   *         can't read binary ones.
+   */
+  public static boolean isTextParseFile(String file) {
+    return isParseFile(file) && !BinaryGigaDoc.isBinary(file);
+  }
+
+  /**
+   * @return True if the file in the directory is a parse file to read with ProcessedData:
+   *         not the text original of a file that was converted to binary, as the binary
+   *         one is read instead.
+   */
+  public static boolean isParseFileToRead(String dir, String file) {
+    if( !isParseFile(file) ) return false;
+    if( BinaryGigaDoc.isBinary(file) ) return true;
+    // BinaryGigaDoc.convert() writes x.parse.bin from x.parse or x.parse.gz.
+    String binary = dir + File.separator + Directory.stripGZ(file) + BinaryGigaDoc.SUFFIX;
+    return !Directory.fileExists(binary) && !Directory.fileExists(binary + ".gz");
+  }
+
+  /**
+   * @return The file in the directory with the same base name and the given extension,
+   *         preferring binary, then plain, then gzipped. Falls back to the closest name.
+   */
+  private static String sibling(String path, String base, String extension) {
+    if( path == null ) return null;
+    if( !Directory.isDirectory(path) ) return path;
+
+    String name = base + extension;
+    for( String candidate : new String[] { name + BinaryGigaDoc.SUFFIX, name, name + ".gz" } ) {
+      // Only deps have a binary version.
+      if( candidate.endsWith(BinaryGigaDoc.SUFFIX) && !extension.equals(".deps") ) continue;
+      if( Directory.fileExists(path + File.separator + candidate) )
+        return path + File.separator + candidate;
+    }
+    String nearest = Directory.nearestFile(name, path);
+    return (nearest == null ? null : path + File.separator + nearest);
+  }
+
+  /**
+   * One unit of work: a set of files, and the range of stories to read in them.
+   */
+  private static class Task {
+    String[] paths;
+    // The first story to read, or null for the start of the file. Its position in the
+    // file's StoryIndex is kept as its name and the number of earlier stories of that
+    // name, so the side files find the same story when a name is repeated.
+    String firstStory = null;
+    int occurrence = 0;
+    // The number of stories to read, or -1 for all of them.
+    int numStories = -1;
+
+    Task(String[] paths) { this.paths = paths; }
+
+    public String toString() {
+      return paths[0] + (firstStory == null ? "" : " from " + firstStory + (occurrence > 0 ? " #" + occurrence : "") + " (" + numStories + ")");
+    }
+  }
+
+  private List<Task> tasks() {
+    List<Task> tasks = new ArrayList<Task>();
+    for( String[] paths : files() ) {
+      StoryIndex index = null;
+      if( _storiesPerTask > 0 && !BinaryGigaDoc.isBinary(paths[0]) )
+        index = StoryIndex.forFile(paths[0]);
+
+      if( index == null || index.size() <= _storiesPerTask )
+        tasks.add(new Task(paths));
+      else {
+        for( int start = 0; start < index.size(); start += _storiesPerTask ) {
+          Task task = new Task(paths);
+          task.firstStory = index.name(start);
+          task.occurrence = index.occurrence(start);
+          task.numStories = Math.min(_storiesPerTask, index.size() - start);
+          tasks.add(task);
+        }
+      }
+    }
+    return tasks;
+  }
+
+  /**
+   * Calls the consumer on every story in the corpus, using the given number of threads.
+   * @return The merged accumulator of all the threads.
+   * @throws RuntimeException If a task failed, with the first failure as the cause.
+   */
+  public <A> A forEachDocument(final DocumentConsumer<A> consumer, int numThreads) {
+    final List<Task> tasks = tasks();
+    final Map<Thread,A> accumulators = new ConcurrentHashMap<Thread,A>();
+    System.out.println("ProcessedCorpus: " + tasks.size() + " tasks on " + numThreads + " threads.");
+
+    _failure = null;
+    _failedTask = null;
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    try {
+      pool.invoke(new TaskRange<A>(tasks, 0, tasks.size(), consumer, accumulators));
+    } finally {
+      pool.shutdown();
+    }
+    if( _failure != null )
+      throw new RuntimeException("ProcessedCorpus failed reading " + _failedTask, _failure);
+
+    // Merge the workers' accumulators.
+    A merged = null;
+    for( A acc : accumulators.values() ) {
+      if( merged == null ) merged = acc;
+      else consumer.merge(merged, acc);
+    }
+    if( merged == null ) merged = consumer.newAccumulator();
+    return merged;
+  }
+
+  /**
+   * Splits a range of tasks in half until it is one task, then runs it.
+   */
+  private class TaskRange<A> extends RecursiveAction {
+    static final long serialVersionUID = 1;
+    List<Task> tasks;
+    int start, end;
+    DocumentConsumer<A> consumer;
+    Map<Thread,A> accumulators;
+
+    TaskRange(List<Task> tasks, int start, int end, DocumentConsumer<A> consumer, Map<Thread,A> accumulators) {
+      this.tasks = tasks;
+      this.start = start;
+      this.end = end;
+      this.consumer = consumer;
+      this.accumulators = accumulators;
+    }
+
+    protected void compute() {
+      // Another task failed, so the counts won't be used.
+      if( _failure != null ) return;
+      if( end - start > 1 ) {
+        int middle = (start + end) / 2;
+        invokeAll(new TaskRange<A>(tasks, start, middle, consumer, accumulators),
+            new TaskRange<A>(tasks, middle, end, consumer, accumulators));
+      }
+      else if( end > start ) {
+        // Only this thread touches its accumulator.
+        A acc = accumulators.get(Thread.currentThread());
+        if( acc == null ) {
+          acc = consumer.newAccumulator();
+          accumulators.put(Thread.currentThread(), acc);
+        }
+        runTask(tasks.get(start), consumer, acc);
+      }
+    }
+  }
+
+  private <A> void runTask(Task task, DocumentConsumer<A> consumer, A acc) {
+    System.out.println("file: " + task);
+    String[] paths = task.paths;
+    ProcessedData reader = new ProcessedData(paths[0], paths[1], paths[2], paths[3], _prefetch);
+    try {
+      // Seeks with the file's StoryIndex, before the reader starts prefetching.
+      if( task.firstStory != null ) reader.nextStory(task.firstStory, task.occurrence);
+      else reader.nextStory();
+
+      int numRead = 0;
+      while( reader.hasStory() && (task.numStories < 0 || numRead < task.numStories) && _failure == null ) {
+        consumer.document(acc, reader);
+        numRead++;
+        reader.nextStory();
+      }
+    } catch( Throwable ex ) {
+      System.out.println("ERROR: stopped reading " + task);
+      failed(task, ex);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Records the first failed task, which stops the others.
+   */
+  private synchronized void failed(Task task, Throwable ex) {
+    if( _failure != null ) return;
+    _failedTask = task;
+    _failure = ex;
+  }
+}
@@ -4,12 +4,17 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
 
+import edu.stanford.nlp.trees.Tree;
 import edu.stanford.nlp.trees.TypedDependency;
+import nate.BinaryGigaDoc;
+import nate.BinaryGigaDocReader;
 import nate.EntityMention;
 import nate.GigaDocReader;
 import nate.GigawordHandler;
 import nate.GigawordProcessed;
 import nate.NERSpan;
+import nate.util.Prefetcher;
+import nate.util.TreeOperator;
 
 
 /**
@@ -19,113 +24,355 @@ import nate.NERSpan;
  * API nextStory() is called.
  * 
  * The only required file is a file of parses.  The others can be null.
+ *
+ * The parse and deps files can also be the binary files from BinaryGigaDoc (*.bin), which
+ * skip the string parsing of trees and dependencies. Use getTrees() instead of
+ * getParseStrings() to get the trees without going through strings.
+ *
+ * With prefetching on, each file is read by its own background thread that decodes
+ * stories ahead of the caller into a bounded queue. nextStory() then only waits on
+ * whichever file is slowest, rather than reading the four files one after another.
+ * The side files are matched to the parse file's stories by name, as nextStory(name)
+ * does, skipping stories the parse file doesn't have. The threads start on the first
+ * nextStory(), and if that one names a story, it is read on the caller's thread first so
+ * files with a StoryIndex seek to it instead of decoding every story before it.
  */
 public class ProcessedData {
   GigawordHandler _parseReader = null;
+  BinaryGigaDocReader _binParseReader = null;
   GigaDocReader _eventReader = null;
   GigaDocReader _depsReader = null;
   GigaDocReader _nerReader = null;
   Vector<String> _parseStrings;
+  List<Tree> _trees;
 
   String _pPath;
   String _dPath;
   String _cPath;
   String _nPath;
+
+  // Read-ahead that keeps the background readers busy without holding much memory.
+  public static final int DEFAULT_PREFETCH = 16;
+
+  // Stories to read ahead in each file, 0 to read on the caller's thread.
+  int _prefetch = 0;
+  boolean _prefetchStarted = false;
+  Prefetcher<Story> _parseAhead, _eventAhead, _depsAhead, _nerAhead;
+  // The current story from each file.
+  Story _parseStory, _eventStory, _depsStory, _nerStory;
+  int _currentDoc = 0;
   
   public ProcessedData(String parsePath, String depsPath, String corefPath, String nerPath) {
+    this(parsePath, depsPath, corefPath, nerPath, 0);
+  }
+
+  /**
+   * @param prefetch The number of stories to read ahead in each file, in background
+   *                 threads. Zero reads each story when nextStory() is called.
+   */
+  public ProcessedData(String parsePath, String depsPath, String corefPath, String nerPath, int prefetch) {
     _pPath = parsePath;
     _dPath = depsPath;
     _cPath = corefPath;
     _nPath = nerPath;
+    _prefetch = prefetch;
     reset();
   }
 
   public void reset() { 
-    if( _pPath != null ) _parseReader = new GigawordProcessed(_pPath);
-    if( _dPath != null )  _depsReader  = new GigaDocReader(_dPath);
+    stopPrefetching();
+    if( _pPath != null ) {
+      if( BinaryGigaDoc.isBinary(_pPath) ) _binParseReader = new BinaryGigaDocReader(_pPath);
+      else _parseReader = new GigawordProcessed(_pPath);
+    }
+    if( _dPath != null ) {
+      if( BinaryGigaDoc.isBinary(_dPath) ) _depsReader = new BinaryGigaDocReader(_dPath);
+      else _depsReader = new GigaDocReader(_dPath);
+    }
     if( _cPath != null ) _eventReader = new GigaDocReader(_cPath);
     if( _nPath != null )   _nerReader   = new GigaDocReader(_nPath);
     System.out.println("ProcessedData reset() " + _pPath + " - " + _dPath + " - " + _cPath + " - " + _nPath);
   }
+
+  /**
+   * One story from one of the files, copied out of its reader.
+   */
+  private static class Story {
+    String name;
+    int num;
+    Vector<String> parses;
+    List<Tree> trees;
+    List<List<TypedDependency>> deps;
+    List<EntityMention> entities;
+    List<NERSpan> ner;
+  }
+
+  private void startPrefetching() {
+    _prefetchStarted = true;
+    _parseStory = _eventStory = _depsStory = _nerStory = null;
+    _currentDoc = 0;
+
+    if( _parseReader != null || _binParseReader != null ) {
+      _parseAhead = new Prefetcher<Story>("prefetch-parses", _prefetch) {
+        protected Story readNext() {
+          Story story = new Story();
+          if( _binParseReader != null ) {
+            if( !_binParseReader.nextStory() ) return null;
+            story.name = _binParseReader.currentStory();
+            story.num = _binParseReader.currentStoryNum();
+            story.trees = _binParseReader.getTrees();
+          }
+          else {
+            story.parses = _parseReader.nextStory();
+            if( story.parses == null ) return null;
+            story.name = _parseReader.currentStory();
+            story.num = _parseReader.currentStoryNum();
+            story.trees = TreeOperator.stringsToTrees(story.parses);
+          }
+          return story;
+        }
+      };
+      _parseAhead.start();
+    }
+    _eventAhead = startPrefetcher("prefetch-events", _eventReader);
+    _depsAhead = startPrefetcher("prefetch-deps", _depsReader);
+    _nerAhead = startPrefetcher("prefetch-ner", _nerReader);
+  }
+
+  private Prefetcher<Story> startPrefetcher(String name, final GigaDocReader reader) {
+    if( reader == null ) return null;
+    Prefetcher<Story> ahead = new Prefetcher<Story>(name, _prefetch) {
+      protected Story readNext() {
+        if( !reader.nextStory() ) return null;
+        return copyStory(reader);
+      }
+    };
+    ahead.start();
+    return ahead;
+  }
+
+  /**
+   * The reader clears its lists on the next story, so copy them.
+   */
+  private static Story copyStory(GigaDocReader reader) {
+    Story story = new Story();
+    story.name = reader.currentStory();
+    story.num = reader.currentStoryNum();
+    story.deps = new ArrayList<List<TypedDependency>>(reader.getDependencies());
+    story.entities = new ArrayList<EntityMention>(reader.getEntities());
+    story.ner = new ArrayList<NERSpan>(reader.getNER());
+    return story;
+  }
+
+  /**
+   * Starts prefetching after a story that was read on the caller's thread, keeping that
+   * story as the current one.
+   */
+  private void startPrefetchingAfter() {
+    Story parseStory = null;
+    if( hasStory() ) {
+      parseStory = new Story();
+      parseStory.name = currentStory();
+      parseStory.num = currentStoryNum();
+      parseStory.parses = _parseStrings;
+      parseStory.trees = _trees;
+    }
+    Story eventStory = (_eventReader == null ? null : copyStory(_eventReader));
+    Story depsStory = (_depsReader == null ? null : copyStory(_depsReader));
+    Story nerStory = (_nerReader == null ? null : copyStory(_nerReader));
+
+    startPrefetching();
+    _parseStory = parseStory;
+    _eventStory = eventStory;
+    _depsStory = depsStory;
+    _nerStory = nerStory;
+    _currentDoc = 1;
+  }
+
+  private void stopPrefetching() {
+    if( _parseAhead != null ) _parseAhead.stop();
+    if( _eventAhead != null ) _eventAhead.stop();
+    if( _depsAhead != null ) _depsAhead.stop();
+    if( _nerAhead != null ) _nerAhead.stop();
+    _parseAhead = _eventAhead = _depsAhead = _nerAhead = null;
+    _prefetchStarted = false;
+  }
+
+  /**
+   * Advances the prefetched parse stream to the next story whose name contains the
+   * given name (any story if null), and the side streams to the same story.
+   */
+  private void nextPrefetchedStory(String storyname) {
+    _currentDoc++;
+    _parseStory = _parseAhead.take();
+    while( storyname != null && _parseStory != null && _parseStory.name.indexOf(storyname) < 0 )
+      _parseStory = _parseAhead.take();
+
+    _parseStrings = null;
+    _trees = null;
+    if( _parseStory != null ) {
+      _parseStrings = _parseStory.parses;
+      _trees = _parseStory.trees;
+    }
+
+    String name = (_parseStory == null ? storyname : _parseStory.name);
+    if( _eventAhead != null ) _eventStory = matchStory(_eventAhead, name);
+    if( _depsAhead != null ) _depsStory = matchStory(_depsAhead, name);
+    if( _nerAhead != null ) _nerStory = matchStory(_nerAhead, name);
+  }
+
+  /**
+   * Skips ahead in a side stream to the named story, like GigaDocReader.nextStory(name).
+   * @return The story, or null if the stream ran out first.
+   */
+  private Story matchStory(Prefetcher<Story> ahead, String name) {
+    if( name == null ) return null;
+    Story story = ahead.take();
+    while( story != null && story.name.indexOf(name) < 0 )
+      story = ahead.take();
+    return story;
+  }
   
+  public String parsePath() { return _pPath; }
+
   public String currentStory() {
-    if( _parseReader == null ) {
-      System.out.println("ERROR: null parses");
-      System.exit(-1);
-    }
+    checkParses();
+    if( _parseAhead != null ) return (_parseStory == null ? null : _parseStory.name);
+    if( _binParseReader != null ) return _binParseReader.currentStory();
     return _parseReader.currentStory();
   }
 
-  public int currentStoryNum() {
-    if( _parseReader == null ) {
+  private void checkParses() {
+    if( _parseReader == null && _binParseReader == null ) {
       System.out.println("ERROR: null parses");
       System.exit(-1);
     }
+  }
+
+  public int currentStoryNum() {
+    checkParses();
+    if( _parseAhead != null ) return (_parseStory == null ? -1 : _parseStory.num);
+    if( _binParseReader != null ) return _binParseReader.currentStoryNum();
     return _parseReader.currentStoryNum();
   }
 
   public int currentDoc() {
-    if( _parseReader == null ) {
-      System.out.println("ERROR: null parses");
-      System.exit(-1);
-    }
+    checkParses();
+    if( _parseAhead != null ) return _currentDoc;
+    if( _binParseReader != null ) return _binParseReader.currentDoc();
     return _parseReader.currentDoc();
   }
   
   public void nextStory() {
-    if( _parseReader == null ) {
-      System.out.println("ERROR: null parses");
-      System.exit(-1);
+    checkParses();
+    if( _prefetch > 0 && !_prefetchStarted ) startPrefetching();
+    if( _parseAhead != null ) {
+      nextPrefetchedStory(null);
+      return;
+    }
+
+    _parseStrings = null;
+    _trees = null;
+    if( _binParseReader != null ) {
+      if( _binParseReader.nextStory() ) _trees = _binParseReader.getTrees();
     }
+    else _parseStrings = _parseReader.nextStory();
 
-    _parseStrings = _parseReader.nextStory();
+    String story = currentStory();
     if( _eventReader != null )
-      _eventReader.nextStory(_parseReader.currentStory());
+      _eventReader.nextStory(story);
     if( _depsReader != null )
-      _depsReader.nextStory(_parseReader.currentStory());
+      _depsReader.nextStory(story);
     if( _nerReader != null )
-      _nerReader.nextStory(_parseReader.currentStory());
+      _nerReader.nextStory(story);
   }
   
   /**
    * Advance to a specific story.
    */
   public void nextStory(String storyname) {
-    if( _parseReader == null ) {
-      System.out.println("ERROR: null parses");
-      System.exit(-1);
+    nextStory(storyname, -1);
+  }
+
+  /**
+   * Advance to a specific story, when a name may be repeated in the files.
+   * @param occurrence Which of the stories with the name to read, counted from the start
+   *                   of the files (0 is the first), or -1 for the next one. Only for the
+   *                   first story read.
+   */
+  public void nextStory(String storyname, int occurrence) {
+    checkParses();
+    if( _parseAhead != null ) {
+      nextPrefetchedStory(storyname);
+      return;
     }
+    boolean startPrefetching = (_prefetch > 0 && !_prefetchStarted);
 
-    _parseStrings = _parseReader.nextStory(storyname);
+    _parseStrings = null;
+    _trees = null;
+    if( _binParseReader != null ) {
+      if( _binParseReader.nextStory(storyname, occurrence) ) _trees = _binParseReader.getTrees();
+    }
+    else _parseStrings = _parseReader.nextStory(storyname, occurrence, false);
     if( _eventReader != null )
-      _eventReader.nextStory(storyname);
+      _eventReader.nextStory(storyname, occurrence);
     if( _depsReader != null )
-      _depsReader.nextStory(storyname);
+      _depsReader.nextStory(storyname, occurrence);
     if( _nerReader != null )
-      _nerReader.nextStory(storyname);
+      _nerReader.nextStory(storyname, occurrence);
+    if( startPrefetching ) startPrefetchingAfter();
+  }
+
+  /**
+   * @return True if nextStory() found a story, false at the end of the file.
+   */
+  public boolean hasStory() {
+    return _parseStrings != null || _trees != null;
   }
 
+  /**
+   * @return The parse strings of the current story, or null at the end of the file.
+   *         Binary parse files render these from the trees, so prefer getTrees() for them.
+   */
   public Vector<String> getParseStrings() {
+    if( _parseStrings == null && _trees != null ) {
+      _parseStrings = new Vector<String>(_trees.size());
+      for( Tree tree : _trees )
+        _parseStrings.add(tree == null ? null : tree.toString());
+    }
     return _parseStrings;
   }
+
+  /**
+   * @return The parse trees of the current story, or null at the end of the file.
+   */
+  public List<Tree> getTrees() {
+    if( _trees == null && _parseStrings != null )
+      _trees = TreeOperator.stringsToTrees(_parseStrings);
+    return _trees;
+  }
   
   public List<EntityMention> getEntities() {
+    if( _eventAhead != null )
+      return (_eventStory == null ? new ArrayList<EntityMention>() : _eventStory.entities);
     return _eventReader.getEntities();
   }
   
   public List<List<TypedDependency>> getDependencies() {
+    if( _depsAhead != null )
+      return (_depsStory == null ? new ArrayList<List<TypedDependency>>() : _depsStory.deps);
     return _depsReader.getDependencies();
   }
   
   public ProcessedDocument getDocument() {
-    return new ProcessedDocument(_parseReader.currentStory(), getParseStrings(), getDependencies(), getEntities(), getNER());
+    return new ProcessedDocument(currentStory(), getParseStrings(), getDependencies(), getEntities(), getNER());
   }
 
   /**
    * If you need to keep this around, clone all the values because they get cleared destructively otherwise.
    */
   public ProcessedDocument getDocumentCloned() {
-    return new ProcessedDocument(_parseReader.currentStory(), 
+    return new ProcessedDocument(currentStory(), 
         getParseStrings(), 
         new ArrayList<>(getDependencies()), 
         new ArrayList<>(getEntities()), 
@@ -133,12 +380,19 @@ public class ProcessedData {
   }
 
   public List<NERSpan> getNER() {
+    if( _nerAhead != null )
+      return (_nerStory == null ? new ArrayList<NERSpan>() : _nerStory.ner);
     if( _nerReader != null )
       return _nerReader.getNER();
     else return null;
   }
   
   public void close() {
+    stopPrefetching();
+    if( _parseReader != null )
+      _parseReader.closeFile();
+    if( _binParseReader != null )
+      _binParseReader.close();
     if( _eventReader != null )
       _eventReader.close();
     if( _depsReader != null )
@@ -278,7 +278,7 @@ public class TemplateExtractor {
   public List<String> findCeilingFromDeps(List<MUCEntity> golds, ProcessedData dataReader,
       char posType, boolean includeNominatives) {
     List<EntityMention> entities = dataReader.getEntities();
-    List<Tree> trees = TreeOperator.stringsToTrees(dataReader.getParseStrings());
+    List<Tree> trees = dataReader.getTrees();
     List<String> matches = new ArrayList<String>();
 
     if( golds != null ) {
@@ -1507,7 +1507,7 @@ public class TemplateExtractor {
    */
   public List<String> likelihoodTopVerbs(ProcessedData dataReader) {
     System.out.println("--likelihoodTopVerbs--");
-    List<Tree> trees = TreeOperator.stringsToTrees(dataReader.getParseStrings());
+    List<Tree> trees = dataReader.getTrees();
     List<List<TypedDependency>> alldeps = dataReader.getDependencies();
     List<EntityMention> entities = dataReader.getEntities();
 
@@ -1557,7 +1557,7 @@ public class TemplateExtractor {
    */
   public List<String> salienceTopVerbs(ProcessedData dataReader, boolean sumscores) {
     System.out.println("--salienceTopVerbs-- (sumscores " + sumscores + ")");
-    List<Tree> trees = TreeOperator.stringsToTrees(dataReader.getParseStrings());
+    List<Tree> trees = dataReader.getTrees();
     List<List<TypedDependency>> alldeps = dataReader.getDependencies();
     List<EntityMention> entities = dataReader.getEntities();
 
@@ -1613,7 +1613,7 @@ public class TemplateExtractor {
    */
   public List<String> salienceAndRatioTopVerbs(ProcessedData dataReader) {
     System.out.println("--salienceTopVerbs--");
-    List<Tree> trees = TreeOperator.stringsToTrees(dataReader.getParseStrings());
+    List<Tree> trees = dataReader.getTrees();
     List<List<TypedDependency>> alldeps = dataReader.getDependencies();
     List<EntityMention> entities = dataReader.getEntities();
 
@@ -1732,7 +1732,7 @@ public class TemplateExtractor {
   public List<String> extractUsingLikelihood(ProcessedData dataReader) {
     List<EntityMention> entities = dataReader.getEntities();
     List<NERSpan> ners = dataReader.getNER();
-    List<Tree> trees = TreeOperator.stringsToTrees(dataReader.getParseStrings());
+    List<Tree> trees = dataReader.getTrees();
     List<SortableObject<RelnAndEntity>> slots = new ArrayList<SortableObject<RelnAndEntity>>();
 
     // Find and score all verb-dep relations in this single document.
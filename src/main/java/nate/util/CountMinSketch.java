@@ -0,0 +1,106 @@
+package nate.util;
+
+import java.util.Arrays;
+
+
+/**
+ * A Count-Min sketch: approximate counts of any number of items in a fixed table of
+ * depth rows by width counters. An item adds to one counter in each row, and its
+ * estimate is the smallest of those counters. Estimates are never too low, and with
+ * probability 1-delta they are too high by at most epsilon times the total of all counts,
+ * for width e/epsilon and depth ln(1/delta).
+ *
+ * Updates are conservative: only counters below the item's new estimate are raised,
+ * which keeps the same bounds with smaller errors. Sketches of the same size can be
+ * added together, as for counting on several threads.
+ */
+public class CountMinSketch {
+  private int _width, _depth;
+  private double[] _counts;
+  private double _total = 0.0;
+
+
+  /**
+   * @param epsilon The error bound, as a fraction of the total count.
+   * @param delta The probability of an estimate outside the bound.
+   */
+  public CountMinSketch(double epsilon, double delta) {
+    this((int)Math.ceil(Math.E / epsilon), (int)Math.ceil(Math.log(1.0 / delta)));
+  }
+
+  public CountMinSketch(int width, int depth) {
+    _width = width;
+    _depth = Math.max(1, depth);
+    _counts = new double[_width * _depth];
+  }
+
+  public int width() { return _width; }
+  public int depth() { return _depth; }
+  public double total() { return _total; }
+  public long memoryBytes() { return (long)_counts.length * 8; }
+
+  /**
+   * Adds to an item's count.
+   * @param item The item's 64-bit hash.
+   * @return The item's new estimated count.
+   */
+  public double add(long item, double amount) {
+    _total += amount;
+    long h1 = mix(item), h2 = mix(h1);
+    double estimate = Double.MAX_VALUE;
+    for( int row = 0; row < _depth; row++ )
+      estimate = Math.min(estimate, _counts[cell(row, h1, h2)]);
+    estimate += amount;
+    for( int row = 0; row < _depth; row++ ) {
+      int cell = cell(row, h1, h2);
+      if( _counts[cell] < estimate ) _counts[cell] = estimate;
+    }
+    return estimate;
+  }
+
+  /**
+   * @return The item's estimated count, zero if never added.
+   */
+  public double estimate(long item) {
+    long h1 = mix(item), h2 = mix(h1);
+    double estimate = Double.MAX_VALUE;
+    for( int row = 0; row < _depth; row++ )
+      estimate = Math.min(estimate, _counts[cell(row, h1, h2)]);
+    return estimate;
+  }
+
+  /**
+   * Adds the counts of a sketch of the same size.
+   */
+  public void addAll(CountMinSketch other) {
+    if( other._width != _width || other._depth != _depth )
+      throw new IllegalArgumentException("Sketch sizes differ: " + _width + "x" + _depth + " and " + other._width + "x" + other._depth);
+    for( int i = 0; i < _counts.length; i++ )
+      _counts[i] += other._counts[i];
+    _total += other._total;
+  }
+
+  public void clear() {
+    Arrays.fill(_counts, 0.0);
+    _total = 0.0;
+  }
+
+  /**
+   * The row's counter for an item, from two hashes of it combined differently per row.
+   */
+  private int cell(int row, long h1, long h2) {
+    return row * _width + (int)(((h1 + row * h2) & Long.MAX_VALUE) % _width);
+  }
+
+  /**
+   * The 64-bit finalizer from MurmurHash3, spreads the bits of a long.
+   */
+  public static long mix(long x) {
+    x ^= x >>> 33;
+    x *= 0xff51afd7ed558ccdL;
+    x ^= x >>> 33;
+    x *= 0xc4ceb9fe1a85ec53L;
+    x ^= x >>> 33;
+    return x;
+  }
+}
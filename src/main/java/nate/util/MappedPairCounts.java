@@ -0,0 +1,422 @@
+package nate.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A token pair counts file in a binary format that is memory-mapped instead of read, so
+ * opening it is immediate and the counts stay in the OS page cache instead of the heap.
+ * It holds the same rows as the text .counts file that CountTokenPairs writes, and
+ * lookups binary search the mapped arrays.
+ *
+ * Tokens are numbered in sorted order, so sorting by ID sorts by token. The file is the
+ * magic bytes "PCB1", a flag for float counts, the NUMDOCS value, the file's total count
+ * as intsFromFile() and fromFile() add it up, the number of tokens and of pairs. Then
+ * the token strings (an offset per token into UTF-8 bytes), and each row: for each
+ * token the start of its row, then the second tokens' IDs in order and their counts.
+ * The rows are written twice, once as in the text file and once inverted, so a token's
+ * pairs in either position are one lookup.
+ *
+ * Run main() on .counts files to convert them.
+ */
+public class MappedPairCounts {
+  public static final byte[] MAGIC = { 'P', 'C', 'B', '1' };
+  public static final String SUFFIX = ".bin";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private boolean _floats;
+  private int _numDocs;
+  private int _intTotal, _floatTotal;
+  private int _numTokens, _numPairs;
+  private IntBuffer _stringOffsets;
+  private ByteBuffer _strings;
+  private Rows _rows, _inverse;
+  // Tokens that can be looked up, or null for all of them.
+  private boolean[] _included = null;
+
+
+  /**
+   * Maps a file written by convert().
+   */
+  public MappedPairCounts(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 28);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if( !Arrays.equals(magic, MAGIC) )
+        throw new IOException("Not a binary pair counts file: " + path);
+      _floats = header.get() != 0;
+      header.get(); header.get(); header.get();
+      _numDocs = header.getInt();
+      _intTotal = header.getInt();
+      _floatTotal = header.getInt();
+      _numTokens = header.getInt();
+      _numPairs = header.getInt();
+
+      long pos = 28;
+      _stringOffsets = map(channel, pos, 4L * (_numTokens+1)).asIntBuffer();
+      pos += 4L * (_numTokens+1);
+      int numBytes = _stringOffsets.get(_numTokens);
+      _strings = map(channel, pos, numBytes);
+      pos += padded(numBytes);
+      _rows = new Rows(channel, pos);
+      pos += _rows.length();
+      _inverse = new Rows(channel, pos);
+    } finally {
+      // The mappings stay valid after the file is closed.
+      file.close();
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long pos, long length) throws IOException {
+    if( length > Integer.MAX_VALUE )
+      throw new IOException("Pair counts file section too large to map: " + length);
+    return channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+  }
+
+  private static int padded(int numBytes) {
+    return (numBytes + 3) & ~3;
+  }
+
+  public boolean isFloat() { return _floats; }
+  public int numDocs() { return _numDocs; }
+  public int numTokens() { return _numTokens; }
+  public int numPairs() { return _numPairs; }
+
+  /**
+   * @return The total count, as fromFile() adds it up if floats, else as intsFromFile() does.
+   */
+  public int totalCount(boolean floats) {
+    if( _included == null ) return (floats ? _floatTotal : _intTotal);
+
+    int total = 0;
+    for( int id = 0; id < _numTokens; id++ ) {
+      if( !_included[id] ) continue;
+      for( int i = _rows.start(id), end = _rows.start(id+1); i < end; i++ ) {
+        if( !_included[_rows.id(i)] ) continue;
+        if( floats ) total += (float)_rows.count(i);
+        else total += (int)_rows.count(i);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Only look up tokens whose text before any colon is in the collection, as
+   * CountTokenPairs.fromFile() only loads them.
+   */
+  public void restrict(Collection<String> include) {
+    _included = new boolean[_numTokens];
+    for( int id = 0; id < _numTokens; id++ ) {
+      String base = token(id);
+      int colon = base.indexOf(':');
+      if( colon > -1 ) base = base.substring(0, colon);
+      _included[id] = include.contains(base);
+    }
+  }
+
+  private boolean included(int id) {
+    return _included == null || _included[id];
+  }
+
+  public String token(int id) {
+    int start = _stringOffsets.get(id), end = _stringOffsets.get(id+1);
+    byte[] bytes = new byte[end - start];
+    for( int i = 0; i < bytes.length; i++ ) bytes[i] = _strings.get(start + i);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * @return The token's ID, or -1 if it isn't in any pair.
+   */
+  public int id(String token) {
+    int low = 0, high = _numTokens - 1;
+    while( low <= high ) {
+      int mid = (low + high) >>> 1;
+      int diff = token(mid).compareTo(token);
+      if( diff < 0 ) low = mid + 1;
+      else if( diff > 0 ) high = mid - 1;
+      else return (included(mid) ? mid : -1);
+    }
+    return -1;
+  }
+
+  /**
+   * @return The count of the pair with token1 first, zero if it isn't in the file.
+   */
+  public double getCount(String token1, String token2) {
+    int id1 = id(token1);
+    if( id1 < 0 ) return 0.0;
+    int id2 = id(token2);
+    if( id2 < 0 ) return 0.0;
+    int i = _rows.find(id1, id2);
+    return (i < 0 ? 0.0 : _rows.count(i));
+  }
+
+  /**
+   * @param inverse True for the pairs with the token second, false for those with it first.
+   * @return The other token of each pair with its count, or null if the token has no row.
+   */
+  public Map<String,Float> floatRow(String token, boolean inverse) {
+    Map<String,Float> row = null;
+    int id = id(token);
+    if( id < 0 ) return null;
+    Rows rows = (inverse ? _inverse : _rows);
+    // A row whose pairs are all left out is empty, as fromFile() loads it.
+    if( rows.start(id) < rows.start(id+1) ) row = new HashMap<String,Float>(8);
+    for( int i = rows.start(id), end = rows.start(id+1); i < end; i++ ) {
+      if( !included(rows.id(i)) ) continue;
+      row.put(token(rows.id(i)), (float)rows.count(i));
+    }
+    return row;
+  }
+
+  /**
+   * @return The other token of each pair with the token in the given position (or in either
+   *         if both is true) with its count, or null if the token has no row.
+   */
+  public Map<String,Integer> intRow(String token, boolean inverse, boolean both) {
+    Map<String,Integer> row = null;
+    int id = id(token);
+    if( id < 0 ) return null;
+    for( int pass = 0; pass < (both ? 2 : 1); pass++ ) {
+      Rows rows = (inverse == (pass == 0) ? _inverse : _rows);
+      if( row == null && rows.start(id) < rows.start(id+1) ) row = new HashMap<String,Integer>(8);
+      for( int i = rows.start(id), end = rows.start(id+1); i < end; i++ ) {
+        if( !included(rows.id(i)) ) continue;
+        row.put(token(rows.id(i)), (int)rows.count(i));
+      }
+    }
+    return row;
+  }
+
+  /**
+   * @param inverse True to include tokens that are only second in pairs.
+   * @return The tokens that are first in pairs.
+   */
+  public Set<String> firstTokens(boolean inverse) {
+    Set<String> tokens = new HashSet<String>();
+    for( int id = 0; id < _numTokens; id++ ) {
+      if( !included(id) ) continue;
+      if( _rows.start(id) < _rows.start(id+1) || (inverse && _inverse.start(id) < _inverse.start(id+1)) )
+        tokens.add(token(id));
+    }
+    return tokens;
+  }
+
+  /**
+   * @return All tokens in pairs that start with the string, found in the sorted token list.
+   */
+  public Set<String> tokensThatStartWith(String start) {
+    Set<String> tokens = new HashSet<String>();
+    int low = 0, high = _numTokens;
+    while( low < high ) {
+      int mid = (low + high) >>> 1;
+      if( token(mid).compareTo(start) < 0 ) low = mid + 1;
+      else high = mid;
+    }
+    for( int id = low; id < _numTokens; id++ ) {
+      String token = token(id);
+      if( !token.startsWith(start) ) break;
+      if( included(id) ) tokens.add(token);
+    }
+    return tokens;
+  }
+
+  /**
+   * Calls the visitor with every pair as it is in the text file.
+   */
+  public void forEachPair(PairVisitor visitor) {
+    for( int id = 0; id < _numTokens; id++ ) {
+      if( !included(id) ) continue;
+      String token = token(id);
+      for( int i = _rows.start(id), end = _rows.start(id+1); i < end; i++ ) {
+        if( included(_rows.id(i)) )
+          visitor.pair(token, token(_rows.id(i)), _rows.count(i));
+      }
+    }
+  }
+
+  public interface PairVisitor {
+    public void pair(String token1, String token2, double count);
+  }
+
+  /**
+   * The rows of pairs: the start of each token's row, then the IDs and counts of all rows.
+   */
+  private class Rows {
+    IntBuffer starts, ids, ints;
+    FloatBuffer floats;
+
+    Rows(FileChannel channel, long pos) throws IOException {
+      starts = map(channel, pos, 4L * (_numTokens+1)).asIntBuffer();
+      pos += 4L * (_numTokens+1);
+      ids = map(channel, pos, 4L * _numPairs).asIntBuffer();
+      pos += 4L * _numPairs;
+      ByteBuffer counts = map(channel, pos, 4L * _numPairs);
+      if( _floats ) floats = counts.asFloatBuffer();
+      else ints = counts.asIntBuffer();
+    }
+
+    long length() {
+      return 4L * (_numTokens+1) + 8L * _numPairs;
+    }
+
+    int start(int token) { return starts.get(token); }
+    int id(int i) { return ids.get(i); }
+    double count(int i) { return (_floats ? floats.get(i) : ints.get(i)); }
+
+    /**
+     * @return The index of the pair in the first token's row, or -1.
+     */
+    int find(int id1, int id2) {
+      int low = starts.get(id1), high = starts.get(id1+1) - 1;
+      while( low <= high ) {
+        int mid = (low + high) >>> 1;
+        int id = ids.get(mid);
+        if( id < id2 ) low = mid + 1;
+        else if( id > id2 ) high = mid - 1;
+        else return mid;
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * @return The binary file to read for the text counts file: the path itself if it is a
+   *         binary file, or its converted file if that is newer than it. Null if neither.
+   */
+  public static String binaryPath(String path) {
+    if( path.endsWith(SUFFIX) ) return path;
+    File text = new File(path);
+    File binary = new File(path + SUFFIX);
+    if( binary.exists() && binary.lastModified() >= text.lastModified() ) return binary.getPath();
+    return null;
+  }
+
+  /**
+   * Converts a text .counts file to <name>.bin
+   */
+  public static void convert(String inpath, String outpath) throws IOException {
+    Vocabulary vocab = new Vocabulary();
+    PairCounts counts = new PairCounts(vocab, true);
+    boolean floats = false;
+    int numDocs = 0;
+    int intTotal = 0, floatTotal = 0;
+
+    BufferedReader in = new BufferedReader(new FileReader(inpath));
+    String line = in.readLine();
+    if( line != null && line.startsWith("NUMDOCS ") ) {
+      numDocs = Integer.valueOf(line.substring(8));
+      line = in.readLine();
+    }
+    for( ; line != null; line = in.readLine() ) {
+      String parts[] = line.split("\\s+");
+      if( parts.length < 3 || (parts.length % 2 != 1) )
+        throw new IOException("Strange line format: " + line);
+      for( int i = 1; i < parts.length; i += 2 ) {
+        if( parts[i+1].indexOf('.') > -1 ) floats = true;
+        float count = Float.valueOf(parts[i+1]);
+        counts.increment(parts[0], parts[i], (double)count);
+        floatTotal += count;
+        if( !floats ) intTotal += Integer.valueOf(parts[i+1]);
+      }
+    }
+    in.close();
+
+    // Renumber the tokens in sorted order.
+    int[] ranks = vocab.sortedRanks();
+    String[] tokens = new String[ranks.length];
+    for( int id = 0; id < ranks.length; id++ ) tokens[ranks[id]] = vocab.token(id);
+    long[] keys = counts.sortedKeys();
+    double[] values = new double[keys.length];
+    for( int i = 0; i < keys.length; i++ ) {
+      values[i] = counts.getFloat(PairCounts.first(keys[i]), PairCounts.second(keys[i]));
+      keys[i] = PairCounts.key(ranks[PairCounts.first(keys[i])], ranks[PairCounts.second(keys[i])]);
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outpath), 65536));
+    out.write(MAGIC);
+    out.writeByte(floats ? 1 : 0);
+    out.writeByte(0); out.writeByte(0); out.writeByte(0);
+    out.writeInt(numDocs);
+    out.writeInt(intTotal);
+    out.writeInt(floatTotal);
+    out.writeInt(tokens.length);
+    out.writeInt(keys.length);
+
+    byte[][] bytes = new byte[tokens.length][];
+    int offset = 0;
+    for( int id = 0; id < tokens.length; id++ ) {
+      bytes[id] = tokens[id].getBytes(UTF8);
+      out.writeInt(offset);
+      offset += bytes[id].length;
+    }
+    out.writeInt(offset);
+    for( byte[] token : bytes ) out.write(token);
+    for( int i = offset; i < padded(offset); i++ ) out.writeByte(0);
+
+    writeRows(out, keys, values, tokens.length, floats, false);
+    writeRows(out, keys, values, tokens.length, floats, true);
+    out.close();
+  }
+
+  /**
+   * Writes the row starts, IDs and counts of the pairs.
+   * @param keys The pairs by token IDs, sorted.
+   * @param inverted True to write each pair as (second, first), sorted that way.
+   */
+  private static void writeRows(DataOutputStream out, long[] keys, double[] counts, int numTokens,
+      boolean floats, boolean inverted) throws IOException {
+    int[] starts = new int[numTokens+1];
+    for( long key : keys )
+      starts[(inverted ? PairCounts.second(key) : PairCounts.first(key)) + 1]++;
+    for( int id = 0; id < numTokens; id++ ) starts[id+1] += starts[id];
+    for( int start : starts ) out.writeInt(start);
+
+    // Place each pair in its row. The keys are sorted by first token, so inverted rows
+    // come out sorted too.
+    int[] order = new int[keys.length];
+    int[] next = Arrays.copyOf(starts, numTokens);
+    for( int i = 0; i < keys.length; i++ )
+      order[next[inverted ? PairCounts.second(keys[i]) : PairCounts.first(keys[i])]++] = i;
+
+    for( int i : order )
+      out.writeInt(inverted ? PairCounts.first(keys[i]) : PairCounts.second(keys[i]));
+    for( int i : order ) {
+      if( floats ) out.writeFloat((float)counts[i]);
+      else out.writeInt((int)counts[i]);
+    }
+  }
+
+  /**
+   * MappedPairCounts <counts-file>...
+   * Converts text pair counts files to binary, each to <file>.bin
+   */
+  public static void main(String[] args) throws IOException {
+    for( String path : args ) {
+      System.out.println("Converting " + path + " to " + path + SUFFIX);
+      convert(path, path + SUFFIX);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package nate.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * MinHash signatures of documents, with an LSH index to find near-duplicates without
+ * comparing every pair of documents.
+ *
+ * A document is the set of its word shingles (runs of SHINGLE_SIZE words). The fraction
+ * of equal values in two signatures estimates the Jaccard similarity of the two sets.
+ * The index splits each signature into bands of rows and puts the document in one bucket
+ * per band. Documents that share any bucket are candidates, and only candidates are
+ * compared. With b bands of r rows, a pair with similarity s is a candidate with
+ * probability 1-(1-s^r)^b, so the defaults catch pairs above 0.8 almost always.
+ */
+public class MinHash {
+  public static final int SHINGLE_SIZE = 5;
+  long[] _seeds;
+  int _numBands, _numRows;
+  // LSH buckets: band key to the documents in that bucket.
+  Map<Long,List<Integer>> _buckets = new HashMap<Long,List<Integer>>();
+  List<int[]> _signatures = new ArrayList<int[]>();
+
+
+  public MinHash() {
+    this(20, 5);
+  }
+
+  /**
+   * @param numBands The number of LSH bands.
+   * @param numRows Signature values per band. Signatures have numBands*numRows values.
+   */
+  public MinHash(int numBands, int numRows) {
+    _numBands = numBands;
+    _numRows = numRows;
+    // Fixed seed so signatures are the same from run to run.
+    Random rand = new Random(1234);
+    _seeds = new long[numBands * numRows];
+    for( int i = 0; i < _seeds.length; i++ )
+      _seeds[i] = rand.nextLong();
+  }
+
+  /**
+   * @param words The document's words, in order.
+   * @return The document's signature, or null if it has no words.
+   */
+  public int[] signature(List<String> words) {
+    if( words.size() == 0 ) return null;
+
+    int[] sig = new int[_seeds.length];
+    for( int i = 0; i < sig.length; i++ ) sig[i] = Integer.MAX_VALUE;
+
+    // Short documents are one shingle.
+    int size = Math.min(SHINGLE_SIZE, words.size());
+    for( int start = 0; start + size <= words.size(); start++ ) {
+      long shingle = 0;
+      for( int i = start; i < start + size; i++ )
+        shingle = shingle * 31 + words.get(i).hashCode();
+      for( int i = 0; i < sig.length; i++ ) {
+        int value = (int)mix(shingle ^ _seeds[i]);
+        if( value < sig[i] ) sig[i] = value;
+      }
+    }
+    return sig;
+  }
+
+  /**
+   * @return The estimated Jaccard similarity of the two documents.
+   */
+  public static double similarity(int[] sig1, int[] sig2) {
+    int same = 0;
+    for( int i = 0; i < sig1.length; i++ )
+      if( sig1[i] == sig2[i] ) same++;
+    return (double)same / sig1.length;
+  }
+
+  /**
+   * Adds a signature to the index.
+   * @return The document's ID in the index.
+   */
+  public int add(int[] sig) {
+    int id = _signatures.size();
+    _signatures.add(sig);
+    for( int band = 0; band < _numBands; band++ ) {
+      Long key = bandKey(sig, band);
+      List<Integer> bucket = _buckets.get(key);
+      if( bucket == null ) {
+        bucket = new ArrayList<Integer>(2);
+        _buckets.put(key, bucket);
+      }
+      bucket.add(id);
+    }
+    return id;
+  }
+
+  /**
+   * @return The ID of an indexed document at least this similar to the signature, or -1.
+   */
+  public int findSimilar(int[] sig, double threshold) {
+    Set<Integer> checked = new HashSet<Integer>();
+    for( int band = 0; band < _numBands; band++ ) {
+      List<Integer> bucket = _buckets.get(bandKey(sig, band));
+      if( bucket == null ) continue;
+      for( Integer id : bucket ) {
+        if( checked.add(id) && similarity(sig, _signatures.get(id)) >= threshold )
+          return id;
+      }
+    }
+    return -1;
+  }
+
+  public void clear() {
+    _buckets.clear();
+    _signatures.clear();
+  }
+
+  private long bandKey(int[] sig, int band) {
+    long key = band;
+    for( int i = band * _numRows; i < (band+1) * _numRows; i++ )
+      key = key * 1000003 + sig[i];
+    return mix(key);
+  }
+
+  /**
+   * The 64-bit finalizer from MurmurHash3, spreads the bits of a long.
+   */
+  private static long mix(long x) {
+    x ^= x >>> 33;
+    x *= 0xff51afd7ed558ccdL;
+    x ^= x >>> 33;
+    x *= 0xc4ceb9fe1a85ec53L;
+    x ^= x >>> 33;
+    return x;
+  }
+}
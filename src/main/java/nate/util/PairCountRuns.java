@@ -0,0 +1,255 @@
+package nate.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * Pair counts spilled to disk as sorted runs, for counting more pairs than fit in memory.
+ * Each spill writes a PairCounts table's pairs in token order to a new run file and
+ * clears the table. A Merge then reads all of the runs at once in the same order, adding
+ * up the counts of a pair from every run, so the totals are exact however often the
+ * counts were spilled.
+ *
+ * Each pair in a run file is a flag that is true when the first token changes, the first
+ * token if so, the second token, and the count as an int or a double. Once there are
+ * MAX_RUNS runs they are merged into one, so a merge never opens too many files.
+ */
+public class PairCountRuns {
+  public static final int MAX_RUNS = 64;
+
+  private File _dir;
+  private boolean _floats;
+  private List<File> _files = new ArrayList<File>();
+
+
+  /**
+   * @param dir The directory to write the runs in.
+   * @param floats True if the spilled tables hold float counts.
+   */
+  public PairCountRuns(File dir, boolean floats) {
+    _dir = dir;
+    _floats = floats;
+  }
+
+  public int numRuns() {
+    synchronized( _files ) {
+      return _files.size();
+    }
+  }
+
+  /**
+   * Writes the table's pairs to a new run, then clears the table. Several threads may
+   * spill their own tables at once.
+   */
+  public void spill(PairCounts counts) throws IOException {
+    if( counts.size() == 0 ) return;
+    Vocabulary vocab = counts.vocabulary();
+    long[] keys = counts.sortedKeys();
+
+    RunWriter writer = new RunWriter();
+    try {
+      for( long key : keys ) {
+        int first = PairCounts.first(key);
+        int second = PairCounts.second(key);
+        double count = (_floats ? counts.getFloat(first, second) : counts.getInt(first, second));
+        writer.write(vocab.token(first), vocab.token(second), count);
+      }
+    } finally {
+      writer.close();
+    }
+    System.out.println("Spilled " + keys.length + " pairs to " + writer.file);
+    counts.clear();
+    added(writer.file);
+  }
+
+  /**
+   * Adds a finished run, and merges all of the runs into one if there are too many.
+   */
+  private void added(File file) throws IOException {
+    List<File> merging = null;
+    synchronized( _files ) {
+      _files.add(file);
+      if( _files.size() >= MAX_RUNS ) {
+        merging = new ArrayList<File>(_files);
+        _files.clear();
+      }
+    }
+    if( merging == null ) return;
+
+    System.out.println("Merging " + merging.size() + " runs");
+    Merge merge = new Merge(merging, _floats);
+    RunWriter writer = new RunWriter();
+    try {
+      while( merge.next() )
+        writer.write(merge.first(), merge.second(), merge.count());
+    } finally {
+      merge.close();
+      writer.close();
+    }
+    for( File run : merging ) run.delete();
+    synchronized( _files ) {
+      _files.add(writer.file);
+    }
+  }
+
+  /**
+   * @return A merge of all the runs, which the caller must close.
+   */
+  public Merge merge() throws IOException {
+    synchronized( _files ) {
+      return new Merge(_files, _floats);
+    }
+  }
+
+  /**
+   * @return The number of different first tokens in the runs. Reads all of them.
+   */
+  public int numFirstTokens() throws IOException {
+    Merge merge = merge();
+    int num = 0;
+    try {
+      String last = null;
+      while( merge.next() ) {
+        if( !merge.first().equals(last) ) num++;
+        last = merge.first();
+      }
+    } finally {
+      merge.close();
+    }
+    return num;
+  }
+
+  /**
+   * Deletes the run files.
+   */
+  public void delete() {
+    synchronized( _files ) {
+      for( File file : _files ) file.delete();
+      _files.clear();
+    }
+  }
+
+  /**
+   * All the runs' pairs in token order, each pair once with its total count.
+   */
+  public static class Merge {
+    private PriorityQueue<Run> _queue = new PriorityQueue<Run>();
+    private String _first, _second;
+    private double _count;
+
+    Merge(List<File> files, boolean floats) throws IOException {
+      for( File file : files ) advance(new Run(file, floats));
+    }
+
+    /**
+     * Moves to the next pair.
+     * @return False if there are no more pairs.
+     */
+    public boolean next() throws IOException {
+      if( _queue.isEmpty() ) return false;
+      Run run = _queue.poll();
+      _first = run.first;
+      _second = run.second;
+      _count = run.count;
+      advance(run);
+
+      // Add the pair's counts in the other runs.
+      while( !_queue.isEmpty() && _queue.peek().first.equals(_first) && _queue.peek().second.equals(_second) ) {
+        run = _queue.poll();
+        _count += run.count;
+        advance(run);
+      }
+      return true;
+    }
+
+    private void advance(Run run) throws IOException {
+      if( run.next() ) _queue.add(run);
+      else run.close();
+    }
+
+    public String first() { return _first; }
+    public String second() { return _second; }
+    public double count() { return _count; }
+
+    public void close() throws IOException {
+      for( Run run : _queue ) run.close();
+      _queue.clear();
+    }
+  }
+
+  /**
+   * Reads one run file, one pair at a time.
+   */
+  private static class Run implements Comparable<Run> {
+    DataInputStream in;
+    boolean floats;
+    String first = null, second = null;
+    double count = 0.0;
+
+    Run(File file, boolean floats) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+      this.floats = floats;
+    }
+
+    boolean next() throws IOException {
+      boolean newFirst;
+      try {
+        newFirst = in.readBoolean();
+      } catch( EOFException ex ) {
+        return false;
+      }
+      if( newFirst ) first = in.readUTF();
+      second = in.readUTF();
+      count = (floats ? in.readDouble() : in.readInt());
+      return true;
+    }
+
+    public int compareTo(Run other) {
+      int diff = first.compareTo(other.first);
+      return (diff != 0 ? diff : second.compareTo(other.second));
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a new run file, pairs in token order.
+   */
+  private class RunWriter {
+    File file;
+    DataOutputStream out;
+    String lastFirst = null;
+
+    RunWriter() throws IOException {
+      file = File.createTempFile("pairs-", ".run", _dir);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    }
+
+    void write(String first, String second, double count) throws IOException {
+      boolean newFirst = !first.equals(lastFirst);
+      out.writeBoolean(newFirst);
+      if( newFirst ) out.writeUTF(first);
+      lastFirst = first;
+      out.writeUTF(second);
+      if( _floats ) out.writeDouble(count);
+      else out.writeInt((int)count);
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package nate.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Counts of token pairs in an open-addressing hash table. The two tokens of a pair are
+ * interned as int IDs by a Vocabulary and packed into one long key, so a pair costs a
+ * long and an int or double in flat arrays, instead of a map entry, a boxed count and
+ * its own copy of the second token's string.
+ *
+ * A table holds either integer counts or float counts, chosen when it is created.
+ * Float counts are summed in doubles. The pair (id1,id2) is different from (id2,id1),
+ * callers that want unordered pairs should order the tokens first.
+ */
+public class PairCounts {
+  // No pair has this key, since IDs are never negative.
+  private static final long EMPTY = -1L;
+  private static final float MAX_LOAD = 0.6f;
+
+  private Vocabulary _vocab;
+  private long[] _keys;
+  private int[] _ints = null;
+  private double[] _floats = null;
+  private int _size = 0;
+  private int _mask;
+  private int _resizeAt;
+
+
+  /**
+   * @param vocab The token IDs, which may be shared with other tables.
+   * @param floats True for float counts, false for integer counts.
+   */
+  public PairCounts(Vocabulary vocab, boolean floats) {
+    this(vocab, floats, 1024);
+  }
+
+  public PairCounts(Vocabulary vocab, boolean floats, int capacity) {
+    _vocab = vocab;
+    int size = 16;
+    while( size * MAX_LOAD < capacity ) size *= 2;
+    allocate(size, floats);
+  }
+
+  private void allocate(int size, boolean floats) {
+    _keys = new long[size];
+    Arrays.fill(_keys, EMPTY);
+    if( floats ) _floats = new double[size];
+    else _ints = new int[size];
+    _mask = size - 1;
+    _resizeAt = (int)(size * MAX_LOAD);
+    _size = 0;
+  }
+
+  public static long key(int id1, int id2) {
+    return ((long)id1 << 32) | (id2 & 0xffffffffL);
+  }
+  public static int first(long key) { return (int)(key >>> 32); }
+  public static int second(long key) { return (int)key; }
+
+  public Vocabulary vocabulary() { return _vocab; }
+  public boolean isFloat() { return _floats != null; }
+  /** @return The number of pairs. */
+  public int size() { return _size; }
+  /** @return The bytes in the table's arrays. */
+  public long memoryBytes() { return (long)_keys.length * (_floats != null ? 16 : 12); }
+
+  /**
+   * @return The slot of the key, or the empty slot where it would go.
+   */
+  private int slot(long key) {
+    int slot = (int)mix(key) & _mask;
+    while( _keys[slot] != EMPTY && _keys[slot] != key )
+      slot = (slot + 1) & _mask;
+    return slot;
+  }
+
+  /**
+   * @return The slot of the key, adding the key with a zero count if it is new.
+   */
+  private int addSlot(long key) {
+    int slot = slot(key);
+    if( _keys[slot] == EMPTY ) {
+      if( _size >= _resizeAt ) {
+        rehash(_keys.length * 2);
+        slot = slot(key);
+      }
+      _keys[slot] = key;
+      _size++;
+    }
+    return slot;
+  }
+
+  public void increment(int id1, int id2, int amount) {
+    // Find the slot first, adding it may grow the arrays.
+    int slot = addSlot(key(id1, id2));
+    _ints[slot] += amount;
+  }
+
+  public void increment(int id1, int id2, double amount) {
+    int slot = addSlot(key(id1, id2));
+    _floats[slot] += amount;
+  }
+
+  public void increment(String token1, String token2, int amount) {
+    increment(_vocab.id(token1), _vocab.id(token2), amount);
+  }
+
+  public void increment(String token1, String token2, double amount) {
+    increment(_vocab.id(token1), _vocab.id(token2), amount);
+  }
+
+  /**
+   * Sets the pair's float count, adding the pair if it is new.
+   */
+  public void set(int id1, int id2, double count) {
+    int slot = addSlot(key(id1, id2));
+    _floats[slot] = count;
+  }
+
+  /**
+   * @return The pair's integer count, zero if it was never seen.
+   */
+  public int getInt(int id1, int id2) {
+    int slot = slot(key(id1, id2));
+    return (_keys[slot] == EMPTY ? 0 : _ints[slot]);
+  }
+
+  /**
+   * @return The pair's float count, zero if it was never seen.
+   */
+  public double getFloat(int id1, int id2) {
+    int slot = slot(key(id1, id2));
+    return (_keys[slot] == EMPTY ? 0.0 : _floats[slot]);
+  }
+
+  public int getInt(String token1, String token2) {
+    int id1 = _vocab.lookup(token1), id2 = _vocab.lookup(token2);
+    return (id1 < 0 || id2 < 0 ? 0 : getInt(id1, id2));
+  }
+
+  public double getFloat(String token1, String token2) {
+    int id1 = _vocab.lookup(token1), id2 = _vocab.lookup(token2);
+    return (id1 < 0 || id2 < 0 ? 0.0 : getFloat(id1, id2));
+  }
+
+  /**
+   * @return The number of different first tokens of the pairs.
+   */
+  public int numFirstTokens() {
+    boolean[] seen = new boolean[_vocab.size()];
+    int num = 0;
+    for( long key : _keys ) {
+      if( key != EMPTY && !seen[first(key)] ) {
+        seen[first(key)] = true;
+        num++;
+      }
+    }
+    return num;
+  }
+
+  /**
+   * Adds all of the other table's counts to this one's. The tables may have different
+   * vocabularies.
+   */
+  public void addAll(PairCounts other) {
+    boolean sameVocab = (other._vocab == _vocab);
+    for( int i = 0; i < other._keys.length; i++ ) {
+      long key = other._keys[i];
+      if( key == EMPTY ) continue;
+      if( !sameVocab )
+        key = key(_vocab.id(other._vocab.token(first(key))), _vocab.id(other._vocab.token(second(key))));
+      int slot = addSlot(key);
+      if( _floats != null ) _floats[slot] += other._floats[i];
+      else _ints[slot] += other._ints[i];
+    }
+  }
+
+  /**
+   * Removes all pairs whose count is the cutoff or less.
+   */
+  public void trim(double cutoff) {
+    long[] keys = _keys;
+    int[] ints = _ints;
+    double[] floats = _floats;
+    int kept = 0;
+    for( int i = 0; i < keys.length; i++ ) {
+      if( keys[i] != EMPTY && (floats != null ? floats[i] : ints[i]) > cutoff ) kept++;
+    }
+
+    int size = 16;
+    while( size * MAX_LOAD <= kept ) size *= 2;
+    allocate(size, floats != null);
+    for( int i = 0; i < keys.length; i++ ) {
+      if( keys[i] != EMPTY && (floats != null ? floats[i] : ints[i]) > cutoff )
+        put(keys[i], ints, floats, i);
+    }
+  }
+
+  public void clear() {
+    allocate(16, _floats != null);
+  }
+
+  /**
+   * @return The keys of all pairs, in no particular order.
+   */
+  public long[] keys() {
+    long[] keys = new long[_size];
+    int n = 0;
+    for( long key : _keys ) {
+      if( key != EMPTY ) keys[n++] = key;
+    }
+    return keys;
+  }
+
+  /**
+   * @return The keys of all pairs, ordered by the first token's string and then the second's.
+   */
+  public long[] sortedKeys() {
+    int[] ranks = _vocab.sortedRanks();
+    int[] ids = new int[ranks.length];
+    for( int id = 0; id < ranks.length; id++ ) ids[ranks[id]] = id;
+
+    // Sort by ranks, then map back to IDs.
+    long[] sorted = new long[_size];
+    int n = 0;
+    for( long key : _keys ) {
+      if( key != EMPTY ) sorted[n++] = key(ranks[first(key)], ranks[second(key)]);
+    }
+    Arrays.sort(sorted);
+    for( int i = 0; i < sorted.length; i++ )
+      sorted[i] = key(ids[first(sorted[i])], ids[second(sorted[i])]);
+    return sorted;
+  }
+
+  private void rehash(int size) {
+    long[] keys = _keys;
+    int[] ints = _ints;
+    double[] floats = _floats;
+    allocate(size, floats != null);
+    for( int i = 0; i < keys.length; i++ ) {
+      if( keys[i] != EMPTY ) put(keys[i], ints, floats, i);
+    }
+  }
+
+  /**
+   * Adds a key that isn't in the table, with its count from the old arrays.
+   */
+  private void put(long key, int[] ints, double[] floats, int from) {
+    int slot = slot(key);
+    _keys[slot] = key;
+    if( floats != null ) _floats[slot] = floats[from];
+    else _ints[slot] = ints[from];
+    _size++;
+  }
+
+  /**
+   * The 64-bit finalizer from MurmurHash3, spreads the bits of a long.
+   */
+  private static long mix(long x) {
+    x ^= x >>> 33;
+    x *= 0xff51afd7ed558ccdL;
+    x ^= x >>> 33;
+    x *= 0xc4ceb9fe1a85ec53L;
+    x ^= x >>> 33;
+    return x;
+  }
+}
@@ -0,0 +1,167 @@
+package nate.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * Approximate token pair counts in bounded memory: a Count-Min sketch estimates every
+ * pair's count, and a table of candidate pairs keeps only the pairs that may be among
+ * the most frequent. Memory is the sketch plus at most twice the number of top pairs,
+ * however many different pairs are counted.
+ *
+ * A pair becomes a candidate once its estimate passes the lowest count that was kept by
+ * the last pruning, or any higher count pruned before. Its estimate covers everything
+ * counted before then, since the sketch saw all of it. Pruning keeps exactly the top
+ * pairs, breaking ties by the tokens, and runs each time the candidates double. With width e/epsilon and depth ln(1/delta), every estimate is at most epsilon
+ * times the total count too high, with probability 1-delta, and is never too low.
+ */
+public class PairSketch {
+  private CountMinSketch _sketch;
+  private int _numTop;
+  private Vocabulary _vocab = new Vocabulary();
+  private PairCounts _candidates;
+  // Pairs need an estimate above this to become candidates.
+  private double _threshold = 0.0;
+
+  // 64-bit FNV-1a, for the pairs' sketch items.
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+
+  /**
+   * @param numTop The number of most frequent pairs to keep.
+   * @param epsilon The error bound of the counts, as a fraction of the total count.
+   * @param delta The probability of a count outside the bound.
+   */
+  public PairSketch(int numTop, double epsilon, double delta) {
+    this(numTop, new CountMinSketch(epsilon, delta));
+  }
+
+  private PairSketch(int numTop, CountMinSketch sketch) {
+    _numTop = numTop;
+    _sketch = sketch;
+    _candidates = new PairCounts(_vocab, true, Math.min(2 * numTop, 1 << 16));
+  }
+
+  /**
+   * @return An empty sketch of the same size, whose counts can be added to this one's.
+   */
+  public PairSketch emptyCopy() {
+    return new PairSketch(_numTop, new CountMinSketch(_sketch.width(), _sketch.depth()));
+  }
+
+  public CountMinSketch sketch() { return _sketch; }
+  public int numCandidates() { return _candidates.size(); }
+  public long memoryBytes() { return _sketch.memoryBytes() + _candidates.memoryBytes(); }
+
+  public void increment(String token1, String token2, double amount) {
+    double estimate = _sketch.add(item(token1, token2), amount);
+    if( estimate > _threshold ) {
+      _candidates.set(_vocab.id(token1), _vocab.id(token2), estimate);
+      if( _candidates.size() >= 2 * _numTop ) prune();
+    }
+  }
+
+  /**
+   * Adds the counts of a sketch made by emptyCopy().
+   */
+  public void addAll(PairSketch other) {
+    _sketch.addAll(other._sketch);
+    _threshold = Math.max(_threshold, other._threshold);
+    Vocabulary vocab = other._vocab;
+    for( long key : other._candidates.keys() )
+      _candidates.set(_vocab.id(vocab.token(PairCounts.first(key))), _vocab.id(vocab.token(PairCounts.second(key))), 0.0);
+    refresh();
+    if( _candidates.size() >= 2 * _numTop ) prune();
+  }
+
+  /**
+   * Adds the estimated counts of the most frequent pairs to the table, which rounds them
+   * down if it holds integer counts.
+   */
+  public void topPairs(PairCounts into) {
+    refresh();
+    if( _candidates.size() > _numTop ) prune();
+    for( long key : _candidates.keys() ) {
+      String token1 = _vocab.token(PairCounts.first(key));
+      String token2 = _vocab.token(PairCounts.second(key));
+      double count = _candidates.getFloat(PairCounts.first(key), PairCounts.second(key));
+      if( into.isFloat() ) into.increment(token1, token2, count);
+      else into.increment(token1, token2, (int)count);
+    }
+  }
+
+  public void clear() {
+    _sketch.clear();
+    _vocab = new Vocabulary();
+    _candidates = new PairCounts(_vocab, true, Math.min(2 * _numTop, 1 << 16));
+    _threshold = 0.0;
+  }
+
+  /**
+   * Keeps the numTop candidates with the highest counts, breaking ties by their tokens so
+   * that exactly numTop are left. Starts a new vocabulary for them, so the tokens of
+   * pruned pairs don't stay in memory.
+   */
+  private void prune() {
+    refresh();
+    final long[] keys = _candidates.keys();
+    final double[] counts = new double[keys.length];
+    for( int i = 0; i < keys.length; i++ )
+      counts[i] = _candidates.getFloat(PairCounts.first(keys[i]), PairCounts.second(keys[i]));
+    if( keys.length <= _numTop ) return;
+
+    Integer[] order = new Integer[keys.length];
+    for( int i = 0; i < order.length; i++ ) order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        if( counts[a] != counts[b] ) return (counts[a] > counts[b] ? -1 : 1);
+        int c = _vocab.token(PairCounts.first(keys[a])).compareTo(_vocab.token(PairCounts.first(keys[b])));
+        if( c != 0 ) return c;
+        return _vocab.token(PairCounts.second(keys[a])).compareTo(_vocab.token(PairCounts.second(keys[b])));
+      }
+    });
+
+    Vocabulary vocab = new Vocabulary();
+    PairCounts kept = new PairCounts(vocab, true, Math.min(2 * _numTop, 1 << 16));
+    for( int i = 0; i < _numTop; i++ ) {
+      long key = keys[order[i]];
+      kept.set(vocab.id(_vocab.token(PairCounts.first(key))), vocab.id(_vocab.token(PairCounts.second(key))), counts[order[i]]);
+    }
+    // New pairs must now pass the lowest kept count, which is no lower than any pruned one.
+    _threshold = Math.max(_threshold, counts[order[_numTop - 1]]);
+    _vocab = vocab;
+    _candidates = kept;
+  }
+
+  /**
+   * Sets the candidates' counts to their current estimates.
+   */
+  private void refresh() {
+    for( long key : _candidates.keys() ) {
+      int id1 = PairCounts.first(key), id2 = PairCounts.second(key);
+      _candidates.set(id1, id2, _sketch.estimate(item(_vocab.token(id1), _vocab.token(id2))));
+    }
+  }
+
+  /**
+   * The pair's sketch item, a 64-bit hash of the tokens' characters so that it is the same
+   * in every copy. The candidates keep the tokens themselves.
+   */
+  private static long item(String token1, String token2) {
+    long hash = hash(FNV_OFFSET, token1);
+    // A zero char between the tokens, so "ab","c" and "a","bc" differ.
+    hash *= FNV_PRIME;
+    return hash(hash, token2);
+  }
+
+  private static long hash(long hash, String token) {
+    for( int i = 0; i < token.length(); i++ ) {
+      char c = token.charAt(i);
+      hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+      hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,171 @@
+package nate.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * One stage of a producer/consumer pipeline. Each stage runs in its own thread, takes
+ * items from a bounded input queue in order, processes them, and puts them on the next
+ * stage's queue. A full queue blocks the stage before it, so a slow stage holds back
+ * the whole pipeline instead of filling memory.
+ *
+ * Each stage counts the items it processed and the time it spent processing them.
+ * The stage with the longest busy time (and usually the deepest queue) is the bottleneck.
+ *
+ * An Exception in process() is reported and the item is passed on. Anything worse (an
+ * Error such as running out of memory) stops the stage and the stages after it, and
+ * put() and join() then throw instead of waiting on a stage that will never take items.
+ */
+public abstract class PipelineStage<T> implements Runnable {
+  private String _name;
+  private BlockingQueue<T> _queue;
+  private int _capacity;
+  // Special item that marks the end of the input.
+  private T _end;
+  private PipelineStage<T> _next = null;
+  private Thread _thread = null;
+  // Why the stage stopped early, or null.
+  private volatile Throwable _failure = null;
+  // How often blocked calls check for a failed stage.
+  private static final long POLL_MILLIS = 100;
+
+  private volatile long _processed = 0;
+  private volatile long _busyNanos = 0;
+  private long _startNanos;
+
+
+  /**
+   * @param name Name of the stage, used in thread names and reports.
+   * @param capacity The number of items that can wait in this stage's queue.
+   * @param end Item that marks the end of the input. Never processed, just passed on.
+   */
+  public PipelineStage(String name, int capacity, T end) {
+    _name = name;
+    _capacity = capacity;
+    _queue = new ArrayBlockingQueue<T>(capacity);
+    _end = end;
+  }
+
+  /**
+   * Do this stage's work on one item.
+   */
+  protected abstract void process(T item);
+
+  /**
+   * Items are passed to the given stage after this one processes them.
+   */
+  public void setNext(PipelineStage<T> next) {
+    _next = next;
+  }
+
+  public void start() {
+    _startNanos = System.nanoTime();
+    _thread = new Thread(this, _name);
+    _thread.start();
+  }
+
+  /**
+   * Adds an item to this stage's queue, waiting if the queue is full.
+   * @throws RuntimeException If the stage has failed.
+   */
+  public void put(T item) {
+    try {
+      do {
+        checkFailure();
+      } while( !_queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS) );
+    } catch( InterruptedException ex ) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while queueing to stage " + _name, ex);
+    }
+  }
+
+  /**
+   * Signals the end of the input. This stage passes the signal down the pipeline
+   * after it processes everything already in its queue.
+   */
+  public void finish() {
+    put(_end);
+  }
+
+  /**
+   * Waits until this stage has processed all its items.
+   * @throws RuntimeException If the stage failed instead.
+   */
+  public void join() {
+    try {
+      if( _thread != null ) _thread.join();
+    } catch( InterruptedException ex ) {
+      Thread.currentThread().interrupt();
+    }
+    checkFailure();
+  }
+
+  /**
+   * Stops this stage and the stages after it, without processing the items still queued.
+   */
+  public void abort(Throwable cause) {
+    if( _failure == null ) _failure = cause;
+    if( _next != null ) _next.abort(cause);
+  }
+
+  public boolean failed() { return _failure != null; }
+
+  private void checkFailure() {
+    if( _failure != null )
+      throw new RuntimeException("Pipeline stage " + _name + " failed", _failure);
+  }
+
+  public void run() {
+    try {
+      while( true ) {
+        T item = _queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if( _failure != null ) return;
+        if( item == null ) continue;
+
+        if( item == _end ) {
+          if( _next != null ) _next.finish();
+          return;
+        }
+
+        long start = System.nanoTime();
+        try {
+          process(item);
+        } catch( Exception ex ) {
+          // Still pass the item on so later stages see every item.
+          ex.printStackTrace();
+          System.out.println("ERROR: stage " + _name + " failed on " + item);
+        }
+        _busyNanos += System.nanoTime() - start;
+        _processed++;
+
+        if( _next != null ) _next.put(item);
+      }
+    } catch( Throwable ex ) {
+      // Errors, or a later stage that failed.
+      ex.printStackTrace();
+      System.out.println("ERROR: stage " + _name + " stopped.");
+      abort(ex);
+    }
+  }
+
+  public String name() { return _name; }
+  public int queueDepth() { return _queue.size(); }
+  public long processed() { return _processed; }
+  public double busySeconds() { return _busyNanos / 1e9; }
+
+  /**
+   * @return Items processed per second of wall-clock time since the stage started.
+   */
+  public double throughput() {
+    double seconds = (System.nanoTime() - _startNanos) / 1e9;
+    if( seconds <= 0.0 ) return 0.0;
+    return _processed / seconds;
+  }
+
+  public String toString() {
+    return String.format("%s: queue=%d/%d done=%d busy=%.1fs %.2f/sec",
+        _name, queueDepth(), _capacity, _processed, busySeconds(), throughput());
+  }
+}
@@ -0,0 +1,116 @@
+package nate.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Reads items ahead of the caller in a background thread, into a bounded queue.
+ * Subclasses implement readNext() to produce the next item, or null at the end of input.
+ * The caller's take() then only waits when the reader has fallen behind. If reading
+ * fails, take() throws the failure once the items before it are taken.
+ */
+public abstract class Prefetcher<T> implements Runnable {
+  // Marks the end of the input in the queue, since the queue can't hold nulls.
+  private static final Object END = new Object();
+
+  private String _name;
+  private BlockingQueue<Object> _queue;
+  private Thread _thread = null;
+  private volatile boolean _stopped = false;
+  private boolean _ended = false;
+
+  /**
+   * Carries the reader thread's failure through the queue, after the items read before it.
+   */
+  private static class Failure {
+    Throwable cause;
+    Failure(Throwable cause) { this.cause = cause; }
+  }
+
+
+  /**
+   * @param name Name of the reader thread.
+   * @param capacity The number of items to read ahead.
+   */
+  public Prefetcher(String name, int capacity) {
+    _name = name;
+    _queue = new ArrayBlockingQueue<Object>(capacity);
+  }
+
+  /**
+   * @return The next item of the input, or null if there are no more.
+   */
+  protected abstract T readNext() throws Exception;
+
+  public void start() {
+    _thread = new Thread(this, _name);
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  public void run() {
+    try {
+      while( !_stopped ) {
+        T item = null;
+        try {
+          item = readNext();
+        } catch( Throwable ex ) {
+          // Stopping interrupts any read in progress.
+          if( _stopped ) return;
+          System.out.println("ERROR: prefetcher " + _name + " failed.");
+          _queue.put(new Failure(ex));
+          return;
+        }
+        if( item == null ) break;
+        _queue.put(item);
+      }
+      _queue.put(END);
+    } catch( InterruptedException ex ) {
+      // stop() was called.
+    }
+  }
+
+  /**
+   * Waits for the next item.
+   * @return The next item, or null at the end of the input.
+   * @throws RuntimeException If the reader thread failed, with its failure as the cause.
+   */
+  @SuppressWarnings("unchecked")
+  public T take() {
+    if( _ended ) return null;
+    try {
+      Object item = _queue.take();
+      if( item == END ) {
+        _ended = true;
+        return null;
+      }
+      if( item instanceof Failure ) {
+        _ended = true;
+        throw new RuntimeException("Prefetcher " + _name + " failed", ((Failure)item).cause);
+      }
+      return (T)item;
+    } catch( InterruptedException ex ) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting on " + _name, ex);
+    }
+  }
+
+  /**
+   * Stops the reader thread and waits for it to exit. Items still queued are dropped.
+   */
+  public void stop() {
+    _stopped = true;
+    if( _thread != null ) {
+      _thread.interrupt();
+      try {
+        _thread.join();
+      } catch( InterruptedException ex ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    _queue.clear();
+  }
+
+  public int queueDepth() { return _queue.size(); }
+}
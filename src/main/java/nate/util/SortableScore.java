@@ -1,5 +1,7 @@
 package nate.util;
 
+import java.util.Comparator;
+
 /**
  * Convenience class that can be sorted by score.
  */
@@ -13,6 +15,17 @@ public class SortableScore implements Comparable<SortableScore> {
   }
   public SortableScore() { }
 
+  /**
+   * Higher scores first, then keys alphabetically. Unlike compareTo(), this is a total
+   * order, so the sorted order doesn't depend on the order before sorting.
+   */
+  public static final Comparator<SortableScore> BY_SCORE_THEN_KEY = new Comparator<SortableScore>() {
+    public int compare(SortableScore a, SortableScore b) {
+      if( a.score != b.score ) return (a.score > b.score ? -1 : 1);
+      return a.key.compareTo(b.key);
+    }
+  };
+
   public int compareTo(SortableScore b) {
     if( b == null ) return -1;
     if( score < ((SortableScore)b).score() ) return 1;
@@ -0,0 +1,87 @@
+package nate.util;
+
+/**
+ * Token tests and count keys for the per-token loops of the counting programs. Each test
+ * scans the token's chars once, instead of matching a regular expression that
+ * String.matches() compiles again on every call, and gives the same answer as the
+ * expression it replaces. Keys are built with a single concatenation onto a constant
+ * prefix.
+ */
+public class TokenClassifier {
+  // The key prefixes of the normalized POS tags, by tag.
+  private static final String[] PREFIXES = new String[128];
+  static {
+    for( char pos = 0; pos < PREFIXES.length; pos++ )
+      PREFIXES[pos] = pos + "-";
+  }
+
+
+  /**
+   * @return True if the token is a word to count: it starts with an ASCII letter and has
+   *         no digits. The same as matches("[a-zA-Z].*") && !matches(".*\\d.*").
+   */
+  public static boolean isWord(String token) {
+    if( token.length() == 0 || !isAsciiLetter(token.charAt(0)) ) return false;
+    for( int i = 1; i < token.length(); i++ ) {
+      char ch = token.charAt(i);
+      // The regex dot does not match line breaks.
+      if( (ch >= '0' && ch <= '9') || isLineTerminator(ch) ) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return True if the token is a number: a digit, then only digits, commas and dashes.
+   *         The same as matches("[0-9][0123456789,-]*").
+   */
+  public static boolean isNumber(String token) {
+    if( token.length() == 0 ) return false;
+    char first = token.charAt(0);
+    if( first < '0' || first > '9' ) return false;
+    for( int i = 1; i < token.length(); i++ ) {
+      char ch = token.charAt(i);
+      if( (ch < '0' || ch > '9') && ch != ',' && ch != '-' ) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return True if the token has an ASCII letter or digit. The same as
+   *         matches(".*[a-zA-Z0-9].*").
+   */
+  public static boolean hasLetterOrDigit(String token) {
+    boolean found = false;
+    for( int i = 0; i < token.length(); i++ ) {
+      char ch = token.charAt(i);
+      if( isLineTerminator(ch) ) return false;
+      if( isAsciiLetter(ch) || (ch >= '0' && ch <= '9') ) found = true;
+    }
+    return found;
+  }
+
+  /**
+   * @return True if the token is only ASCII letters. The same as matches("[a-zA-Z]+").
+   */
+  public static boolean isLetters(String token) {
+    if( token.length() == 0 ) return false;
+    for( int i = 0; i < token.length(); i++ )
+      if( !isAsciiLetter(token.charAt(i)) ) return false;
+    return true;
+  }
+
+  private static boolean isAsciiLetter(char ch) {
+    return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+  }
+
+  private static boolean isLineTerminator(char ch) {
+    return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+  }
+
+  /**
+   * @return The count key of a token with a normalized POS tag: "n-dog" for 'n' and "dog".
+   */
+  public static String key(String token, char pos) {
+    if( pos < PREFIXES.length ) return PREFIXES[pos].concat(token);
+    return pos + "-" + token;
+  }
+}
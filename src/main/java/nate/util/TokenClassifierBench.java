@@ -0,0 +1,72 @@
+package nate.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import nate.CalculateIDF;
+import nate.GigawordHandler;
+import nate.GigawordProcessed;
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeFactory;
+
+
+/**
+ * Times TokenClassifier against the regular expressions it replaced.
+ */
+public class TokenClassifierBench {
+  /**
+   * TokenClassifierBench <parse-file>
+   * Times the word test and key building of CalculateIDF on every leaf of a parse file,
+   * with the regular expressions and concatenation it used before and with TokenClassifier.
+   */
+  public static void main(String[] args) {
+    if( args.length < 1 || !new File(args[0]).exists() ) {
+      System.out.println("TokenClassifierBench <parse-file>");
+      System.exit(-1);
+    }
+
+    // Read the leaves first, so only the tests are timed.
+    TreeFactory tf = new LabeledScoredTreeFactory();
+    List<String> leaves = new ArrayList<String>();
+    List<Character> tags = new ArrayList<Character>();
+    GigawordHandler giga = new GigawordProcessed(args[0]);
+    for( List<String> parses = giga.nextStory(); parses != null; parses = giga.nextStory() ) {
+      for( String parse : parses ) {
+        Tree tree = TreeOperator.stringToTree(parse, tf);
+        if( tree == null ) continue;
+        for( Tree leaf : tree.getLeaves() ) {
+          leaves.add(leaf.value());
+          tags.add(CalculateIDF.normalizePOS(leaf.parent(tree).value()));
+        }
+      }
+    }
+    String[] words = leaves.toArray(new String[leaves.size()]);
+    char[] pos = new char[words.length];
+    for( int i = 0; i < pos.length; i++ ) pos[i] = tags.get(i);
+    System.out.println(words.length + " leaves");
+
+    // Several rounds, so the later ones are compiled.
+    for( int round = 0; round < 5; round++ ) {
+      long start = System.nanoTime();
+      int regexCount = 0;
+      for( int i = 0; i < words.length; i++ ) {
+        String word = words[i].toLowerCase();
+        if( word.matches("[a-zA-Z].*") && !word.matches(".*\\d.*") )
+          regexCount += (pos[i] + "-" + word).length();
+      }
+      long middle = System.nanoTime();
+      int scanCount = 0;
+      for( int i = 0; i < words.length; i++ ) {
+        String word = words[i].toLowerCase();
+        if( TokenClassifier.isWord(word) )
+          scanCount += TokenClassifier.key(word, pos[i]).length();
+      }
+      long end = System.nanoTime();
+      System.out.printf("round %d: regex %.0f leaves/s, scan %.0f leaves/s%s%n", round,
+          words.length / ((middle - start) / 1e9), words.length / ((end - middle) / 1e9),
+          (regexCount == scanCount ? "" : " (DIFFERENT KEYS)"));
+    }
+  }
+}
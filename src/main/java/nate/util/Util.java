@@ -557,7 +557,7 @@ public class Util {
     for( String key : removed ) map.remove(key);
     //    System.out.println("Trimmed " + removed.size() + " pairs");
   }
-  
+
   /**
    * Create a string list of the items, up to n long.
    */
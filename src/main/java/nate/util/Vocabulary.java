@@ -0,0 +1,56 @@
+package nate.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Interns token strings as dense int IDs, numbered from 0 in the order they are first
+ * seen, so each token is stored once however many counts refer to it.
+ */
+public class Vocabulary {
+  private Map<String,Integer> _ids = new HashMap<String,Integer>();
+  private List<String> _tokens = new ArrayList<String>();
+
+
+  /**
+   * @return The token's ID, adding the token if it is new.
+   */
+  public int id(String token) {
+    Integer id = _ids.get(token);
+    if( id == null ) {
+      id = _tokens.size();
+      _tokens.add(token);
+      _ids.put(token, id);
+    }
+    return id;
+  }
+
+  /**
+   * @return The token's ID, or -1 if it isn't in the vocabulary.
+   */
+  public int lookup(String token) {
+    Integer id = _ids.get(token);
+    return (id == null ? -1 : id);
+  }
+
+  public String token(int id) { return _tokens.get(id); }
+  public int size() { return _tokens.size(); }
+
+  /**
+   * @return The position of each ID's token when all tokens are sorted, indexed by ID.
+   */
+  public int[] sortedRanks() {
+    String[] sorted = new String[_tokens.size()];
+    sorted = _tokens.toArray(sorted);
+    Arrays.sort(sorted);
+
+    int[] ranks = new int[sorted.length];
+    for( int i = 0; i < sorted.length; i++ )
+      ranks[_ids.get(sorted[i])] = i;
+    return ranks;
+  }
+}
@@ -9,6 +9,7 @@ import java.util.Map;
 import java.util.Set;
 
 import net.didion.jwnl.JWNL;
+import net.didion.jwnl.JWNLException;
 import net.didion.jwnl.data.IndexWord;
 import net.didion.jwnl.data.POS;
 import net.didion.jwnl.data.Pointer;
@@ -44,6 +45,10 @@ public class WordNet {
   //    "@i" as an instance, "@" as the standard hypernym.
   public final char hypernymChar = '@';
   public final String hypernymInstance = "@i";
+
+  // JWNL's dictionary is not thread-safe, so all instances look words up one at a time.
+  private static final Object DICTIONARY_LOCK = new Object();
+  private Dictionary _dictionary = null;
   
   
   public WordNet(String wordnetPath) {
@@ -51,6 +56,7 @@ public class WordNet {
     try {
       if( wordnetPath.length() > 0 ) {
         JWNL.initialize(new FileInputStream(wordnetPath));
+        _dictionary = Dictionary.getInstance();
         System.out.println("WordNet initialized from " + wordnetPath);
       }
       else
@@ -58,6 +64,14 @@ public class WordNet {
     } catch( Exception ex ) { ex.printStackTrace(); }
   }
 
+  /**
+   * A WordNet for another thread, on the dictionary the given one already loaded.
+   * It has its own lookup caches, so each thread should use its own instance.
+   */
+  public WordNet(WordNet loaded) {
+    _dictionary = loaded._dictionary;
+  }
+
   public static String findWordnetPath() {
     // Load WordNet.
     String path = System.getenv("JWNL");
@@ -103,7 +117,7 @@ public class WordNet {
       }
 
       // get the lemma
-      IndexWord iword = Dictionary.getInstance().lookupIndexWord(POS.VERB, word);
+      IndexWord iword = lookupIndexWord(POS.VERB, word);
       if( iword == null ) {
         _verbToLemma.put(word, null);
         return null;
@@ -140,7 +154,7 @@ public class WordNet {
       }
 
       // get the lemma
-      IndexWord iword = Dictionary.getInstance().lookupIndexWord(POS.NOUN, word);
+      IndexWord iword = lookupIndexWord(POS.NOUN, word);
       if( iword == null ) {
         _nounToLemma.put(word, null);
         return null;
@@ -154,7 +168,7 @@ public class WordNet {
           // Here we guess the single form, and return it if the guess exists (e.g. device).
           if( word.endsWith("es") ) {
             String guess = word.substring(0, word.length()-1);
-            IndexWord iGuess = Dictionary.getInstance().lookupIndexWord(POS.NOUN, guess);
+            IndexWord iGuess = lookupIndexWord(POS.NOUN, guess);
             if( iGuess != null && guess.equals(iGuess.getLemma()) ) {
               lemma = guess;
 //              System.out.println("WORDNET guessed singular: " + lemma + " from " + word);
@@ -164,7 +178,7 @@ public class WordNet {
           // "men" and "businessmen" are in WordNet as lemmas ... we need to get the singular man
           else if( word.endsWith("men") ) {
             String guess = word.substring(0, word.length()-2) + "an";
-            IndexWord iGuess = Dictionary.getInstance().lookupIndexWord(POS.NOUN, guess);
+            IndexWord iGuess = lookupIndexWord(POS.NOUN, guess);
             if( iGuess != null && guess.equals(iGuess.getLemma()) ) {
               lemma = guess;
 //              System.out.println("WORDNET guessed singular: " + lemma + " from " + word);
@@ -205,7 +219,7 @@ public class WordNet {
       }
 
       // get the lemma
-      IndexWord iword = Dictionary.getInstance().lookupIndexWord(POS.ADJECTIVE, word);
+      IndexWord iword = lookupIndexWord(POS.ADJECTIVE, word);
       if( iword == null ) {
         _adjToLemma.put(word, null);
         return null;
@@ -224,6 +238,12 @@ public class WordNet {
   }
 
 
+  private IndexWord lookupIndexWord(POS pos, String word) throws JWNLException {
+    synchronized( DICTIONARY_LOCK ) {
+      return _dictionary.lookupIndexWord(pos, word);
+    }
+  }
+
   /**
    * Uses Treebank tags and calls the correct verb, noun, adj lemmatizer.
    */
@@ -251,7 +271,7 @@ public class WordNet {
    */
   public Synset[] synsetsOf(String token, POS postag) {
     try {
-      IndexWord iword = Dictionary.getInstance().lookupIndexWord(postag, token);
+      IndexWord iword = lookupIndexWord(postag, token);
       if( iword != null ) {
         Synset[] synsets = iword.getSenses();
         return synsets;
@@ -803,27 +823,30 @@ public class WordNet {
     if( _isNounEvent == null ) _isNounEvent = new HashMap<String, Boolean>();
     if( _isNounEvent.containsKey(token) ) return _isNounEvent.get(token);
 
-    Synset[] synsets = synsetsOf(token, POS.NOUN);
-    //    System.out.println("isNounEvent top " + token);
-    if( synsets == null ) {
-      //      System.out.println("isNounEvent null synsets: " + token);
-    }
-    else {
-      for( Synset synset : synsets ) {
-        List<Synset> chain = hypernymChainKeepChild(synset);
-        if( chain != null ) {
-          for( Synset parent : chain ) {
-            Word[] words = parent.getWords();
-            if( words.length == 1 && words[0].getLemma().equals("event") ) {
-              _isNounEvent.put(token, true);
-              return true;
+    // Walking the hypernyms reads synsets from the dictionary.
+    synchronized( DICTIONARY_LOCK ) {
+      Synset[] synsets = synsetsOf(token, POS.NOUN);
+      //    System.out.println("isNounEvent top " + token);
+      if( synsets == null ) {
+        //      System.out.println("isNounEvent null synsets: " + token);
+      }
+      else {
+        for( Synset synset : synsets ) {
+          List<Synset> chain = hypernymChainKeepChild(synset);
+          if( chain != null ) {
+            for( Synset parent : chain ) {
+              Word[] words = parent.getWords();
+              if( words.length == 1 && words[0].getLemma().equals("event") ) {
+                _isNounEvent.put(token, true);
+                return true;
+              }
             }
           }
         }
       }
+      _isNounEvent.put(token, false);
+      return false;
     }
-    _isNounEvent.put(token, false);
-    return false;
   }
 
   /**